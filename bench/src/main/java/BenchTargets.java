@@ -0,0 +1,80 @@
+import java.io.IOException;
+
+import bench.Targets;
+
+/**
+ * Implements the benchmarks' view of the server and client over the real default package classes.
+ */
+public class BenchTargets implements Targets {
+
+    @Override
+    public Store createStore(String engine) {
+        StorageEngine store = Server.createStore(engine);
+        return new Store() {
+            @Override
+            public byte[] get(byte[] key) {
+                return store.get(key);
+            }
+
+            @Override
+            public byte[] put(byte[] key, byte[] value) {
+                return store.put(key, value);
+            }
+
+            @Override
+            public byte[] remove(byte[] key) {
+                return store.remove(key);
+            }
+        };
+    }
+
+    @Override
+    public byte opcode(String type) {
+        return Protocol.opcodeFor(type);
+    }
+
+    @Override
+    public byte[] encodeRequest(byte opcode, int requestId, byte[] key, byte[] value) {
+        return Protocol.encodeRequest(new Protocol.Request(opcode, requestId, key, value));
+    }
+
+    @Override
+    public Object decodeRequest(byte[] frame) throws IOException {
+        return Protocol.decodeRequest(frame, 0, frame.length);
+    }
+
+    @Override
+    public byte[] encodeResponse(byte opcode, int requestId, byte[] value) {
+        return Protocol.encodeResponse(new Protocol.Response(opcode, Protocol.STATUS_OK, requestId, value));
+    }
+
+    @Override
+    public Object decodeResponse(byte[] frame) throws IOException {
+        return Protocol.decodeResponse(frame, 0, frame.length);
+    }
+
+    @Override
+    public byte[] compress(byte[] value, int minSize) {
+        return ValueCompression.compress(value, minSize);
+    }
+
+    @Override
+    public byte[] decompress(byte[] envelope) throws IOException {
+        return ValueCompression.decode(envelope);
+    }
+
+    @Override
+    public void setLogLevel(String level) {
+        AsyncLogger.setLevel(AsyncLogger.Level.valueOf(level.toUpperCase()));
+    }
+
+    @Override
+    public void logMessage(String message) {
+        Server.logMessage(message);
+    }
+
+    @Override
+    public void logDebug(String message, Object... args) {
+        Server.logDebug(message, args);
+    }
+}
@@ -0,0 +1,74 @@
+package bench;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Encoding and decoding the binary protocol frames sent by TCPOperation and UDPOperation and answered by the
+ * server, for a PUT request and a GET response carrying the value.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CodecBenchmark {
+
+    @Param({"16", "64"})
+    public int keySize;
+
+    @Param({"100", "1000", "10000"})
+    public int valueSize;
+
+    private Targets targets;
+    private byte putOpcode;
+    private byte getOpcode;
+    private byte[] key;
+    private byte[] value;
+    private byte[] requestFrame;
+    private byte[] responseFrame;
+
+    @Setup
+    public void setup() {
+        targets = Targets.load();
+        putOpcode = targets.opcode("PUT");
+        getOpcode = targets.opcode("GET");
+        key = Data.key(42, keySize);
+        value = Data.value(valueSize);
+        requestFrame = targets.encodeRequest(putOpcode, 1, key, value);
+        responseFrame = targets.encodeResponse(getOpcode, 1, value);
+    }
+
+    @Benchmark
+    public byte[] encodeRequest() {
+        return targets.encodeRequest(putOpcode, 1, key, value);
+    }
+
+    @Benchmark
+    public Object decodeRequest() throws IOException {
+        return targets.decodeRequest(requestFrame);
+    }
+
+    @Benchmark
+    public byte[] encodeResponse() {
+        return targets.encodeResponse(getOpcode, 1, value);
+    }
+
+    @Benchmark
+    public Object decodeResponse() throws IOException {
+        return targets.decodeResponse(responseFrame);
+    }
+}
@@ -0,0 +1,53 @@
+package bench;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compressing a JSON value as a PUT stores it with --compress deflate, and decompressing it as a client reads it,
+ * the CPU paid for the memory and bytes saved.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CompressionBenchmark {
+
+    @Param({"1000", "10000", "100000"})
+    public int valueSize;
+
+    private Targets targets;
+    private byte[] value;
+    private byte[] envelope;
+
+    @Setup
+    public void setup() {
+        targets = Targets.load();
+        value = Data.json(valueSize);
+        envelope = targets.compress(value, 1);
+    }
+
+    @Benchmark
+    public byte[] compress() {
+        return targets.compress(value, 1);
+    }
+
+    @Benchmark
+    public byte[] decompress() throws IOException {
+        return targets.decompress(envelope);
+    }
+}
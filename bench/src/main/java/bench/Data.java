@@ -0,0 +1,46 @@
+package bench;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Keys and values of a given size for the benchmarks.
+ */
+final class Data {
+
+    private Data() {
+    }
+
+    /**
+     * @return A distinct key for each index, padded with '0' to the given size.
+     */
+    static byte[] key(int index, int size) {
+        byte[] digits = Integer.toString(index).getBytes(StandardCharsets.UTF_8);
+        byte[] key = new byte[Math.max(size, digits.length)];
+        Arrays.fill(key, (byte) '0');
+        System.arraycopy(digits, 0, key, key.length - digits.length, digits.length);
+        return key;
+    }
+
+    /**
+     * @return JSON records of about the given size, repetitive in structure but not in content, like typical
+     * cached API responses.
+     */
+    static byte[] json(int size) {
+        StringBuilder sb = new StringBuilder("[");
+        for(int i = 0; sb.length() < size; i++) {
+            sb.append(i > 0 ? "," : "").append("{\"id\":").append(i * 7919 % 100003)
+                    .append(",\"name\":\"user").append(i * 31 % 997).append("\",\"active\":").append(i % 3 == 0)
+                    .append(",\"score\":").append(i * 2654435761L % 10007 / 100.0).append('}');
+        }
+        return sb.append(']').toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    static byte[] value(int size) {
+        byte[] value = new byte[size];
+        for(int i = 0; i < size; i++) {
+            value[i] = (byte) ('a' + i % 26);
+        }
+        return value;
+    }
+}
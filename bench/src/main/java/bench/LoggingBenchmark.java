@@ -0,0 +1,67 @@
+package bench;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * What a request thread pays for the server's logMessage and logDebug calls at each log level. Formatting and
+ * writing happen on the logger's own thread, so this is the cost of handing a message over, or of dropping it
+ * when the logger's buffer is full. Run with -t to see the hand-off under contention.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LoggingBenchmark {
+
+    @Param({"off", "info", "debug"})
+    public String level;
+
+    @Param({"16", "1000"})
+    public int valueSize;
+
+    private Targets targets;
+    private byte[] key;
+    private byte[] value;
+
+    @Setup
+    public void setup() {
+        // The logger writes to the stdout it finds when first used; keep its output out of the results
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        targets = Targets.load();
+        targets.setLogLevel(level);
+        key = Data.key(42, 16);
+        value = Data.value(valueSize);
+    }
+
+    /**
+     * An info message built the way the server builds them, by concatenation at the call site.
+     */
+    @Benchmark
+    public void logMessage() {
+        targets.logMessage("Connection to " + "/127.0.0.1" + " " + 50000 + " idle for " + 60000 + "ms");
+    }
+
+    /**
+     * A debug message with the key and value passed as raw bytes, as the request handlers log them.
+     */
+    @Benchmark
+    public void logDebug() {
+        targets.logDebug("Key: {} Value: {} have been written to the server", key, value);
+    }
+}
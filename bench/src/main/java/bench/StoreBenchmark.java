@@ -0,0 +1,99 @@
+package bench;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * GET, PUT and DELETE against each storage engine the server can use, with every thread working on the same
+ * store. Run with -t to set the number of contending threads, e.g. -t 1 and -t 8; the mixed group runs three
+ * readers against one writer, scaled with -tg.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StoreBenchmark {
+
+    @Param({"concurrent", "hashmap", "offheap"})
+    public String engine;
+
+    @Param({"16", "64"})
+    public int keySize;
+
+    @Param({"100", "1000"})
+    public int valueSize;
+
+    @Param({"100000"})
+    public int keys;
+
+    private Targets.Store store;
+    private byte[][] keyBytes;
+    private byte[] value;
+
+    @Setup
+    public void setup() {
+        store = Targets.load().createStore(engine);
+        keyBytes = new byte[keys][];
+        for(int i = 0; i < keys; i++) {
+            keyBytes[i] = Data.key(i, keySize);
+        }
+        value = Data.value(valueSize);
+        for(byte[] key : keyBytes) {
+            store.put(key, value);
+        }
+    }
+
+    @Benchmark
+    public byte[] get() {
+        return store.get(randomKey());
+    }
+
+    @Benchmark
+    public byte[] put() {
+        return store.put(randomKey(), value);
+    }
+
+    /**
+     * Removes a key and writes it back, so the store keeps its size for the rest of the run.
+     */
+    @Benchmark
+    public byte[] removeAndPut() {
+        byte[] key = randomKey();
+        store.remove(key);
+        return store.put(key, value);
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(3)
+    public byte[] mixedGet() {
+        return store.get(randomKey());
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(1)
+    public byte[] mixedPut() {
+        return store.put(randomKey(), value);
+    }
+
+    private byte[] randomKey() {
+        return keyBytes[ThreadLocalRandom.current().nextInt(keys)];
+    }
+}
@@ -0,0 +1,74 @@
+package bench;
+
+import java.io.IOException;
+
+/**
+ * The parts of the server and client the benchmarks measure.
+ *
+ * The server and client live in the default package, which classes in a named package cannot refer to, and JMH
+ * does not accept benchmarks in the default package. The default package BenchTargets class implements this
+ * interface over the real classes and is loaded by name, so each call costs one monomorphic interface call that
+ * the JIT inlines.
+ */
+public interface Targets {
+
+    /**
+     * The StorageEngine operations, with the engine's own types hidden.
+     */
+    interface Store {
+        byte[] get(byte[] key);
+
+        byte[] put(byte[] key, byte[] value);
+
+        byte[] remove(byte[] key);
+    }
+
+    /**
+     * @param engine The storage engine, as given to the server's --store option - concurrent, hashmap, offheap.
+     * @return A new, empty store.
+     */
+    Store createStore(String engine);
+
+    /**
+     * @param type The operation name - PUT, GET, DELETE.
+     * @return The opcode of the operation.
+     */
+    byte opcode(String type);
+
+    byte[] encodeRequest(byte opcode, int requestId, byte[] key, byte[] value);
+
+    Object decodeRequest(byte[] frame) throws IOException;
+
+    byte[] encodeResponse(byte opcode, int requestId, byte[] value);
+
+    Object decodeResponse(byte[] frame) throws IOException;
+
+    /**
+     * @param value The value.
+     * @param minSize The server's --compress-min.
+     * @return The value's compressed envelope, or null if it is stored as it is.
+     */
+    byte[] compress(byte[] value, int minSize);
+
+    byte[] decompress(byte[] envelope) throws IOException;
+
+    /**
+     * @param level The server's --log-level - off, info, debug.
+     */
+    void setLogLevel(String level);
+
+    void logMessage(String message);
+
+    void logDebug(String message, Object... args);
+
+    /**
+     * @return The Targets implemented over the server and client classes.
+     */
+    static Targets load() {
+        try {
+            return (Targets) Class.forName("BenchTargets").getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("BenchTargets is missing from the benchmark jar", e);
+        }
+    }
+}
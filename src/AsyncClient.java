@@ -0,0 +1,359 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Client library for applications embedding the client: non-blocking GET, PUT and DELETE returning
+ * CompletableFutures, over a pool of persistent binary protocol TCP connections.
+ *
+ * Requests are spread over the connections in turn. Each connection has a writer thread, which writes every
+ * request queued for it back-to-back and flushes them together, and a reader thread, which matches responses to
+ * requests by request ID and completes their futures. Any number of callers can therefore have thousands of
+ * requests outstanding on a few connections and a fixed number of threads, and a burst of requests costs one
+ * write to the socket rather than one each.
+ *
+ * Every request has a timeout, after which its future fails with a TimeoutException, and the requests in flight
+ * are bounded: once maxInFlight requests await their responses, further requests fail at once with a
+ * RejectedExecutionException rather than queueing without limit. A connection that fails fails the requests
+ * waiting on it and is reopened by the next request sent on it.
+ *
+ * Futures are completed on a reader thread, so callbacks that block or take long belong in the *Async variants
+ * of the CompletableFuture methods.
+ */
+public class AsyncClient implements AutoCloseable {
+
+    public static final int DEFAULT_CONNECTIONS = 4;
+    public static final int DEFAULT_MAX_IN_FLIGHT = 10_000;
+    public static final long DEFAULT_TIMEOUT_MILLIS = 5000;
+
+    // Requests written before one flush
+    private static final int WRITE_BATCH_BYTES = 64 * 1024;
+
+    private final String serverIP;
+    private final int port;
+    private final long timeoutMillis;
+    private final int maxInFlight;
+    private final Semaphore inFlight;
+    private final List<Connection> connections = new ArrayList<>();
+    private final AtomicInteger nextConnection = new AtomicInteger();
+    private volatile boolean closed;
+
+    /**
+     * A request waiting to be written or answered.
+     */
+    private static final class Pending {
+        final Protocol.Request request;
+        final CompletableFuture<Protocol.Response> future = new CompletableFuture<>();
+        volatile Link link; // Set once written
+
+        Pending(Protocol.Request request) {
+            this.request = request;
+        }
+    }
+
+    /**
+     * One open socket of a connection, with the requests written on it that await their responses.
+     */
+    private static final class Link {
+        final Socket socket;
+        final DataInputStream in;
+        final DataOutputStream out;
+        final Map<Integer, Pending> awaiting = new ConcurrentHashMap<>();
+        volatile boolean failed;
+
+        Link(Socket socket) throws IOException {
+            this.socket = socket;
+            this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), WRITE_BATCH_BYTES));
+        }
+
+        /**
+         * Closes the socket and fails every request awaiting a response on it.
+         */
+        void fail(IOException e) {
+            failed = true;
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+                // Already failing
+            }
+            for(Pending pending : awaiting.values()) {
+                pending.future.completeExceptionally(e);
+            }
+            awaiting.clear();
+        }
+    }
+
+    /**
+     * A pooled connection: its queue of requests to write, the thread writing them, and its current socket.
+     */
+    private final class Connection implements Runnable {
+        final int index;
+        final BlockingQueue<Pending> outbox = new LinkedBlockingQueue<>();
+        final Thread writer;
+        volatile Link link;
+
+        Connection(int index) {
+            this.index = index;
+            this.writer = new Thread(this, "async-client-writer-" + index);
+            writer.setDaemon(true);
+        }
+
+        /**
+         * Opens a socket if the connection has none, and starts reading its responses.
+         */
+        Link open() throws IOException {
+            Link current = link;
+            if(current != null && !current.failed) {
+                return current;
+            }
+            Socket socket = new Socket(serverIP, port);
+            socket.setTcpNoDelay(true);
+            Link opened = new Link(socket);
+            Thread reader = new Thread(() -> read(opened), "async-client-reader-" + index);
+            reader.setDaemon(true);
+            link = opened;
+            reader.start();
+            return opened;
+        }
+
+        @Override
+        public void run() {
+            while(!closed) {
+                Pending first;
+                try {
+                    first = outbox.take();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                Link current;
+                try {
+                    current = open();
+                } catch (IOException e) {
+                    // Fail what is queued now rather than retrying in a loop; the next request tries again
+                    IOException failure = new IOException("Cannot connect to " + serverIP + " " + port + ": " + e.getMessage(), e);
+                    first.future.completeExceptionally(failure);
+                    for(Pending p = outbox.poll(); p != null; p = outbox.poll()) {
+                        p.future.completeExceptionally(failure);
+                    }
+                    continue;
+                }
+
+                try {
+                    int batched = 0;
+                    for(Pending p = first; p != null; p = batched < WRITE_BATCH_BYTES ? outbox.poll() : null) {
+                        if(p.future.isDone()) {
+                            continue; // Timed out while queued
+                        }
+                        // Awaited before it is written, so the reader always finds it
+                        p.link = current;
+                        current.awaiting.put(p.request.requestId, p);
+                        byte[] frame = Protocol.encodeRequest(p.request);
+                        current.out.write(frame);
+                        batched += frame.length;
+                    }
+                    current.out.flush();
+                } catch (IOException e) {
+                    current.fail(e);
+                }
+                if(current.failed) {
+                    // The reader may have failed the link before the last requests were awaited on it
+                    current.fail(new IOException("Connection to " + serverIP + " " + port + " failed"));
+                }
+            }
+        }
+
+        private void read(Link current) {
+            try {
+                while(true) {
+                    Protocol.Response response = Protocol.readResponse(current.in);
+                    Pending pending = current.awaiting.remove(response.requestId);
+                    if(pending != null) {
+                        pending.future.complete(response);
+                    }
+                    // Otherwise the request timed out and its late response is dropped
+                }
+            } catch (IOException e) {
+                current.fail(closed ? new IOException("AsyncClient closed") : e);
+            }
+        }
+    }
+
+    private AsyncClient(String serverIP, int port, int connectionCount, int maxInFlight, long timeoutMillis) {
+        this.serverIP = serverIP;
+        this.port = port;
+        this.timeoutMillis = timeoutMillis;
+        this.maxInFlight = maxInFlight;
+        this.inFlight = new Semaphore(maxInFlight);
+        for(int i = 0; i < connectionCount; i++) {
+            connections.add(new Connection(i));
+        }
+    }
+
+    /**
+     * Opens a pool of DEFAULT_CONNECTIONS connections to the server, with DEFAULT_MAX_IN_FLIGHT requests in flight
+     * and a DEFAULT_TIMEOUT_MILLIS timeout.
+     * @param serverIP The IP Address or hostname of the server.
+     * @param port The port number the server is listening on.
+     * @return The AsyncClient.
+     * @throws IOException Throws exception if the server cannot be reached.
+     */
+    public static AsyncClient connect(String serverIP, int port) throws IOException {
+        return connect(serverIP, port, DEFAULT_CONNECTIONS, DEFAULT_MAX_IN_FLIGHT, DEFAULT_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * Opens a pool of connections to the server.
+     * @param serverIP The IP Address or hostname of the server.
+     * @param port The port number the server is listening on.
+     * @param connectionCount The number of connections requests are spread over.
+     * @param maxInFlight The most requests sent or queued and not answered yet, across all connections.
+     * @param timeoutMillis Milliseconds a request waits for its response by default.
+     * @return The AsyncClient.
+     * @throws IOException Throws exception if the server cannot be reached.
+     * @throws IllegalArgumentException Throws exception if a count or the timeout is not positive.
+     */
+    public static AsyncClient connect(String serverIP, int port, int connectionCount, int maxInFlight, long timeoutMillis)
+            throws IOException {
+        if(connectionCount < 1 || maxInFlight < 1 || timeoutMillis < 1) {
+            throw new IllegalArgumentException("Connections, requests in flight and timeout must be positive");
+        }
+        AsyncClient client = new AsyncClient(serverIP, port, connectionCount, maxInFlight, timeoutMillis);
+        try {
+            for(Connection connection : client.connections) {
+                connection.open();
+                connection.writer.start();
+            }
+        } catch (IOException e) {
+            client.close();
+            throw e;
+        }
+        return client;
+    }
+
+    /**
+     * @param key The Key of the object to GET.
+     * @return A future of the value, or of null if the key cannot be found.
+     */
+    public CompletableFuture<String> get(String key) {
+        return execute(Client.buildRequest(key, "", "GET"), timeoutMillis).thenApply(response -> {
+            return response.status == Protocol.STATUS_NOT_FOUND ? null : Protocol.toString(response.value);
+        });
+    }
+
+    /**
+     * @param key The Key of the object to PUT.
+     * @param value The Value to PUT.
+     * @return A future completed once the server has stored the value.
+     */
+    public CompletableFuture<Void> put(String key, String value) {
+        return put(key, value, 0);
+    }
+
+    /**
+     * @param key The Key of the object to PUT.
+     * @param value The Value to PUT.
+     * @param ttl Milliseconds until the key expires, 0 to never expire.
+     * @return A future completed once the server has stored the value.
+     */
+    public CompletableFuture<Void> put(String key, String value, long ttl) {
+        return execute(Client.buildRequest(key, value, "PUT", ttl), timeoutMillis).thenApply(response -> null);
+    }
+
+    /**
+     * @param key The Key of the object to DELETE.
+     * @return A future of whether the key was found and deleted.
+     */
+    public CompletableFuture<Boolean> delete(String key) {
+        return execute(Client.buildRequest(key, "", "DELETE"), timeoutMillis)
+                .thenApply(response -> response.status == Protocol.STATUS_OK);
+    }
+
+    /**
+     * Sends any request answered by a single response, such as MGET, EXPIRE or STATS, built by Client.buildRequest
+     * or Client.buildMultiKeyRequest. SCAN and SUBSCRIBE are answered with several responses and are not supported.
+     * @param request The request, with a request ID no other request in flight uses.
+     * @param timeoutMillis Milliseconds to wait for the response.
+     * @return A future of the response, failed with a ProtocolException if the server reports an error, a
+     * TimeoutException if no response arrives in time, a RejectedExecutionException if maxInFlight requests are
+     * already in flight, or an IOException if the connection fails.
+     */
+    public CompletableFuture<Protocol.Response> execute(Protocol.Request request, long timeoutMillis) {
+        if(request.opcode == Protocol.OP_SCAN || request.opcode == Protocol.OP_SUBSCRIBE || request.opcode == Protocol.OP_REPLICATE) {
+            return CompletableFuture.failedFuture(new IllegalArgumentException(
+                    Protocol.opcodeName(request.opcode) + " is answered with several responses"));
+        }
+        if(closed) {
+            return CompletableFuture.failedFuture(new IOException("AsyncClient closed"));
+        }
+        if(!inFlight.tryAcquire()) {
+            return CompletableFuture.failedFuture(new RejectedExecutionException(
+                    maxInFlight + " requests already in flight"));
+        }
+
+        Pending pending = new Pending(request);
+        // Released before the caller sees the result, so the caller can send its next request at once
+        CompletableFuture<Protocol.Response> answered = pending.future.orTimeout(timeoutMillis, TimeUnit.MILLISECONDS)
+                .whenComplete((response, error) -> {
+                    Link link = pending.link;
+                    if(link != null) {
+                        link.awaiting.remove(request.requestId, pending);
+                    }
+                    inFlight.release();
+                });
+        connections.get(Math.floorMod(nextConnection.getAndIncrement(), connections.size())).outbox.add(pending);
+
+        return answered.thenCompose(response -> {
+            if(response.status == Protocol.STATUS_ERROR) {
+                return CompletableFuture.failedFuture(new ProtocolException(Protocol.toString(response.value)));
+            }
+            return CompletableFuture.completedFuture(response);
+        });
+    }
+
+    /**
+     * @return The number of requests sent or queued and not answered yet.
+     */
+    public int inFlightCount() {
+        int count = 0;
+        for(Connection connection : connections) {
+            Link link = connection.link;
+            count += connection.outbox.size() + (link != null ? link.awaiting.size() : 0);
+        }
+        return count;
+    }
+
+    /**
+     * Closes every connection, failing the requests still in flight.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        IOException failure = new IOException("AsyncClient closed");
+        for(Connection connection : connections) {
+            connection.writer.interrupt();
+            for(Pending p = connection.outbox.poll(); p != null; p = connection.outbox.poll()) {
+                p.future.completeExceptionally(failure);
+            }
+            Link link = connection.link;
+            if(link != null) {
+                link.fail(failure);
+            }
+        }
+    }
+}
@@ -0,0 +1,237 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Asynchronous logger used by the Server so request threads never wait on console output.
+ * Messages are queued in a bounded ring buffer and formatted, timestamped and written by a single background
+ * thread. When the buffer is full, messages are dropped and counted instead of blocking the caller.
+ *
+ * Messages may contain '{}' placeholders filled from arguments on the background thread, so disabled or dropped
+ * messages never pay for string building. byte[] arguments are printed as UTF-8 text truncated to a maximum length.
+ */
+public class AsyncLogger {
+
+    public enum Level { OFF, INFO, DEBUG }
+
+    private static final int CAPACITY = 8192;
+    private static final int DRAIN_BATCH = 256;
+    private static final DateTimeFormatter FORMAT =
+            DateTimeFormatter.ofPattern("MM-dd-yyyy HH:mm:ss.SSS").withZone(ZoneId.systemDefault());
+
+    private static volatile Level level = Level.INFO;
+    private static volatile int maxValueLength = 64;
+
+    private static final ArrayBlockingQueue<Event> queue = new ArrayBlockingQueue<>(CAPACITY);
+    private static final Writer out = new BufferedWriter(new OutputStreamWriter(System.out), 64 * 1024);
+    private static final AtomicLong dropped = new AtomicLong();
+
+    // Only touched by the background thread, or the shutdown hook once the JVM is exiting
+    private static long cachedMillis = -1;
+    private static String cachedTime;
+
+    private static final Thread drainer = new Thread(AsyncLogger::drain, "async-logger");
+
+    static {
+        drainer.setDaemon(true);
+        drainer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(AsyncLogger::flushRemaining, "async-logger-flush"));
+    }
+
+    /**
+     * A queued message and its arguments, captured with the time it was logged.
+     */
+    private static final class Event {
+        final long millis;
+        final String message;
+        final Object[] args;
+
+        Event(long millis, String message, Object[] args) {
+            this.millis = millis;
+            this.message = message;
+            this.args = args;
+        }
+    }
+
+    /**
+     * Sets the most detailed level that will be logged.
+     * @param newLevel The level - OFF, INFO, DEBUG.
+     */
+    public static void setLevel(Level newLevel) {
+        level = newLevel;
+    }
+
+    /**
+     * Sets how many bytes of a byte[] argument are printed before it is truncated.
+     * @param bytes The maximum number of bytes printed.
+     * @throws IllegalArgumentException Throws exception if bytes is negative.
+     */
+    public static void setMaxValueLength(int bytes) {
+        if(bytes < 0) {
+            throw new IllegalArgumentException("Maximum value length must not be negative: " + bytes);
+        }
+        maxValueLength = bytes;
+    }
+
+    /**
+     * @param messageLevel The level of a message.
+     * @return Whether messages at that level are currently logged.
+     */
+    public static boolean isEnabled(Level messageLevel) {
+        return messageLevel != Level.OFF && messageLevel.ordinal() <= level.ordinal();
+    }
+
+    /**
+     * @return The number of messages dropped because the buffer was full.
+     */
+    public static long droppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * Queues a message to be written, or drops it if the buffer is full.
+     * @param messageLevel The level of the message.
+     * @param message The message, with a '{}' placeholder for each argument.
+     * @param args The arguments substituted into the message.
+     */
+    public static void log(Level messageLevel, String message, Object... args) {
+        if(!isEnabled(messageLevel)) {
+            return;
+        }
+        if(!queue.offer(new Event(System.currentTimeMillis(), message, args))) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    /**
+     * Writes queued messages in batches, flushing whenever the buffer runs empty.
+     */
+    private static void drain() {
+        List<Event> batch = new ArrayList<>(DRAIN_BATCH);
+        long reportedDrops = 0;
+
+        while(true) {
+            try {
+                Event first = queue.poll(1, TimeUnit.SECONDS);
+                if(first != null) {
+                    batch.add(first);
+                    queue.drainTo(batch, DRAIN_BATCH - 1);
+                    for(Event event : batch) {
+                        writeSafely(out, event);
+                    }
+                    batch.clear();
+                }
+
+                long drops = dropped.get();
+                if(drops != reportedDrops) {
+                    write(out, new Event(System.currentTimeMillis(), "Logger dropped {} messages", new Object[] {drops - reportedDrops}));
+                    reportedDrops = drops;
+                }
+                if(queue.isEmpty()) {
+                    out.flush();
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException e) {
+                // Nowhere left to report it; keep draining so callers are never blocked
+            }
+        }
+    }
+
+    /**
+     * Writes whatever is still queued when the JVM shuts down.
+     */
+    private static void flushRemaining() {
+        // Let the drain thread finish writing the batch it has taken, so those messages are not lost
+        drainer.interrupt();
+        try {
+            drainer.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            Event event;
+            while((event = queue.poll()) != null) {
+                writeSafely(out, event);
+            }
+            out.flush();
+        } catch (IOException e) {
+            // Shutting down; nothing else to do
+        }
+    }
+
+    /**
+     * Writes an event, or a line saying it could not be formatted, so an argument whose toString throws never
+     * stops the drain thread.
+     */
+    private static void writeSafely(Writer out, Event event) throws IOException {
+        try {
+            write(out, event);
+        } catch (RuntimeException e) {
+            write(out, new Event(event.millis, "Could not log '{}': {}", new Object[] {event.message, e}));
+        }
+    }
+
+    private static void write(Writer out, Event event) throws IOException {
+        StringBuilder sb = new StringBuilder(event.message.length() + 48);
+        sb.append(timestamp(event.millis)).append(" -- ");
+        format(sb, event);
+        sb.append(System.lineSeparator());
+        out.write(sb.toString());
+    }
+
+    /**
+     * Formats a timestamp in MM-dd-yyyy HH:mm:ss.SSS format, reusing the last result within the same millisecond.
+     */
+    private static String timestamp(long millis) {
+        if(millis != cachedMillis) {
+            cachedMillis = millis;
+            cachedTime = FORMAT.format(Instant.ofEpochMilli(millis));
+        }
+        return cachedTime;
+    }
+
+    private static void format(StringBuilder sb, Event event) {
+        String message = event.message;
+        int argIndex = 0;
+        int start = 0;
+        int placeholder;
+        while(argIndex < event.args.length && (placeholder = message.indexOf("{}", start)) >= 0) {
+            sb.append(message, start, placeholder);
+            appendArg(sb, event.args[argIndex++]);
+            start = placeholder + 2;
+        }
+        sb.append(message, start, message.length());
+    }
+
+    /**
+     * Appends an argument, truncating byte[] and String arguments longer than the maximum value length.
+     */
+    private static void appendArg(StringBuilder sb, Object arg) {
+        int limit = maxValueLength;
+        if(arg instanceof byte[]) {
+            byte[] bytes = (byte[]) arg;
+            if(bytes.length <= limit) {
+                sb.append(Protocol.toString(bytes));
+            } else {
+                sb.append(new String(bytes, 0, limit, StandardCharsets.UTF_8))
+                        .append("... (").append(bytes.length).append(" bytes)");
+            }
+        } else if(arg instanceof String && ((String) arg).length() > limit) {
+            String s = (String) arg;
+            sb.append(s, 0, limit).append("... (").append(s.length()).append(" chars)");
+        } else {
+            sb.append(arg);
+        }
+    }
+}
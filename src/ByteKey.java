@@ -0,0 +1,43 @@
+import java.util.Arrays;
+
+/**
+ * Immutable wrapper giving a byte[] key value-based equality and ordering so it can be used in hash and sorted maps.
+ * The hash code is computed once, since keys are hashed on every lookup.
+ */
+public final class ByteKey implements Comparable<ByteKey> {
+
+    private final byte[] bytes;
+    private final int hash;
+
+    public ByteKey(byte[] bytes) {
+        this.bytes = bytes;
+        this.hash = Arrays.hashCode(bytes);
+    }
+
+    public byte[] bytes() {
+        return bytes;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return this == o || (o instanceof ByteKey && hash == ((ByteKey) o).hash && Arrays.equals(bytes, ((ByteKey) o).bytes));
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    /**
+     * Orders keys by their unsigned bytes, which matches the ordering of their UTF-8 strings.
+     */
+    @Override
+    public int compareTo(ByteKey other) {
+        return Arrays.compareUnsigned(bytes, other.bytes);
+    }
+
+    @Override
+    public String toString() {
+        return Protocol.toString(bytes);
+    }
+}
@@ -1,74 +1,196 @@
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.net.*;
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.InputMismatchException;
+import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
 
 public class Client {
 
+    private static final DateTimeFormatter TIME_FORMAT =
+            DateTimeFormatter.ofPattern("MM-dd-yyyy HH:mm:ss.SSS").withZone(ZoneId.systemDefault());
+
+    // Whether operations use the single-frame binary protocol or the original text protocol
+    public static boolean useBinaryProtocol = true;
+
+    // Source of request IDs used to match binary protocol responses to their requests
+    private static final AtomicInteger nextRequestId = new AtomicInteger();
+
+    // Limits on how many pipelined requests are written before their responses are read back
+    private static final int PIPELINE_WINDOW = 256;
+    private static final int PIPELINE_WINDOW_BYTES = 64 * 1024;
+
+    // Pairs shown per page by the SCAN menu option
+    private static final int SCAN_PAGE_SIZE = 20;
+
+    // Largest value sent with the text protocol; writeUTF limits each message, including the server's echo of the
+    // value, to 64KB
+    private static final int TEXT_MAX_VALUE_BYTES = 60 * 1024;
+
+    // Smallest PUT value compressed before it is sent, 0 to send values as they are
+    public static int compressMin = 0;
+
+    // Replicas of the server, as <server_ip>:<port>; one of them is picked to serve the reads of a TCP client
+    public static List<String> replicas = new ArrayList<>();
+
+    // Number of keys the near cache holds, 0 to send every GET to the server
+    public static int nearCacheEntries = 0;
+
+    // Serves repeated GETs locally when enabled, or null
+    public static NearCache nearCache;
+
     /**
      * Performs communication with the server over TCP.
+     * A single connection is opened and reused for the test operations and every operation entered by the user.
+     * If the server has replicas, GET, TTL and SCAN go over a second connection to one of them, picked at random
+     * so clients spread their reads, and everything else goes to the server, their primary.
      * @param serverIP The IP Address or hostname of the server.
      * @param port The port number the server is listening on.
      * @throws Exception Throws exception if the server connection is interrupted or unsuccessful.
      */
     public static void TCPClient(String serverIP, int port) throws Exception {
-        callTestTCP(serverIP, port); // Programmatically test operations on server
-
         Socket s = null;
+        Socket replica = null;
 
         try {
             // Connect to server
             s = new Socket(serverIP, port);
+            s.setSoTimeout(10000); // Set timeout to 10 seconds
             logMessage("Connected to server on " + serverIP + " " + port);
             // Input and Output streams for server communication
             DataInputStream in = new DataInputStream(s.getInputStream());
             DataOutputStream out = new DataOutputStream(s.getOutputStream());
 
-            Scanner scanner = new Scanner(System.in);
-
-            // Choose type of operation
-            System.out.println("Enter '1' to perform PUT");
-            System.out.println("Enter '2' to perform GET");
-            System.out.println("Enter '3' to perform DELETE");
-
-            int selection = scanner.nextInt();
-            scanner.nextLine(); // deal with \n left by scanner.nextInt()
-
-            if(selection == 1) {
-                logMessage("PUT operation selected");
-                logMessage("Enter key to PUT: ");
-                String key = scanner.nextLine();
-                logMessage("Enter value to PUT: ");
-                String value = scanner.nextLine();
-
-                TCPOperation(key, value, "PUT", in, out);
-
-            } else if(selection == 2) {
-                logMessage("GET operation selected");
-                logMessage("Enter key to GET: ");
-                String key = scanner.nextLine();
-
-                TCPOperation(key, "", "GET", in, out);
+            String readIP = serverIP;
+            int readPort = port;
+            DataInputStream readIn = in;
+            DataOutputStream readOut = out;
+            if(!replicas.isEmpty()) {
+                String endpoint = replicas.get(ThreadLocalRandom.current().nextInt(replicas.size()));
+                int colon = endpoint.lastIndexOf(':');
+                if(colon <= 0) {
+                    throw new IllegalArgumentException("Replica " + endpoint + " must be given as <server_ip>:<port>");
+                }
+                readIP = endpoint.substring(0, colon);
+                readPort = Integer.parseInt(endpoint.substring(colon + 1));
+                replica = new Socket(readIP, readPort);
+                replica.setSoTimeout(10000);
+                readIn = new DataInputStream(replica.getInputStream());
+                readOut = new DataOutputStream(replica.getOutputStream());
+                // Replicas apply writes asynchronously, so a read right after a write may not see it yet
+                logMessage("Reading from replica " + endpoint + ", writing to " + serverIP + " " + port);
+            }
 
-            } else if(selection == 3) {
-                logMessage("DELETE operation selected");
-                logMessage("Enter key to DELETE: ");
-                String key = scanner.nextLine();
+            if(nearCacheEntries > 0) {
+                // Tracked by the server the reads go to
+                enableNearCache(readIP, readPort, readIn, readOut);
+            }
 
-                TCPOperation(key, "", "DELETE", in, out);
+            callTestTCP(in, out); // Programmatically test operations on server
 
-            } else { // Rerun if input doesn't match '1', '2', or '3'
-                logMessage("ERROR: Invalid Input");
-                TCPClient(serverIP, port);
+            Scanner scanner = new Scanner(System.in);
 
+            while(true) { // Keep performing operations over the same connection until the user exits
+                // Choose type of operation
+                System.out.println("Enter '1' to perform PUT");
+                System.out.println("Enter '2' to perform GET");
+                System.out.println("Enter '3' to perform DELETE");
+                System.out.println("Enter '4' to exit");
+                System.out.println("Enter '5' to have the server take a snapshot");
+                System.out.println("Enter '6' to set the TTL of a key");
+                System.out.println("Enter '7' to show the TTL of a key");
+                System.out.println("Enter '8' to show server statistics");
+                System.out.println("Enter '9' to SCAN keys by prefix or range");
+
+                int selection = scanner.nextInt();
+                scanner.nextLine(); // deal with \n left by scanner.nextInt()
+
+                if(selection == 1) {
+                    logMessage("PUT operation selected");
+                    logMessage("Enter key to PUT: ");
+                    String key = scanner.nextLine();
+                    logMessage("Enter value to PUT: ");
+                    String value = scanner.nextLine();
+                    long ttl = readTTL(scanner);
+
+                    TCPOperation(key, value, "PUT", ttl, in, out);
+
+                } else if(selection == 2) {
+                    logMessage("GET operation selected");
+                    logMessage("Enter key to GET: ");
+                    String key = scanner.nextLine();
+
+                    TCPOperation(key, "", "GET", readIn, readOut);
+
+                } else if(selection == 3) {
+                    logMessage("DELETE operation selected");
+                    logMessage("Enter key to DELETE: ");
+                    String key = scanner.nextLine();
+
+                    TCPOperation(key, "", "DELETE", in, out);
+
+                } else if(selection == 4) {
+                    if(nearCache != null) {
+                        logMessage(nearCache.stats());
+                    }
+                    break;
+
+                } else if(selection == 5) {
+                    logMessage("SNAPSHOT operation selected");
+                    // Binary only; the server picks the protocol per request, so this works on text connections too
+                    TCPBinaryOperation("", "", "SNAPSHOT", in, out);
+
+                } else if(selection == 6) {
+                    logMessage("EXPIRE operation selected");
+                    logMessage("Enter key to EXPIRE: ");
+                    String key = scanner.nextLine();
+                    long ttl = readTTL(scanner);
+
+                    TCPOperation(key, "", "EXPIRE", ttl, in, out);
+
+                } else if(selection == 7) {
+                    logMessage("TTL operation selected");
+                    logMessage("Enter key to show the TTL of: ");
+                    String key = scanner.nextLine();
+
+                    TCPOperation(key, "", "TTL", 0, readIn, readOut);
+
+                } else if(selection == 8) {
+                    logMessage("STATS operation selected");
+                    // Binary only, like SNAPSHOT
+                    TCPBinaryOperation("", "", "STATS", in, out);
+
+                } else if(selection == 9) {
+                    logMessage("SCAN operation selected");
+                    // Binary only, like SNAPSHOT
+                    scanPages(scanner, readIn, readOut);
+
+                } else { // Ask again if input doesn't match one of the options
+                    logMessage("ERROR: Invalid Input");
+                }
             }
         } catch (Exception e) {
             logMessage("ERROR: " + e.getMessage());
         } finally {
+            if(nearCache != null) {
+                nearCache.close();
+            }
+            if(replica != null) {
+                replica.close();
+            }
             if(s != null && !s.isClosed()) {
                 logMessage("Connection to server terminated");
                 s.close();
@@ -76,6 +198,37 @@ public class Client {
         }
     }
 
+    /**
+     * Subscribes to the server's invalidations and turns on tracking for the connection, so GETs on it are
+     * served from the near cache until the server reports that their key changed.
+     * If the server cannot be subscribed to, every GET goes to the server as before.
+     * @param serverIP The IP Address or hostname of the server.
+     * @param port The port number the server is listening on.
+     * @param in The DataInputStream used to receive messages from the server.
+     * @param out The DataOutputStream used to send messages to the server.
+     * @throws IOException Throws exception if the connection to the server fails.
+     */
+    public static void enableNearCache(String serverIP, int port, DataInputStream in, DataOutputStream out) throws IOException {
+        NearCache cache;
+        try {
+            cache = NearCache.connect(serverIP, port, nearCacheEntries);
+        } catch (IOException e) {
+            logMessage("ERROR: Near cache unavailable, reading from the server: " + e.getMessage());
+            return;
+        }
+
+        Protocol.writeRequest(out, new Protocol.Request(Protocol.OP_TRACKING, nextRequestId.incrementAndGet(),
+                new byte[0], ByteBuffer.allocate(4).putInt(cache.subscriberId()).array()));
+        Protocol.Response response = Protocol.readResponse(in);
+        if(response.status != Protocol.STATUS_OK) {
+            logMessage("ERROR: Server refused to track reads for the near cache");
+            cache.close();
+            return;
+        }
+        nearCache = cache;
+        logMessage("Near cache enabled for up to " + nearCacheEntries + " keys");
+    }
+
     /**
      * Handles client-side PUT, GET, DELETE operations for TCP communication.
      * @param key The Key of the object to perform an operation on.
@@ -86,6 +239,234 @@ public class Client {
      * @throws IOException
      */
     public static void TCPOperation(String key, String value, String type, DataInputStream in, DataOutputStream out) throws IOException {
+        TCPOperation(key, value, type, 0, in, out);
+    }
+
+    /**
+     * Handles client-side PUT, GET, DELETE, EXPIRE, TTL operations for TCP communication, with a time to live.
+     * Operations involving a TTL always use the binary protocol, since the text protocol cannot carry one, and so
+     * do values too large for it; the server picks the protocol per request, so this works on text protocol
+     * connections too.
+     * @param key The Key of the object to perform an operation on.
+     * @param value The Value of the object to perform an operation on.
+     * @param type The type of operation to be performed - PUT, GET, DELETE, EXPIRE, TTL.
+     * @param ttl Milliseconds until the key expires for PUT and EXPIRE, 0 to never expire.
+     * @param in The DataInputStream used to receive messages from the server.
+     * @param out The DataOutputStream used to send messages to the server.
+     * @throws IOException
+     */
+    public static void TCPOperation(String key, String value, String type, long ttl, DataInputStream in, DataOutputStream out) throws IOException {
+        if(useBinaryProtocol || ttl > 0 || type.equals("EXPIRE") || type.equals("TTL") ||
+                Protocol.toBytes(value).length > TEXT_MAX_VALUE_BYTES) {
+            TCPBinaryOperation(key, value, type, ttl, in, out);
+        } else {
+            TCPTextOperation(key, value, type, in, out);
+        }
+    }
+
+    /**
+     * Performs a PUT, GET, DELETE operation over TCP as one binary request frame and one response frame.
+     * @param key The Key of the object to perform an operation on.
+     * @param value The Value of the object to perform an operation on.
+     * @param type The type of operation to be performed - PUT, GET, DELETE.
+     * @param in The DataInputStream used to receive messages from the server.
+     * @param out The DataOutputStream used to send messages to the server.
+     * @throws IOException
+     */
+    public static void TCPBinaryOperation(String key, String value, String type, DataInputStream in, DataOutputStream out) throws IOException {
+        TCPBinaryOperation(key, value, type, 0, in, out);
+    }
+
+    /**
+     * Performs a PUT, GET, DELETE, EXPIRE, TTL operation over TCP as one binary request frame and one response frame.
+     * @param key The Key of the object to perform an operation on.
+     * @param value The Value of the object to perform an operation on.
+     * @param type The type of operation to be performed - PUT, GET, DELETE, EXPIRE, TTL.
+     * @param ttl Milliseconds until the key expires for PUT and EXPIRE, 0 to never expire.
+     * @param in The DataInputStream used to receive messages from the server.
+     * @param out The DataOutputStream used to send messages to the server.
+     * @throws IOException
+     */
+    public static void TCPBinaryOperation(String key, String value, String type, long ttl, DataInputStream in, DataOutputStream out) throws IOException {
+        NearCache cache = nearCache;
+        Object reservation = null;
+        if(cache != null) {
+            byte[] k = Protocol.toBytes(key);
+            if(type.equals("GET")) {
+                byte[] cached = cache.get(k);
+                if(cached != null) {
+                    logMessage("RESPONSE: Value for " + key + ": " + Protocol.toString(cached) + " (near cache)");
+                    return;
+                }
+                reservation = cache.reserve(k);
+            } else {
+                // Read your own writes right away; the server's invalidation follows for the other clients
+                cache.invalidate(k);
+            }
+        }
+
+        Protocol.writeRequest(out, buildRequest(key, value, type, ttl));
+        Protocol.Response response = Protocol.readResponse(in);
+        if(reservation != null) {
+            cache.complete(Protocol.toBytes(key), reservation, response.status == Protocol.STATUS_OK ? response.value : null);
+        }
+        logMessage("RESPONSE: " + Protocol.describe(key, response));
+    }
+
+    /**
+     * Performs a batch of PUT, GET, DELETE operations over TCP by pipelining binary request frames.
+     * Requests are written back-to-back in windows and the server answers them in order, so a window
+     * costs one round trip instead of one per operation.
+     * @param requests The requests to perform, in order.
+     * @param in The DataInputStream used to receive messages from the server.
+     * @param out The DataOutputStream used to send messages to the server.
+     * @return The responses, in the same order as the requests.
+     * @throws IOException Throws exception if the connection fails or a response does not match its request.
+     */
+    public static List<Protocol.Response> TCPBatchOperation(List<Protocol.Request> requests, DataInputStream in, DataOutputStream out) throws IOException {
+        List<Protocol.Response> responses = new ArrayList<>(requests.size());
+        ByteArrayOutputStream window = new ByteArrayOutputStream();
+        int next = 0;
+
+        NearCache cache = nearCache;
+        if(cache != null) {
+            for(Protocol.Request request : requests) {
+                if(request.opcode != Protocol.OP_GET && request.opcode != Protocol.OP_TTL && Protocol.singleKeyOpcode(request.opcode) == -1) {
+                    cache.invalidate(request.key);
+                }
+            }
+        }
+
+        while(next < requests.size()) {
+            // Fill a window with requests, bounded so neither side blocks writing while the other is writing
+            int windowStart = next;
+            window.reset();
+            while(next < requests.size() && next - windowStart < PIPELINE_WINDOW && window.size() < PIPELINE_WINDOW_BYTES) {
+                window.write(Protocol.encodeRequest(requests.get(next++)));
+            }
+            out.write(window.toByteArray());
+            out.flush();
+
+            // Collect the responses for the window, which arrive in request order
+            for(int i = windowStart; i < next; i++) {
+                Protocol.Response response = Protocol.readResponse(in);
+                if(response.requestId != requests.get(i).requestId) {
+                    throw new ProtocolException("Expected response to request " + requests.get(i).requestId +
+                            " but received " + response.requestId);
+                }
+                responses.add(response);
+            }
+        }
+        return responses;
+    }
+
+    /**
+     * Performs an MPUT, MGET, MDELETE operation over TCP as one request frame and one response frame.
+     * @param keys The Keys of the objects to perform the operation on.
+     * @param values The Values to PUT, one per key, or null for MGET and MDELETE.
+     * @param type The type of operation to be performed - MPUT, MGET, MDELETE.
+     * @param in The DataInputStream used to receive messages from the server.
+     * @param out The DataOutputStream used to send messages to the server.
+     * @return The result for each key, in the same order as the keys.
+     * @throws IOException Throws exception if the connection fails or the server rejects the request.
+     */
+    public static List<Protocol.Response> TCPMultiKeyOperation(List<String> keys, List<String> values, String type, DataInputStream in, DataOutputStream out) throws IOException {
+        NearCache cache = nearCache;
+        if(cache != null && !type.equals("MGET")) {
+            for(String key : keys) {
+                cache.invalidate(Protocol.toBytes(key));
+            }
+        }
+        Protocol.writeRequest(out, buildMultiKeyRequest(keys, values, type));
+        return multiKeyResults(keys, Protocol.readResponse(in));
+    }
+
+    /**
+     * Performs a SCAN operation over TCP, handing each pair to an action as the server streams the results in.
+     * @param start The first key of the range, inclusive, or the cursor returned for the previous page.
+     * @param end The key ending the range, exclusive, or null for no end.
+     * @param limit The most pairs to return, from 1 to Protocol.MAX_SCAN_LIMIT.
+     * @param in The DataInputStream used to receive messages from the server.
+     * @param out The DataOutputStream used to send messages to the server.
+     * @param action Called with each key and value, in key order.
+     * @return The cursor to pass as start for the next page, or null if the range is exhausted.
+     * @throws IOException Throws exception if the connection fails or the server rejects the request.
+     */
+    public static byte[] TCPScanOperation(byte[] start, byte[] end, int limit, DataInputStream in, DataOutputStream out,
+                                          BiConsumer<byte[], byte[]> action) throws IOException {
+        Protocol.Request request = new Protocol.Request(Protocol.OP_SCAN, nextRequestId.incrementAndGet(), start,
+                Protocol.encodeScan(limit, end));
+        Protocol.writeRequest(out, request);
+        while(true) {
+            Protocol.Response response = Protocol.readResponse(in);
+            if(response.requestId != request.requestId) {
+                throw new ProtocolException("Response " + response.requestId + " does not match SCAN request " + request.requestId);
+            }
+            if(response.status == Protocol.STATUS_PARTIAL) {
+                List<byte[]> pairs = Protocol.decodeList(response.value);
+                for(int i = 0; i + 1 < pairs.size(); i += 2) {
+                    action.accept(pairs.get(i), pairs.get(i + 1));
+                }
+            } else if(response.status == Protocol.STATUS_OK) {
+                return response.value.length > 0 ? response.value : null;
+            } else {
+                throw new ProtocolException(Protocol.toString(response.value));
+            }
+        }
+    }
+
+    /**
+     * Asks the user for a key prefix or range and shows the pairs in it a page at a time.
+     * @param scanner The Scanner used for taking user input from System.in.
+     * @param in The DataInputStream used to receive messages from the server.
+     * @param out The DataOutputStream used to send messages to the server.
+     * @throws IOException Throws exception if the connection fails or the server rejects the request.
+     */
+    private static void scanPages(Scanner scanner, DataInputStream in, DataOutputStream out) throws IOException {
+        logMessage("Enter key prefix to SCAN, or leave blank to enter a range: ");
+        String prefix = scanner.nextLine();
+        byte[] start;
+        byte[] end;
+        if(!prefix.isEmpty()) {
+            start = Protocol.toBytes(prefix);
+            end = Protocol.prefixEnd(start);
+        } else {
+            logMessage("Enter first key of the range, or leave blank to start at the lowest key: ");
+            start = Protocol.toBytes(scanner.nextLine());
+            logMessage("Enter key to end the range before, or leave blank for no end: ");
+            String to = scanner.nextLine();
+            end = to.isEmpty() ? null : Protocol.toBytes(to);
+        }
+
+        byte[] cursor = start;
+        while(cursor != null) {
+            int[] count = new int[1];
+            cursor = TCPScanOperation(cursor, end, SCAN_PAGE_SIZE, in, out, (key, value) -> {
+                logMessage("RESPONSE: " + Protocol.toString(key) + " = " + Protocol.toString(value));
+                count[0]++;
+            });
+            if(cursor == null) {
+                logMessage(count[0] + " keys, end of range");
+            } else {
+                logMessage(count[0] + " keys, enter 'n' for the next page or anything else to stop: ");
+                if(!scanner.nextLine().trim().equals("n")) {
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Performs a PUT, GET, DELETE operation over TCP using the original text protocol,
+     * which waits for the server to acknowledge each part of the request.
+     * @param key The Key of the object to perform an operation on.
+     * @param value The Value of the object to perform an operation on.
+     * @param type The type of operation to be performed - PUT, GET, DELETE.
+     * @param in The DataInputStream used to receive messages from the server.
+     * @param out The DataOutputStream used to send messages to the server.
+     * @throws IOException
+     */
+    public static void TCPTextOperation(String key, String value, String type, DataInputStream in, DataOutputStream out) throws IOException {
         // Inform server of incoming request type
         out.writeUTF(type);
         String data = in.readUTF();
@@ -110,29 +491,17 @@ public class Client {
     }
 
     /**
-     * Programmatically performs TCP GET, PUT, DELETE operations on the server.
-     * @param serverIP The IP Address or hostname of the server.
-     * @param port The port number the server is listening on.
+     * Programmatically performs TCP GET, PUT, DELETE operations on the server over an open connection.
+     * @param in The DataInputStream used to receive messages from the server.
+     * @param out The DataOutputStream used to send messages to the server.
      * @param key The key the server performs operations on.
      * @param value The value the server performs operations on.
      * @param type The type of operation performed by the server - GET, PUT, DELETE.
      */
-    public static void testTCP(String serverIP, int port, String key, String value, String type){
-        Socket s = null;
-
+    public static void testTCP(DataInputStream in, DataOutputStream out, String key, String value, String type){
         try {
-            // Connect to server
-            s = new Socket(serverIP, port);
-
-            // Input and Output streams for server communication
-            DataInputStream in = new DataInputStream(s.getInputStream());
-            DataOutputStream out = new DataOutputStream(s.getOutputStream());
-
             TCPOperation(key, value, type, in, out);
-            s.close();
 
-        } catch (UnknownHostException e) {
-            logMessage("ERROR: " + e.getMessage());
         } catch (IOException e) {
             logMessage("ERROR: " + e.getMessage());
         }
@@ -140,35 +509,180 @@ public class Client {
 
     /**
      * Calls the testTCP function to programmatically test PUT, GET, DELETE operations on the server.
-     * The test operations are hardcoded in this function.
-     * @param serverIP The IP Address or hostname of the server.
-     * @param port The port number the server is listening on.
+     * The test operations are hardcoded in this function and share a single connection.
+     * With the binary protocol, the test operations are pipelined as a single batch.
+     * @param in The DataInputStream used to receive messages from the server.
+     * @param out The DataOutputStream used to send messages to the server.
      */
-    public static void callTestTCP(String serverIP, int port){
+    public static void callTestTCP(DataInputStream in, DataOutputStream out){
+        if(useBinaryProtocol) {
+            callTestTCPBatch(in, out);
+            return;
+        }
+
         // Programmatically perform 5 PUT operations over TCP
-        testTCP(serverIP, port, "Key1", "Value1", "PUT");
-        testTCP(serverIP, port, "Key2", "Value2", "PUT");
-        testTCP(serverIP, port, "Key3", "Value3", "PUT");
-        testTCP(serverIP, port, "Key4", "Value4", "PUT");
-        testTCP(serverIP, port, "Key5", "Value5", "PUT");
+        testTCP(in, out, "Key1", "Value1", "PUT");
+        testTCP(in, out, "Key2", "Value2", "PUT");
+        testTCP(in, out, "Key3", "Value3", "PUT");
+        testTCP(in, out, "Key4", "Value4", "PUT");
+        testTCP(in, out, "Key5", "Value5", "PUT");
 
         // Programmatically perform 5 GET operations over TCP
-        testTCP(serverIP, port, "Key1", "Value1", "GET");
-        testTCP(serverIP, port, "Key2", "Value2", "GET");
-        testTCP(serverIP, port, "Key3", "Value3", "GET");
-        testTCP(serverIP, port, "Key4", "Value4", "GET");
-        testTCP(serverIP, port, "Key5", "Value5", "GET");
+        testTCP(in, out, "Key1", "Value1", "GET");
+        testTCP(in, out, "Key2", "Value2", "GET");
+        testTCP(in, out, "Key3", "Value3", "GET");
+        testTCP(in, out, "Key4", "Value4", "GET");
+        testTCP(in, out, "Key5", "Value5", "GET");
 
         // Programmatically perform 5 DELETE operations over TCP
-        testTCP(serverIP, port, "Key1", "Value1", "DELETE");
-        testTCP(serverIP, port, "Key2", "Value2", "DELETE");
-        testTCP(serverIP, port, "Key3", "Value3", "DELETE");
-        testTCP(serverIP, port, "Key4", "Value4", "DELETE");
-        testTCP(serverIP, port, "Key5", "Value5", "DELETE");
+        testTCP(in, out, "Key1", "Value1", "DELETE");
+        testTCP(in, out, "Key2", "Value2", "DELETE");
+        testTCP(in, out, "Key3", "Value3", "DELETE");
+        testTCP(in, out, "Key4", "Value4", "DELETE");
+        testTCP(in, out, "Key5", "Value5", "DELETE");
 
         // Create 2 additional objects to populate server
-        testTCP(serverIP, port, "Key1", "Value1", "PUT");
-        testTCP(serverIP, port, "Key2", "Value2", "PUT");
+        testTCP(in, out, "Key1", "Value1", "PUT");
+        testTCP(in, out, "Key2", "Value2", "PUT");
+    }
+
+    /**
+     * Programmatically performs the same PUT, GET, DELETE test operations as callTestTCP as one pipelined batch.
+     * @param in The DataInputStream used to receive messages from the server.
+     * @param out The DataOutputStream used to send messages to the server.
+     */
+    public static void callTestTCPBatch(DataInputStream in, DataOutputStream out){
+        List<Protocol.Request> requests = buildTestRequests();
+        try {
+            List<Protocol.Response> responses = TCPBatchOperation(requests, in, out);
+            for(int i = 0; i < responses.size(); i++) {
+                logMessage("RESPONSE: " + Protocol.describe(Protocol.toString(requests.get(i).key), responses.get(i)));
+            }
+        } catch (IOException e) {
+            logMessage("ERROR: " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return The test operations: 5 PUT, 5 GET, 5 DELETE, then 2 more PUT to populate the server.
+     */
+    private static List<Protocol.Request> buildTestRequests() {
+        List<Protocol.Request> requests = new ArrayList<>();
+        for(String type : new String[] {"PUT", "GET", "DELETE"}) {
+            for(int i = 1; i <= 5; i++) {
+                requests.add(buildRequest("Key" + i, "Value" + i, type));
+            }
+        }
+        // Create 2 additional objects to populate server
+        requests.add(buildRequest("Key1", "Value1", "PUT"));
+        requests.add(buildRequest("Key2", "Value2", "PUT"));
+        return requests;
+    }
+
+    /**
+     * Performs communication with several servers over TCP, storing each key on one of them chosen by
+     * consistent hashing. Always uses the binary protocol.
+     * @param endpoints The servers, each as <server_ip>:<port>.
+     */
+    public static void ShardedTCPClient(List<String> endpoints) {
+        try (ShardedClient shards = ShardedClient.connect(endpoints)) {
+            logMessage("Connected to " + endpoints.size() + " servers: " + String.join(", ", endpoints));
+
+            // Programmatically test operations, pipelined to every server at once
+            List<Protocol.Request> requests = buildTestRequests();
+            List<Protocol.Response> responses = shards.executeBatch(requests);
+            for(int i = 0; i < responses.size(); i++) {
+                String key = Protocol.toString(requests.get(i).key);
+                logMessage("RESPONSE: " + Protocol.describe(key, responses.get(i)) + " (" + shards.endpointFor(key) + ")");
+            }
+
+            Scanner scanner = new Scanner(System.in);
+
+            while(true) { // Keep performing operations until the user exits
+                // Choose type of operation
+                System.out.println("Enter '1' to perform PUT");
+                System.out.println("Enter '2' to perform GET");
+                System.out.println("Enter '3' to perform DELETE");
+                System.out.println("Enter '4' to exit");
+                System.out.println("Enter '5' to have every server take a snapshot");
+                System.out.println("Enter '6' to set the TTL of a key");
+                System.out.println("Enter '7' to show the TTL of a key");
+                System.out.println("Enter '8' to show the statistics of every server");
+
+                int selection = scanner.nextInt();
+                scanner.nextLine(); // deal with \n left by scanner.nextInt()
+
+                if(selection == 1) {
+                    logMessage("PUT operation selected");
+                    logMessage("Enter key to PUT: ");
+                    String key = scanner.nextLine();
+                    logMessage("Enter value to PUT: ");
+                    String value = scanner.nextLine();
+                    long ttl = readTTL(scanner);
+
+                    shardedOperation(shards, key, value, "PUT", ttl);
+
+                } else if(selection == 2) {
+                    logMessage("GET operation selected");
+                    logMessage("Enter key to GET: ");
+                    String key = scanner.nextLine();
+
+                    shardedOperation(shards, key, "", "GET", 0);
+
+                } else if(selection == 3) {
+                    logMessage("DELETE operation selected");
+                    logMessage("Enter key to DELETE: ");
+                    String key = scanner.nextLine();
+
+                    shardedOperation(shards, key, "", "DELETE", 0);
+
+                } else if(selection == 4) {
+                    break;
+
+                } else if(selection == 5 || selection == 8) {
+                    String type = selection == 5 ? "SNAPSHOT" : "STATS";
+                    logMessage(type + " operation selected");
+                    for(Map.Entry<String, Protocol.Response> entry : shards.broadcast(type).entrySet()) {
+                        logMessage("RESPONSE from " + entry.getKey() + ": " + Protocol.describe("", entry.getValue()));
+                    }
+
+                } else if(selection == 6) {
+                    logMessage("EXPIRE operation selected");
+                    logMessage("Enter key to EXPIRE: ");
+                    String key = scanner.nextLine();
+                    long ttl = readTTL(scanner);
+
+                    shardedOperation(shards, key, "", "EXPIRE", ttl);
+
+                } else if(selection == 7) {
+                    logMessage("TTL operation selected");
+                    logMessage("Enter key to show the TTL of: ");
+                    String key = scanner.nextLine();
+
+                    shardedOperation(shards, key, "", "TTL", 0);
+
+                } else { // Ask again if input doesn't match one of the options
+                    logMessage("ERROR: Invalid Input");
+                }
+            }
+        } catch (Exception e) {
+            logMessage("ERROR: " + e.getMessage());
+        }
+        logMessage("Connections to servers terminated");
+    }
+
+    /**
+     * Performs a PUT, GET, DELETE, EXPIRE, TTL operation on the server the key is stored on.
+     * @param shards The ShardedClient connected to every server.
+     * @param key The Key of the object to perform an operation on.
+     * @param value The Value of the object to perform an operation on.
+     * @param type The type of operation to be performed - PUT, GET, DELETE, EXPIRE, TTL.
+     * @param ttl Milliseconds until the key expires for PUT and EXPIRE, 0 to never expire.
+     * @throws IOException Throws exception if the connection to the server fails.
+     */
+    public static void shardedOperation(ShardedClient shards, String key, String value, String type, long ttl) throws IOException {
+        Protocol.Response response = shards.execute(buildRequest(key, value, type, ttl));
+        logMessage("RESPONSE: " + Protocol.describe(key, response) + " (" + shards.endpointFor(key) + ")");
     }
 
     /**
@@ -194,6 +708,9 @@ public class Client {
             System.out.println("Enter '1' to perform PUT");
             System.out.println("Enter '2' to perform GET");
             System.out.println("Enter '3' to perform DELETE");
+            System.out.println("Enter '6' to set the TTL of a key");
+            System.out.println("Enter '7' to show the TTL of a key");
+            System.out.println("Enter '8' to show server statistics");
 
             int selection = scanner.nextInt();
             scanner.nextLine(); // deal with \n left by scanner.nextInt()
@@ -204,8 +721,9 @@ public class Client {
                 String key = scanner.nextLine();
                 logMessage("Enter value to PUT: ");
                 String value = scanner.nextLine();
+                long ttl = readTTL(scanner);
 
-                UDPOperation(key, value, "PUT", host, port, s);
+                UDPOperation(key, value, "PUT", ttl, host, port, s);
 
             } else if(selection == 2) { // GET operation
                 logMessage("GET operation selected");
@@ -221,7 +739,26 @@ public class Client {
 
                 UDPOperation(key, "", "DELETE", host, port, s);
 
-            } else { // Rerun if input doesn't match '1', '2', or '3'
+            } else if(selection == 6) { // EXPIRE operation
+                logMessage("EXPIRE operation selected");
+                logMessage("Enter key to EXPIRE: ");
+                String key = scanner.nextLine();
+                long ttl = readTTL(scanner);
+
+                UDPOperation(key, "", "EXPIRE", ttl, host, port, s);
+
+            } else if(selection == 7) { // TTL operation
+                logMessage("TTL operation selected");
+                logMessage("Enter key to show the TTL of: ");
+                String key = scanner.nextLine();
+
+                UDPOperation(key, "", "TTL", 0, host, port, s);
+
+            } else if(selection == 8) { // STATS operation
+                logMessage("STATS operation selected");
+                UDPOperation("", "", "STATS", host, port, s);
+
+            } else { // Rerun if input doesn't match one of the options
                 logMessage("ERROR: Invalid Input");
                 UDPClient(serverIP, port);
 
@@ -243,6 +780,8 @@ public class Client {
 
     /**
      * Handles client-side PUT, GET, DELETE operations for UDP communication.
+     * Each operation is one self-contained binary protocol datagram tagged with a request ID, answered by one
+     * response datagram.
      * @param key The Key of the object to perform an operation on.
      * @param value The Value of the object to perform an operation on.
      * @param type The type of operation to be performed - PUT, GET, DELETE.
@@ -252,33 +791,195 @@ public class Client {
      * @throws IOException
      */
     public static void UDPOperation(String key, String value, String type, InetAddress host, int port, DatagramSocket s) throws IOException {
-        byte[] byteKey = key.getBytes();
-        byte[] byteVal = value.getBytes();
-        byte[] byteType = type.getBytes(); // Type of request
+        UDPOperation(key, value, type, 0, host, port, s);
+    }
 
-        // Inform server of incoming request type
-        DatagramPacket typeRequest = new DatagramPacket(byteType, byteType.length, host, port);
-        s.send(typeRequest); // Send request to server
+    /**
+     * Handles client-side PUT, GET, DELETE, EXPIRE, TTL operations for UDP communication, with a time to live.
+     * @param key The Key of the object to perform an operation on.
+     * @param value The Value of the object to perform an operation on.
+     * @param type The type of operation to be performed - PUT, GET, DELETE, EXPIRE, TTL.
+     * @param ttl Milliseconds until the key expires for PUT and EXPIRE, 0 to never expire.
+     * @param host The InetAddress corresponding to the server.
+     * @param port The port the server is listening on.
+     * @param s The DatagramSocket used to communicate with the server.
+     * @throws IOException
+     */
+    public static void UDPOperation(String key, String value, String type, long ttl, InetAddress host, int port, DatagramSocket s) throws IOException {
+        Protocol.Response response = UDPExchange(buildRequest(key, value, type, ttl), host, port, s);
+        logMessage("RESPONSE: " + Protocol.describe(key, response));
+    }
 
-        // Package Key into Datagram packet and send to server
-        DatagramPacket keyRequest = new DatagramPacket(byteKey, byteKey.length, host, port);
-        s.send(keyRequest);
+    /**
+     * Sends a binary protocol request datagram and waits for the response datagram carrying the same request ID.
+     * Responses whose request ID does not match are ignored until the socket times out.
+     * A request too large for a datagram, or whose response the server reports as too large for one, is sent
+     * over TCP to the same port instead.
+     * @param request The request to send.
+     * @param host The InetAddress corresponding to the server.
+     * @param port The port the server is listening on.
+     * @param s The DatagramSocket used to communicate with the server.
+     * @return The response to the request.
+     * @throws IOException Throws exception if the socket fails or times out.
+     */
+    public static Protocol.Response UDPExchange(Protocol.Request request, InetAddress host, int port, DatagramSocket s) throws IOException {
+        byte[] byteRequest = Protocol.encodeRequest(request);
+        if(byteRequest.length > Protocol.MAX_DATAGRAM_SIZE) {
+            logMessage("Request of " + byteRequest.length + " bytes does not fit a datagram, sending it over TCP");
+            return TCPExchange(request, host, port);
+        }
+        s.send(new DatagramPacket(byteRequest, byteRequest.length, host, port));
+
+        byte[] buffer = new byte[Protocol.MAX_DATAGRAM_SIZE];
+        while(true) {
+            DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+            s.receive(packet);
+            try {
+                Protocol.Response response = Protocol.decodeResponse(packet.getData(), 0, packet.getLength());
+                if(response.requestId == request.requestId && response.status == Protocol.STATUS_TOO_LARGE) {
+                    logMessage("Response does not fit a datagram, repeating the request over TCP");
+                    return TCPExchange(request, host, port);
+                }
+                if(response.requestId == request.requestId) {
+                    return response;
+                }
+                logMessage("ERROR: Ignoring response to stale request " + response.requestId);
+            } catch (ProtocolException e) {
+                logMessage("ERROR: Malformed response from server: " + e.getMessage());
+            }
+        }
+    }
 
-        if(type.equals("PUT")){
-            // Package Value into Datagram packet and send to server
-            DatagramPacket valRequest = new DatagramPacket(byteVal, byteVal.length, host, port);
-            s.send(valRequest);
+    /**
+     * Performs a single binary protocol request on a connection of its own, for requests redirected from UDP.
+     * @param request The request to send.
+     * @param host The InetAddress corresponding to the server.
+     * @param port The port the server is listening on over TCP.
+     * @return The response to the request.
+     * @throws IOException Throws exception if the server cannot be reached over TCP or the connection fails.
+     */
+    public static Protocol.Response TCPExchange(Protocol.Request request, InetAddress host, int port) throws IOException {
+        try(Socket socket = new Socket(host, port)) {
+            socket.setSoTimeout(10000);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            Protocol.writeRequest(out, request);
+            return Protocol.readResponse(in);
         }
+    }
 
-        // Receive response from server and print
-        byte[] buffer = new byte[1024];
-        DatagramPacket response = new DatagramPacket(buffer, buffer.length);
-        s.receive(response);
-        String responseMsg = new String(response.getData(), 0, response.getLength());
-        logMessage("RESPONSE: " + responseMsg);
+    /**
+     * Performs an MPUT, MGET, MDELETE operation over UDP as one request datagram and one response datagram.
+     * @param keys The Keys of the objects to perform the operation on.
+     * @param values The Values to PUT, one per key, or null for MGET and MDELETE.
+     * @param type The type of operation to be performed - MPUT, MGET, MDELETE.
+     * @param host The InetAddress corresponding to the server.
+     * @param port The port the server is listening on.
+     * @param s The DatagramSocket used to communicate with the server.
+     * @return The result for each key, in the same order as the keys.
+     * @throws IOException Throws exception if the socket fails, times out, or the server rejects the request.
+     */
+    public static List<Protocol.Response> UDPMultiKeyOperation(List<String> keys, List<String> values, String type, InetAddress host, int port, DatagramSocket s) throws IOException {
+        Protocol.Response response = UDPExchange(buildMultiKeyRequest(keys, values, type), host, port, s);
+        return multiKeyResults(keys, response);
+    }
+
+    /**
+     * Builds a binary protocol request with a fresh request ID.
+     * A GET accepts a compressed value, which is decompressed as the response is decoded, and a PUT value of at
+     * least compressMin bytes is sent compressed if that makes it smaller.
+     * @param key The Key of the object to perform an operation on.
+     * @param value The Value of the object to perform an operation on.
+     * @param type The type of operation to be performed - PUT, GET, DELETE.
+     * @return The request to send to the server.
+     */
+    public static Protocol.Request buildRequest(String key, String value, String type) {
+        byte opcode = Protocol.opcodeFor(type);
+        byte[] bytes = Protocol.toBytes(value);
+        if(opcode == Protocol.OP_GET) {
+            return new Protocol.Request(opcode, Protocol.FLAG_COMPRESSED, nextRequestId.incrementAndGet(),
+                    Protocol.toBytes(key), bytes);
+        }
+        byte[] compressed = opcode == Protocol.OP_PUT ? compress(bytes) : null;
+        if(compressed != null) {
+            return new Protocol.Request(opcode, Protocol.FLAG_COMPRESSED, nextRequestId.incrementAndGet(),
+                    Protocol.toBytes(key), compressed);
+        }
+        return new Protocol.Request(opcode, nextRequestId.incrementAndGet(), Protocol.toBytes(key), bytes);
+    }
+
+    /**
+     * Builds a binary protocol request with a fresh request ID and a time to live.
+     * A PUT with a TTL is sent as PUT_TTL, and EXPIRE carries the TTL in place of a value.
+     * @param key The Key of the object to perform an operation on.
+     * @param value The Value of the object to perform an operation on.
+     * @param type The type of operation to be performed - PUT, GET, DELETE, EXPIRE, TTL.
+     * @param ttl Milliseconds until the key expires for PUT and EXPIRE, 0 to never expire.
+     * @return The request to send to the server.
+     */
+    public static Protocol.Request buildRequest(String key, String value, String type, long ttl) {
+        if(type.equals("PUT") && ttl > 0) {
+            type = "PUT_TTL";
+        }
+        if(type.equals("PUT_TTL") || type.equals("EXPIRE")) {
+            byte[] bytes = Protocol.toBytes(value);
+            byte[] compressed = type.equals("PUT_TTL") ? compress(bytes) : null;
+            return new Protocol.Request(Protocol.opcodeFor(type), compressed != null ? Protocol.FLAG_COMPRESSED : 0,
+                    nextRequestId.incrementAndGet(), Protocol.toBytes(key),
+                    Protocol.encodeTTL(ttl, compressed != null ? compressed : bytes));
+        }
+        return buildRequest(key, value, type);
+    }
 
-        s.close(); // Close socket
+    /**
+     * @return The value compressed into an envelope, or null if it is sent as it is.
+     */
+    private static byte[] compress(byte[] value) {
+        return compressMin > 0 ? ValueCompression.compress(value, compressMin) : null;
+    }
 
+    /**
+     * Builds a binary protocol MPUT, MGET, MDELETE request with a fresh request ID.
+     * @param keys The Keys of the objects to perform the operation on.
+     * @param values The Values to PUT, one per key, or null for MGET and MDELETE.
+     * @param type The type of operation to be performed - MPUT, MGET, MDELETE.
+     * @return The request to send to the server.
+     */
+    public static Protocol.Request buildMultiKeyRequest(List<String> keys, List<String> values, String type) {
+        List<byte[]> byteKeys = new ArrayList<>(keys.size());
+        for(String key : keys) {
+            byteKeys.add(Protocol.toBytes(key));
+        }
+        byte[] byteValues = new byte[0];
+        if(values != null) {
+            List<byte[]> valueList = new ArrayList<>(values.size());
+            for(String value : values) {
+                valueList.add(Protocol.toBytes(value));
+            }
+            byteValues = Protocol.encodeList(valueList);
+        }
+        // Like a GET, an MGET accepts compressed values, which are decompressed as its results are decoded
+        byte opcode = Protocol.opcodeFor(type);
+        return new Protocol.Request(opcode, opcode == Protocol.OP_MGET ? Protocol.FLAG_COMPRESSED : 0,
+                nextRequestId.incrementAndGet(), Protocol.encodeList(byteKeys), byteValues);
+    }
+
+    /**
+     * Unpacks and logs the per-key results of a multi-key operation.
+     * @param keys The Keys the operation was performed on.
+     * @param response The response received from the server.
+     * @return The result for each key, in the same order as the keys.
+     * @throws ProtocolException Throws exception if the server rejected the request or the results are malformed.
+     */
+    private static List<Protocol.Response> multiKeyResults(List<String> keys, Protocol.Response response) throws ProtocolException {
+        if(response.status == Protocol.STATUS_ERROR) {
+            throw new ProtocolException(Protocol.describe("", response));
+        }
+        List<Protocol.Response> results = Protocol.decodeResults(response);
+        for(int i = 0; i < results.size() && i < keys.size(); i++) {
+            logMessage("RESPONSE: " + Protocol.describe(keys.get(i), results.get(i)));
+        }
+        return results;
     }
 
     /**
@@ -307,6 +1008,10 @@ public class Client {
             logMessage("ERROR: " + e.getMessage());
         } catch (IOException e) {
             logMessage("ERROR: " + e.getMessage());
+        } finally {
+            if(s != null) {
+                s.close(); // The socket belongs to this test operation
+            }
         }
     }
 
@@ -371,24 +1076,56 @@ public class Client {
         }
     }
 
+    /**
+     * Asks the user for a time to live in seconds.
+     * @param scanner The Scanner used for taking user input from System.in.
+     * @return The TTL in milliseconds, or 0 if left blank or invalid.
+     */
+    private static long readTTL(Scanner scanner) {
+        logMessage("Enter TTL in seconds, or leave blank to never expire: ");
+        String line = scanner.nextLine().trim();
+        if(line.isEmpty()) {
+            return 0;
+        }
+        try {
+            return Math.max(0, Long.parseLong(line) * 1000);
+        } catch (NumberFormatException e) {
+            logMessage("ERROR: Invalid TTL, the key will never expire");
+            return 0;
+        }
+    }
+
     /**
      * Gets current system time and prints Client output in MM-dd-yyyy HH:mm:ss.SSS format.
      * @param message The message to be printed.
      */
     public static void logMessage(String message) {
-        long currSystemTime = System.currentTimeMillis(); // Get current system time
-
-        // Convert system time to human-readable format
-        Date date = new Date(currSystemTime);
-        SimpleDateFormat SDF = new SimpleDateFormat("MM-dd-yyyy HH:mm:ss.SSS");
-        String time = SDF.format(date);
+        // Convert system time to human-readable format with the shared, thread-safe formatter
+        String time = TIME_FORMAT.format(Instant.ofEpochMilli(System.currentTimeMillis()));
 
         System.out.println(time + " -- " + message);
     }
 
+    /**
+     * Parses optional '--name value' arguments following <server_ip> and <port>.
+     * @param args The command line arguments.
+     * @return The Map of option names to values.
+     */
+    public static Map<String, String> parseOptions(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for(int i = 2; i < args.length; i++) {
+            if(args[i].startsWith("--") && i + 1 < args.length) {
+                options.put(args[i].substring(2), args[++i]);
+            } else {
+                logMessage("ERROR: Ignoring unrecognized argument " + args[i]);
+            }
+        }
+        return options;
+    }
+
     public static void main(String[] args) throws Exception {
-        if (args.length != 2){ // Check that 2 args are provided
-            logMessage("ERROR: Proper input format must be 'java Client.java <server_ip> <port>'");
+        if (args.length < 2){ // Check that at least 2 args are provided
+            logMessage("ERROR: Proper input format must be 'java Client.java <server_ip> <port> [--servers <server_ip>:<port>,...] [--wire binary|text] [--near-cache entries (servers with --listen tcp only)] [--replicas <server_ip>:<port>,...] [--compress <min bytes>] [--bench tcp|udp ...]'");
             return;
         }
 
@@ -403,6 +1140,63 @@ public class Client {
             logMessage("ERROR: <server_ip> must be type String and <port> must be type int");
         }
 
+        Map<String, String> options = parseOptions(args);
+
+        // Binary protocol unless the text protocol is requested
+        useBinaryProtocol = !options.getOrDefault("wire", "binary").equals("text");
+        logMessage((useBinaryProtocol ? "Binary" : "Text") + " protocol selected");
+
+        try {
+            nearCacheEntries = Integer.parseInt(options.getOrDefault("near-cache", "0"));
+        } catch (NumberFormatException e) {
+            logMessage("ERROR: --near-cache must be a number of entries");
+        }
+        try {
+            compressMin = Integer.parseInt(options.getOrDefault("compress", "0"));
+        } catch (NumberFormatException e) {
+            logMessage("ERROR: --compress must be the smallest value size to compress, in bytes");
+        }
+
+        if(options.containsKey("replicas")) {
+            for(String endpoint : options.get("replicas").split(",")) {
+                if(!endpoint.isBlank()) {
+                    replicas.add(endpoint.trim());
+                }
+            }
+        }
+
+        if(nearCacheEntries > 0 && !useBinaryProtocol) {
+            // Only binary GETs are tracked by the server
+            logMessage("ERROR: The near cache requires the binary protocol and is disabled");
+            nearCacheEntries = 0;
+        }
+
+        if(options.containsKey("servers")) {
+            // Shard keys across <server_ip> <port> and every additional server, over TCP
+            List<String> endpoints = new ArrayList<>();
+            endpoints.add(serverIP + ":" + port);
+            for(String endpoint : options.get("servers").split(",")) {
+                if(!endpoint.isBlank()) {
+                    endpoints.add(endpoint.trim());
+                }
+            }
+            if(nearCacheEntries > 0 || options.containsKey("bench") || !useBinaryProtocol || !replicas.isEmpty()) {
+                logMessage("ERROR: --servers always uses the binary protocol over TCP; ignoring --wire, --near-cache, --replicas and --bench");
+            }
+            ShardedTCPClient(endpoints);
+            return;
+        }
+
+        if(options.containsKey("bench")) {
+            // Measure the server under load instead of running the test operations and prompting
+            try {
+                LoadGenerator.fromOptions(options.get("bench"), serverIP, port, options).run();
+            } catch (IllegalArgumentException | IOException e) {
+                logMessage("ERROR: " + e.getMessage());
+            }
+            return;
+        }
+
         // Create scanner for accepting user input
         Scanner scanner = new Scanner(System.in);
         askForCommType(scanner, serverIP, port);
@@ -0,0 +1,125 @@
+import java.net.ProtocolException;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
+import java.util.function.BiPredicate;
+
+/**
+ * Storage engine compressing values on their way into another engine, so large repetitive values such as JSON
+ * take a fraction of the memory, write-ahead log and snapshot space, and of the bytes sent to clients that can
+ * decompress them.
+ *
+ * Values at least minSize bytes long are stored as ValueCompression envelopes when that makes them smaller;
+ * smaller values and values that do not compress are stored as they are. Reads return the original value, or,
+ * through getStored, the value exactly as stored, so the server can send a compressed value without touching it.
+ * put and remove decompress the value they replace to return it; set and delete, which the server uses, do not.
+ */
+public class CompressingStorageEngine implements StorageEngine {
+
+    private final StorageEngine store;
+    private final int minSize;
+
+    /**
+     * @param store The StorageEngine holding the values as stored.
+     * @param minSize The smallest value to compress, or 0 to only store values already compressed by clients.
+     */
+    public CompressingStorageEngine(StorageEngine store, int minSize) {
+        this.store = store;
+        this.minSize = minSize;
+    }
+
+    @Override
+    public byte[] get(byte[] key) {
+        return decode(store.get(key));
+    }
+
+    /**
+     * Looks up the value stored for a key without decompressing it.
+     * @param key The key to look up.
+     * @return The stored value, a ValueCompression envelope or the raw value, or null if the key cannot be found.
+     */
+    public byte[] getStored(byte[] key) {
+        return store.get(key);
+    }
+
+    @Override
+    public byte[] put(byte[] key, byte[] value) {
+        return decode(store.put(key, ValueCompression.encode(value, minSize)));
+    }
+
+    @Override
+    public byte[] put(byte[] key, byte[] value, long ttl) {
+        return decode(store.put(key, ValueCompression.encode(value, minSize), ttl));
+    }
+
+    /**
+     * Stores a value a client has already compressed, as it is.
+     * @param key The key to store.
+     * @param envelope The ValueCompression envelope of the value.
+     * @param ttl Milliseconds until the key expires, 0 to never expire.
+     * @throws ProtocolException Throws exception if the envelope is malformed or does not decompress to its length.
+     */
+    public void putStored(byte[] key, byte[] envelope, long ttl) throws ProtocolException {
+        ValueCompression.check(envelope);
+        store.set(key, envelope, ttl);
+    }
+
+    @Override
+    public byte[] remove(byte[] key) {
+        return decode(store.remove(key));
+    }
+
+    @Override
+    public void set(byte[] key, byte[] value, long ttl) {
+        // The previous value is dropped as stored, without decompressing it
+        store.set(key, ValueCompression.encode(value, minSize), ttl);
+    }
+
+    @Override
+    public boolean delete(byte[] key) {
+        return store.remove(key) != null;
+    }
+
+    @Override
+    public boolean expire(byte[] key, long ttl) {
+        return store.expire(key, ttl);
+    }
+
+    @Override
+    public long ttl(byte[] key) {
+        return store.ttl(key);
+    }
+
+    @Override
+    public int size() {
+        return store.size();
+    }
+
+    @Override
+    public void forEach(BiConsumer<byte[], byte[]> action) {
+        store.forEach((key, stored) -> action.accept(key, decode(stored)));
+    }
+
+    @Override
+    public void scan(byte[] from, byte[] to, BiPredicate<byte[], byte[]> action) {
+        store.scan(from, to, (key, stored) -> action.test(key, decode(stored)));
+    }
+
+    @Override
+    public void awaitDurable() {
+        store.awaitDurable();
+    }
+
+    @Override
+    public CompletableFuture<Void> whenDurable() {
+        return store.whenDurable();
+    }
+
+    private static byte[] decode(byte[] stored) {
+        try {
+            return ValueCompression.decode(stored);
+        } catch (ProtocolException e) {
+            // Envelopes are checked before they are stored, so this is data corrupted in storage
+            throw new IllegalStateException("Stored value cannot be decompressed: " + e.getMessage(), e);
+        }
+    }
+}
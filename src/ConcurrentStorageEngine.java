@@ -0,0 +1,50 @@
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+
+/**
+ * Storage engine for many cores, backed by a ConcurrentHashMap.
+ * Reads never lock. Writes CAS into empty bins and otherwise lock only the bin holding the key, so writers
+ * to different keys rarely contend. Every operation is a single lookup, so a concurrent writer can never
+ * change a key between a check and the operation that depends on it.
+ */
+public class ConcurrentStorageEngine implements StorageEngine {
+
+    private final ConcurrentHashMap<ByteKey, byte[]> map;
+
+    public ConcurrentStorageEngine() {
+        this(1024);
+    }
+
+    /**
+     * @param initialCapacity The number of keys to size the table for up front, avoiding early resizes.
+     */
+    public ConcurrentStorageEngine(int initialCapacity) {
+        this.map = new ConcurrentHashMap<>(initialCapacity);
+    }
+
+    @Override
+    public byte[] get(byte[] key) {
+        return map.get(new ByteKey(key));
+    }
+
+    @Override
+    public byte[] put(byte[] key, byte[] value) {
+        return map.put(new ByteKey(key), value);
+    }
+
+    @Override
+    public byte[] remove(byte[] key) {
+        return map.remove(new ByteKey(key));
+    }
+
+    @Override
+    public int size() {
+        return map.size();
+    }
+
+    @Override
+    public void forEach(BiConsumer<byte[], byte[]> action) {
+        // Weakly consistent traversal; never blocks writers
+        map.forEach((key, value) -> action.accept(key.bytes(), value));
+    }
+}
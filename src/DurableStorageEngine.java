@@ -0,0 +1,90 @@
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
+
+/**
+ * Storage engine that records every PUT and DELETE it applies to another engine in a WriteAheadLog,
+ * so the data survives restarts. Reads go straight to the wrapped engine.
+ *
+ * A write is applied as soon as it is logged, but is only durable once its group has been fsynced; handlers call
+ * awaitDurable before acknowledging, which waits for the last write made on the calling thread. Handlers that
+ * process a batch of pipelined requests therefore wait once for the whole batch; event loops, which must not
+ * block, hold their acknowledgements until whenDurable completes instead.
+ */
+public class DurableStorageEngine implements StorageEngine {
+
+    // Writes to the same key are logged and applied under the same lock, so the log replays them in store order
+    private static final int STRIPES = 64;
+
+    private final StorageEngine store;
+    private final WriteAheadLog wal;
+    private final Object[] stripes = new Object[STRIPES];
+    private final ThreadLocal<long[]> lastWrite = ThreadLocal.withInitial(() -> new long[1]);
+
+    /**
+     * @param store The StorageEngine holding the data, already populated by replaying the log.
+     * @param wal The WriteAheadLog every write is recorded in.
+     */
+    public DurableStorageEngine(StorageEngine store, WriteAheadLog wal) {
+        this.store = store;
+        this.wal = wal;
+        for(int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Object();
+        }
+    }
+
+    @Override
+    public byte[] get(byte[] key) {
+        return store.get(key);
+    }
+
+    @Override
+    public byte[] put(byte[] key, byte[] value) {
+        synchronized(stripeFor(key)) {
+            // Applied before it is logged, so a snapshot that misses the write always finds it in a newer segment
+            byte[] previous = store.put(key, value);
+            lastWrite.get()[0] = wal.append(WriteAheadLog.RECORD_PUT, key, value);
+            return previous;
+        }
+    }
+
+    @Override
+    public byte[] remove(byte[] key) {
+        synchronized(stripeFor(key)) {
+            byte[] previous = store.remove(key);
+            if(previous != null) { // Nothing to log if the key was not there
+                lastWrite.get()[0] = wal.append(WriteAheadLog.RECORD_DELETE, key, new byte[0]);
+            }
+            return previous;
+        }
+    }
+
+    @Override
+    public int size() {
+        return store.size();
+    }
+
+    @Override
+    public void forEach(BiConsumer<byte[], byte[]> action) {
+        store.forEach(action);
+    }
+
+    @Override
+    public void awaitDurable() {
+        wal.awaitDurable(lastWrite.get()[0]);
+    }
+
+    @Override
+    public CompletableFuture<Void> whenDurable() {
+        // An event loop thread writes for many connections; a later batch without writes has nothing to wait for
+        long[] last = lastWrite.get();
+        long seq = last[0];
+        last[0] = 0;
+        return wal.whenDurable(seq);
+    }
+
+    private Object stripeFor(byte[] key) {
+        int h = Arrays.hashCode(key);
+        return stripes[(h ^ (h >>> 16)) & (STRIPES - 1)];
+    }
+}
@@ -0,0 +1,303 @@
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BiConsumer;
+import java.util.function.BiPredicate;
+
+/**
+ * Storage engine that bounds another engine to a maximum size, evicting keys chosen by an EvictionPolicy
+ * once the limit is reached, so the server can run as a cache with a predictable footprint.
+ * Size is measured as the approximate bytes of each key and value plus a fixed per-entry overhead, and/or as a
+ * number of entries.
+ *
+ * Request threads never run the policy or evict. They only record what they did: writes and removals in a
+ * queue that is never dropped, reads in small lock-free ring buffers that simply skip a read when full or when
+ * another thread is adding to the same buffer at that moment. A single
+ * maintenance thread replays these events into the policy and evicts until the store is back under its limit,
+ * so the store may briefly run over the limit by the writes of one maintenance pass.
+ */
+public class EvictingStorageEngine implements StorageEngine {
+
+    // Approximate bytes of bookkeeping per entry on top of its key and value
+    private static final int ENTRY_OVERHEAD = 64;
+
+    private static final int READ_BUFFERS = 8;
+    private static final int READ_BUFFER_SIZE = 4096;
+    private static final int STRIPES = 64;
+
+    private final StorageEngine store;
+    private final EvictionPolicy policy;
+    private final long maxBytes;
+    private final long maxEntries;
+    private final Object[] stripes = new Object[STRIPES];
+
+    private final Queue<WriteEvent> writes = new ConcurrentLinkedQueue<>();
+    // Number of events per key queued in writes and not yet replayed, so a key written since the policy chose it
+    // is not evicted
+    private final ConcurrentHashMap<ByteKey, Integer> pendingWrites = new ConcurrentHashMap<>();
+    private final ReadBuffer[] reads = new ReadBuffer[READ_BUFFERS];
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * A write (with the weight of the new entry) or a removal (weight -1) to replay into the policy.
+     */
+    private static final class WriteEvent {
+        final ByteKey key;
+        final int weight;
+
+        WriteEvent(ByteKey key, int weight) {
+            this.key = key;
+            this.weight = weight;
+        }
+    }
+
+    /**
+     * Ring buffer of read keys that any thread may add to and only the maintenance thread drains. Adding claims a
+     * slot with a single compare-and-set and gives up rather than retry or wait, so a read never blocks.
+     */
+    private static final class ReadBuffer {
+        private final AtomicReferenceArray<ByteKey> slots = new AtomicReferenceArray<>(READ_BUFFER_SIZE);
+        private final AtomicLong tail = new AtomicLong(); // Slots claimed by adding threads
+        private final AtomicLong head = new AtomicLong(); // Slots drained, only advanced by the maintenance thread
+
+        /**
+         * @return Whether the key was added, false if it was dropped.
+         */
+        boolean offer(ByteKey key) {
+            long t = tail.get();
+            if(t - head.get() >= READ_BUFFER_SIZE || !tail.compareAndSet(t, t + 1)) {
+                return false;
+            }
+            slots.lazySet((int) t & (READ_BUFFER_SIZE - 1), key);
+            return true;
+        }
+
+        /**
+         * Passes every added key to the policy.
+         * @return Whether any key was drained.
+         */
+        boolean drainTo(EvictionPolicy policy) {
+            long h = head.get();
+            long t = tail.get();
+            long start = h;
+            while(h < t) {
+                int index = (int) h & (READ_BUFFER_SIZE - 1);
+                ByteKey key = slots.get(index);
+                if(key == null) {
+                    // Claimed but not yet written; picked up on the next drain
+                    break;
+                }
+                slots.lazySet(index, null);
+                policy.recordAccess(key);
+                h++;
+            }
+            head.lazySet(h);
+            return h != start;
+        }
+    }
+
+    /**
+     * Wraps an engine, tracking the keys it already holds, and starts the maintenance thread.
+     * @param store The StorageEngine holding the data.
+     * @param policy The EvictionPolicy choosing which keys to evict.
+     * @param maxBytes The approximate size in bytes the store is limited to, 0 for no limit.
+     * @param maxEntries The number of entries the store is limited to, 0 for no limit.
+     */
+    public EvictingStorageEngine(StorageEngine store, EvictionPolicy policy, long maxBytes, long maxEntries) {
+        this.store = store;
+        this.policy = policy;
+        this.maxBytes = maxBytes;
+        this.maxEntries = maxEntries;
+        for(int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Object();
+        }
+        for(int i = 0; i < READ_BUFFERS; i++) {
+            reads[i] = new ReadBuffer();
+        }
+
+        // Keys restored from a snapshot or the write-ahead log count towards the limit too
+        store.forEach((key, value) -> policy.recordWrite(new ByteKey(key), weigh(key, value)));
+
+        Thread t = new Thread(this::maintain, "eviction");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * Creates the EvictionPolicy for a policy name.
+     * @param name The policy - lru, tinylfu.
+     * @param maxBytes The approximate size in bytes the store is limited to, 0 for no limit.
+     * @param maxEntries The number of entries the store is limited to, 0 for no limit.
+     * @return The EvictionPolicy, or null if the name is unknown.
+     */
+    public static EvictionPolicy createPolicy(String name, long maxBytes, long maxEntries) {
+        if(name.equals("lru")) {
+            return new LruPolicy();
+        } else if(name.equals("tinylfu")) {
+            long capacity = maxBytes > 0 ? maxBytes : maxEntries;
+            long expectedEntries = maxEntries > 0 ? maxEntries : maxBytes / (ENTRY_OVERHEAD + 64);
+            return new TinyLfuPolicy(capacity, expectedEntries);
+        }
+        return null;
+    }
+
+    @Override
+    public byte[] get(byte[] key) {
+        byte[] value = store.get(key);
+        if(value != null) {
+            // Lossy: a dropped read only makes the policy slightly less accurate
+            reads[(Thread.currentThread().hashCode() & 0x7fffffff) % READ_BUFFERS].offer(new ByteKey(key));
+        }
+        return value;
+    }
+
+    @Override
+    public byte[] put(byte[] key, byte[] value) {
+        synchronized(stripeFor(key)) {
+            // Queued under the key's lock so the policy sees writes to a key in the order the store applied them
+            byte[] previous = store.put(key, value);
+            queueWrite(new WriteEvent(new ByteKey(key), weigh(key, value)));
+            return previous;
+        }
+    }
+
+    @Override
+    public byte[] remove(byte[] key) {
+        synchronized(stripeFor(key)) {
+            byte[] previous = store.remove(key);
+            if(previous != null) {
+                queueWrite(new WriteEvent(new ByteKey(key), -1));
+            }
+            return previous;
+        }
+    }
+
+    @Override
+    public int size() {
+        return store.size();
+    }
+
+    @Override
+    public void forEach(BiConsumer<byte[], byte[]> action) {
+        store.forEach(action);
+    }
+
+    @Override
+    public void scan(byte[] from, byte[] to, BiPredicate<byte[], byte[]> action) {
+        store.scan(from, to, action);
+    }
+
+    @Override
+    public void awaitDurable() {
+        store.awaitDurable();
+    }
+
+    @Override
+    public CompletableFuture<Void> whenDurable() {
+        return store.whenDurable();
+    }
+
+    /**
+     * @return The number of keys evicted since the server started.
+     */
+    public long evictionCount() {
+        return evictions.get();
+    }
+
+    /**
+     * Replays recorded events into the policy and evicts while the store is over its limit, pausing briefly
+     * whenever there is nothing to do.
+     */
+    private void maintain() {
+        long lastReport = System.currentTimeMillis();
+        long reported = 0;
+        while(true) {
+            try {
+                boolean worked = drain();
+                while(overLimit()) {
+                    ByteKey victim = policy.evict();
+                    if(victim == null) {
+                        break;
+                    }
+                    worked = true;
+                    synchronized(stripeFor(victim.bytes())) {
+                        // Written or removed since the policy last heard of it: the queued event puts it back in
+                        // the policy as it is now, so leave it to be chosen again
+                        if(pendingWrites.containsKey(victim)) {
+                            drain();
+                            continue;
+                        }
+                        store.remove(victim.bytes());
+                    }
+                    evictions.incrementAndGet();
+                    // Keep the policy current, so the next victim is chosen knowing of every write so far
+                    drain();
+                }
+
+                long now = System.currentTimeMillis();
+                if(now - lastReport >= 10000 && evictions.get() != reported) {
+                    Server.logMessage("Evicted " + (evictions.get() - reported) + " keys; " + policy.entries() + " keys" +
+                            (maxBytes > 0 ? " using about " + policy.weight() / 1024 + "KB" : "") + " left");
+                    reported = evictions.get();
+                    lastReport = now;
+                }
+                if(!worked) {
+                    LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+                }
+            } catch (RuntimeException e) {
+                Server.logMessage("Eviction error: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * @return Whether any events were replayed.
+     */
+    private boolean drain() {
+        boolean drained = false;
+        WriteEvent event;
+        while((event = writes.poll()) != null) {
+            pendingWrites.computeIfPresent(event.key, (key, count) -> count == 1 ? null : count - 1);
+            if(event.weight < 0) {
+                policy.recordRemove(event.key);
+            } else {
+                policy.recordWrite(event.key, event.weight);
+            }
+            drained = true;
+        }
+        for(ReadBuffer buffer : reads) {
+            drained |= buffer.drainTo(policy);
+        }
+        return drained;
+    }
+
+    /**
+     * Queues a write or removal for the policy; called under the key's stripe lock.
+     */
+    private void queueWrite(WriteEvent event) {
+        pendingWrites.merge(event.key, 1, Integer::sum);
+        writes.add(event);
+    }
+
+    private boolean overLimit() {
+        return (maxBytes > 0 && policy.weight() > maxBytes) || (maxEntries > 0 && policy.entries() > maxEntries);
+    }
+
+    /**
+     * @return The weight of an entry: its approximate size in bytes when limited by memory, otherwise 1.
+     */
+    private int weigh(byte[] key, byte[] value) {
+        return maxBytes > 0 ? ENTRY_OVERHEAD + key.length + value.length : 1;
+    }
+
+    private Object stripeFor(byte[] key) {
+        int h = Arrays.hashCode(key);
+        return stripes[(h ^ (h >>> 16)) & (STRIPES - 1)];
+    }
+}
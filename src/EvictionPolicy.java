@@ -0,0 +1,42 @@
+/**
+ * Decides which key an EvictingStorageEngine removes next once the store is over its limit.
+ * Each key is tracked with a weight, its approximate size in bytes or 1 when only entries are counted.
+ * Policies are only ever called from the engine's maintenance thread, so they need no locking.
+ */
+public interface EvictionPolicy {
+
+    /**
+     * Records a read of a key.
+     * @param key The key that was read.
+     */
+    void recordAccess(ByteKey key);
+
+    /**
+     * Records a key being stored or overwritten.
+     * @param key The key that was written.
+     * @param weight The weight of the key and its new value.
+     */
+    void recordWrite(ByteKey key, int weight);
+
+    /**
+     * Records a key being removed from the store.
+     * @param key The key that was removed.
+     */
+    void recordRemove(ByteKey key);
+
+    /**
+     * Chooses the next key to evict and stops tracking it.
+     * @return The key to remove from the store, or null if no keys are tracked.
+     */
+    ByteKey evict();
+
+    /**
+     * @return The total weight of the tracked keys.
+     */
+    long weight();
+
+    /**
+     * @return The number of tracked keys.
+     */
+    int entries();
+}
@@ -0,0 +1,238 @@
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
+import java.util.function.BiPredicate;
+
+/**
+ * Storage engine adding per-key expiration to another engine.
+ * A value with a TTL is stored in an envelope holding its deadline, so deadlines are kept by the write-ahead log and
+ * snapshots like any other data and survive restarts:
+ *
+ *   envelope: MAGIC(2) DEADLINE(8) VALUE
+ *
+ * DEADLINE is in epoch milliseconds. Every other value is stored as it is and read back without a copy, so keys
+ * without a TTL cost nothing extra and data written before expiration existed reads back unchanged. A value that
+ * happens to start with MAGIC is stored in an envelope with no deadline, so any stored value starting with MAGIC is
+ * an envelope and every other value is raw.
+ *
+ * Expired keys are removed lazily, when a read finds them past their deadline, and actively by a TimingWheel
+ * that removes each key at its deadline without scanning the store.
+ */
+public class ExpiringStorageEngine implements StorageEngine {
+
+    private static final byte MAGIC_0 = (byte) 0xB7;
+    private static final byte MAGIC_1 = 'T';
+    private static final int HEADER_SIZE = 10; // MAGIC, DEADLINE
+    private static final long NO_DEADLINE = 0;
+
+    // Writes to the same key, including removal of expired keys, are serialized so a key re-written just as its
+    // deadline passes is never removed by mistake
+    private static final int STRIPES = 64;
+
+    private final StorageEngine store;
+    private final TimingWheel wheel;
+    private final Object[] stripes = new Object[STRIPES];
+
+    /**
+     * Wraps an engine, scheduling the deadlines of the keys it already holds.
+     * @param store The StorageEngine holding the values and their deadlines.
+     * @param tickMillis Milliseconds per timing wheel tick; keys are removed at most one tick after their deadline.
+     */
+    public ExpiringStorageEngine(StorageEngine store, long tickMillis) {
+        this.store = store;
+        this.wheel = new TimingWheel(tickMillis, this::expireIfDue);
+        for(int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Object();
+        }
+
+        // Keys restored from a snapshot or the write-ahead log keep their deadlines
+        long[] scheduled = new long[1];
+        store.forEach((key, stored) -> {
+            long deadline = deadline(stored);
+            if(deadline != NO_DEADLINE) {
+                wheel.schedule(key, deadline);
+                scheduled[0]++;
+            }
+        });
+        if(scheduled[0] > 0) {
+            Server.logMessage("Scheduled expiration of " + scheduled[0] + " restored keys");
+        }
+        wheel.start();
+    }
+
+    @Override
+    public byte[] get(byte[] key) {
+        byte[] stored = store.get(key);
+        if(stored == null) {
+            return null;
+        }
+        if(isExpired(stored, System.currentTimeMillis())) {
+            expireIfDue(key);
+            return null;
+        }
+        return valueOf(stored);
+    }
+
+    @Override
+    public byte[] put(byte[] key, byte[] value) {
+        return put(key, value, 0);
+    }
+
+    @Override
+    public byte[] put(byte[] key, byte[] value, long ttl) {
+        long now = System.currentTimeMillis();
+        long deadline = deadlineFor(now, ttl);
+        byte[] previous;
+        synchronized(stripeFor(key)) {
+            previous = store.put(key, encode(deadline, value));
+        }
+        if(deadline != NO_DEADLINE) {
+            wheel.schedule(key, deadline);
+        }
+        return live(previous, now);
+    }
+
+    @Override
+    public byte[] remove(byte[] key) {
+        byte[] previous;
+        synchronized(stripeFor(key)) {
+            previous = store.remove(key);
+        }
+        return live(previous, System.currentTimeMillis());
+    }
+
+    @Override
+    public boolean expire(byte[] key, long ttl) {
+        long now = System.currentTimeMillis();
+        long deadline = deadlineFor(now, ttl);
+        synchronized(stripeFor(key)) {
+            byte[] stored = store.get(key);
+            if(stored == null || isExpired(stored, now)) {
+                return false;
+            }
+            store.put(key, encode(deadline, valueOf(stored)));
+        }
+        if(deadline != NO_DEADLINE) {
+            wheel.schedule(key, deadline);
+        }
+        return true;
+    }
+
+    @Override
+    public long ttl(byte[] key) {
+        byte[] stored = store.get(key);
+        long now = System.currentTimeMillis();
+        if(stored == null || isExpired(stored, now)) {
+            return -2;
+        }
+        long deadline = deadline(stored);
+        return deadline == NO_DEADLINE ? -1 : deadline - now;
+    }
+
+    @Override
+    public int size() {
+        return store.size(); // Includes expired keys not removed yet
+    }
+
+    @Override
+    public void forEach(BiConsumer<byte[], byte[]> action) {
+        long now = System.currentTimeMillis();
+        store.forEach((key, stored) -> {
+            if(!isExpired(stored, now)) {
+                action.accept(key, valueOf(stored));
+            }
+        });
+    }
+
+    @Override
+    public void scan(byte[] from, byte[] to, BiPredicate<byte[], byte[]> action) {
+        long now = System.currentTimeMillis();
+        // Expired keys not removed yet are skipped, and do not end the scan
+        store.scan(from, to, (key, stored) -> isExpired(stored, now) ||
+                action.test(key, valueOf(stored)));
+    }
+
+    @Override
+    public void awaitDurable() {
+        store.awaitDurable();
+    }
+
+    @Override
+    public CompletableFuture<Void> whenDurable() {
+        return store.whenDurable();
+    }
+
+    /**
+     * Removes a key if its deadline has passed. Called by the timing wheel, which may fire for deadlines that
+     * have since been moved, and by reads that find an expired key.
+     */
+    private void expireIfDue(byte[] key) {
+        synchronized(stripeFor(key)) {
+            byte[] stored = store.get(key);
+            if(stored != null && isExpired(stored, System.currentTimeMillis())) {
+                store.remove(key);
+                Server.logDebug("Key {} expired", key);
+            }
+        }
+    }
+
+    /**
+     * @return The value part of a stored value, or null if there is none or it has expired.
+     */
+    private static byte[] live(byte[] stored, long now) {
+        if(stored == null || isExpired(stored, now)) {
+            return null;
+        }
+        return valueOf(stored);
+    }
+
+    /**
+     * @return The deadline ttl milliseconds from now, or NO_DEADLINE for no TTL or one too large to reach.
+     */
+    private static long deadlineFor(long now, long ttl) {
+        if(ttl <= 0 || ttl > Long.MAX_VALUE - now) {
+            return NO_DEADLINE;
+        }
+        return now + ttl;
+    }
+
+    private static boolean isExpired(byte[] stored, long now) {
+        long deadline = deadline(stored);
+        return deadline != NO_DEADLINE && deadline <= now;
+    }
+
+    private static boolean isEnvelope(byte[] stored) {
+        return stored.length >= HEADER_SIZE && stored[0] == MAGIC_0 && stored[1] == MAGIC_1;
+    }
+
+    private static long deadline(byte[] stored) {
+        return isEnvelope(stored) ? ByteBuffer.wrap(stored).getLong(2) : NO_DEADLINE;
+    }
+
+    /**
+     * @return The value part of a stored value: the value itself if it is raw, else a copy of the envelope's value.
+     */
+    private static byte[] valueOf(byte[] stored) {
+        return isEnvelope(stored) ? Arrays.copyOfRange(stored, HEADER_SIZE, stored.length) : stored;
+    }
+
+    /**
+     * @return The value as stored: as it is when it has no deadline and cannot be mistaken for an envelope,
+     * otherwise in an envelope.
+     */
+    private static byte[] encode(long deadline, byte[] value) {
+        if(deadline == NO_DEADLINE && !isEnvelope(value)) {
+            return value;
+        }
+        byte[] stored = new byte[HEADER_SIZE + value.length];
+        ByteBuffer.wrap(stored).put(MAGIC_0).put(MAGIC_1).putLong(deadline);
+        System.arraycopy(value, 0, stored, HEADER_SIZE, value.length);
+        return stored;
+    }
+
+    private Object stripeFor(byte[] key) {
+        int h = Arrays.hashCode(key);
+        return stripes[(h ^ (h >>> 16)) & (STRIPES - 1)];
+    }
+}
@@ -0,0 +1,51 @@
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+/**
+ * The original storage engine: a plain HashMap, made safe to share by locking it for every operation.
+ * Kept as a baseline; every operation on every key is serialized on a single lock.
+ */
+public class HashMapStorageEngine implements StorageEngine {
+
+    private final Map<ByteKey, byte[]> hMap = new HashMap<>();
+
+    @Override
+    public synchronized byte[] get(byte[] key) {
+        return hMap.get(new ByteKey(key));
+    }
+
+    @Override
+    public synchronized byte[] put(byte[] key, byte[] value) {
+        return hMap.put(new ByteKey(key), value);
+    }
+
+    @Override
+    public synchronized byte[] remove(byte[] key) {
+        return hMap.remove(new ByteKey(key));
+    }
+
+    @Override
+    public synchronized int size() {
+        return hMap.size();
+    }
+
+    @Override
+    public void forEach(BiConsumer<byte[], byte[]> action) {
+        // Copy the references under the lock, so the action runs without blocking other operations
+        ByteKey[] keys;
+        byte[][] values;
+        synchronized(this) {
+            keys = new ByteKey[hMap.size()];
+            values = new byte[hMap.size()][];
+            int i = 0;
+            for(Map.Entry<ByteKey, byte[]> entry : hMap.entrySet()) {
+                keys[i] = entry.getKey();
+                values[i++] = entry.getValue();
+            }
+        }
+        for(int i = 0; i < keys.length; i++) {
+            action.accept(keys[i].bytes(), values[i]);
+        }
+    }
+}
@@ -0,0 +1,134 @@
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+
+/**
+ * Fixed-size latency histogram in the style of HdrHistogram: values up to 2048 are counted exactly, larger values
+ * in log-linear buckets of 1024 sub-buckets each, so every recorded value is kept to within 0.1% of its magnitude
+ * whatever its size. Recording is a couple of shifts and an array increment, cheap enough to time every operation.
+ *
+ * Not thread safe; give each thread its own histogram and merge them with add, or record from many threads into
+ * a Concurrent histogram and read it through a snapshot.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 10;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS; // 1024
+    private static final int MAX_EXPONENT = 42 - SUB_BUCKET_BITS; // Values up to about 73 minutes in nanoseconds
+
+    private final long[] counts = new long[(MAX_EXPONENT + 2) * SUB_BUCKETS];
+    private long total;
+    private long max;
+
+    /**
+     * Lock-free histogram with the same buckets, for recording from many threads at once.
+     * Each record is one atomic increment, and reading never blocks recording.
+     */
+    public static final class Concurrent {
+        private final AtomicLongArray counts = new AtomicLongArray((MAX_EXPONENT + 2) * SUB_BUCKETS);
+        private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+        /**
+         * @param value The value to record, negative values are recorded as 0.
+         */
+        public void record(long value) {
+            value = Math.max(0, value);
+            counts.incrementAndGet(indexOf(value));
+            max.accumulate(value);
+        }
+
+        /**
+         * @return A copy of the values recorded so far; values recorded while copying may or may not be included.
+         */
+        public LatencyHistogram snapshot() {
+            LatencyHistogram copy = new LatencyHistogram();
+            for(int i = 0; i < copy.counts.length; i++) {
+                long count = counts.get(i);
+                copy.counts[i] = count;
+                copy.total += count;
+            }
+            copy.max = max.get();
+            return copy;
+        }
+    }
+
+    /**
+     * @param value The value to record, negative values are recorded as 0.
+     */
+    public void record(long value) {
+        value = Math.max(0, value);
+        counts[indexOf(value)]++;
+        total++;
+        max = Math.max(max, value);
+    }
+
+    /**
+     * Adds every value recorded by another histogram to this one.
+     * @param other The histogram to add.
+     */
+    public void add(LatencyHistogram other) {
+        for(int i = 0; i < counts.length; i++) {
+            counts[i] += other.counts[i];
+        }
+        total += other.total;
+        max = Math.max(max, other.max);
+    }
+
+    /**
+     * Forgets every recorded value.
+     */
+    public void reset() {
+        Arrays.fill(counts, 0);
+        total = 0;
+        max = 0;
+    }
+
+    /**
+     * @return The number of recorded values.
+     */
+    public long count() {
+        return total;
+    }
+
+    /**
+     * @return The largest recorded value.
+     */
+    public long max() {
+        return max;
+    }
+
+    /**
+     * @param percentile The percentile, from 0 to 100.
+     * @return The value at or below which the given percentage of recorded values fall, or 0 if none were recorded.
+     */
+    public long percentile(double percentile) {
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * total));
+        long seen = 0;
+        for(int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if(seen >= rank) {
+                return Math.min(highestValueAt(i), max);
+            }
+        }
+        return max;
+    }
+
+    private static int indexOf(long value) {
+        if(value < 2 * SUB_BUCKETS) {
+            return (int) value;
+        }
+        // Shift so the value lands in [1024, 2048), then count buckets by the shift
+        int exponent = Math.min(63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS, MAX_EXPONENT);
+        int subBucket = (int) Math.min(value >>> exponent, 2 * SUB_BUCKETS - 1);
+        return (exponent + 1) * SUB_BUCKETS + subBucket - SUB_BUCKETS;
+    }
+
+    private static long highestValueAt(int index) {
+        if(index < 2 * SUB_BUCKETS) {
+            return index;
+        }
+        int exponent = index / SUB_BUCKETS - 1;
+        long subBucket = index % SUB_BUCKETS + SUB_BUCKETS;
+        return ((subBucket + 1) << exponent) - 1;
+    }
+}
@@ -0,0 +1,404 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Benchmark mode of the Client: drives the server from several connections with a configurable mix of GET, PUT
+ * and DELETE operations over TCP or UDP, and reports throughput and latency percentiles.
+ *
+ * Each connection runs on its own thread and sends one operation at a time. Without a target rate they send as
+ * fast as the server answers (closed loop). With a target rate each thread sends on a fixed schedule (open loop),
+ * and latency is measured from when an operation was due rather than when it was actually sent, so a server stall
+ * shows up in the latency of every operation that queued behind it instead of silently lowering the rate.
+ */
+public class LoadGenerator {
+
+    // Operations pipelined per round trip while preloading the key space over TCP
+    private static final int PRELOAD_BATCH = 1000;
+
+    // How long a UDP operation waits for its response before it is counted as an error
+    private static final int UDP_TIMEOUT_MS = 1000;
+
+    private final String transport;
+    private final String serverIP;
+    private final int port;
+    private final int connections;
+    private final int readPercent;
+    private final int writePercent;
+    private final int keys;
+    private final Zipfian zipfian; // null for a uniform key distribution
+    private final int valueSize;
+    private final long rate;
+    private final int duration;
+    private final int warmup;
+    private final boolean preload;
+
+    private final AtomicInteger nextRequestId = new AtomicInteger();
+
+    private LoadGenerator(String transport, String serverIP, int port, Map<String, String> options) {
+        this.transport = transport;
+        this.serverIP = serverIP;
+        this.port = port;
+        this.connections = Integer.parseInt(options.getOrDefault("connections", "4"));
+        this.keys = Integer.parseInt(options.getOrDefault("keys", "100000"));
+        this.valueSize = Integer.parseInt(options.getOrDefault("value-size", "100"));
+        this.rate = Long.parseLong(options.getOrDefault("rate", "0"));
+        this.duration = Integer.parseInt(options.getOrDefault("duration", "30"));
+        this.warmup = Integer.parseInt(options.getOrDefault("warmup", "5"));
+        this.preload = Boolean.parseBoolean(options.getOrDefault("preload", "true"));
+
+        String[] mix = options.getOrDefault("mix", "80:15:5").split(":");
+        if(mix.length != 3) {
+            throw new IllegalArgumentException("--mix must be read:write:delete percentages, e.g. 80:15:5");
+        }
+        this.readPercent = Integer.parseInt(mix[0]);
+        this.writePercent = Integer.parseInt(mix[1]);
+        if(readPercent + writePercent + Integer.parseInt(mix[2]) != 100) {
+            throw new IllegalArgumentException("--mix percentages must add up to 100");
+        }
+
+        String distribution = options.getOrDefault("dist", "uniform");
+        if(distribution.equals("zipfian")) {
+            this.zipfian = new Zipfian(keys, Double.parseDouble(options.getOrDefault("zipf-theta", "0.99")));
+        } else if(distribution.equals("uniform")) {
+            this.zipfian = null;
+        } else {
+            throw new IllegalArgumentException("--dist must be uniform or zipfian");
+        }
+
+        if(connections < 1 || keys < 1 || valueSize < 0 || duration < 1 || warmup < 0 || rate < 0) {
+            throw new IllegalArgumentException("Benchmark options must be positive");
+        }
+        if(transport.equals("udp") && Protocol.frameSize(new Protocol.Request(Protocol.OP_PUT, 0, keyFor(keys - 1),
+                new byte[valueSize])) > Protocol.MAX_DATAGRAM_SIZE) {
+            throw new IllegalArgumentException("--value-size " + valueSize + " does not fit a UDP datagram, use --bench tcp");
+        }
+    }
+
+    /**
+     * Creates a load generator from the Client's '--name value' options.
+     * @param transport The transport to benchmark - tcp, udp.
+     * @param serverIP The IP Address or hostname of the server.
+     * @param port The port number the server is listening on.
+     * @param options The Client's options: connections, mix, keys, dist, zipf-theta, value-size, rate, duration,
+     *                warmup, preload.
+     * @return The LoadGenerator.
+     * @throws IllegalArgumentException Throws exception if the transport or an option is invalid.
+     */
+    public static LoadGenerator fromOptions(String transport, String serverIP, int port, Map<String, String> options) {
+        if(!transport.equals("tcp") && !transport.equals("udp")) {
+            throw new IllegalArgumentException("--bench must be tcp or udp");
+        }
+        return new LoadGenerator(transport, serverIP, port, options);
+    }
+
+    /**
+     * Runs the benchmark: preloads the key space, runs the warmup and then the measured period on every
+     * connection, and reports the results of the measured period.
+     * @throws Exception Throws exception if the server cannot be reached or a worker thread is interrupted.
+     */
+    public void run() throws Exception {
+        Client.logMessage("Benchmark: " + transport + ", " + connections + " connections, read/write/delete " +
+                readPercent + "/" + writePercent + "/" + (100 - readPercent - writePercent) + ", " + keys + " " +
+                (zipfian != null ? "zipfian" : "uniform") + " keys, " + valueSize + "-byte values, " +
+                (rate > 0 ? "open loop at " + rate + " ops/s" : "closed loop") + ", " + warmup + "s warmup, " + duration + "s");
+
+        if(preload) {
+            long start = System.nanoTime();
+            preload();
+            Client.logMessage("Preloaded " + keys + " keys in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + "ms");
+        }
+
+        long startAt = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100);
+        long measureFrom = startAt + TimeUnit.SECONDS.toNanos(warmup);
+        long endAt = measureFrom + TimeUnit.SECONDS.toNanos(duration);
+
+        List<Worker> workers = new ArrayList<>();
+        List<Thread> threads = new ArrayList<>();
+        for(int i = 0; i < connections; i++) {
+            Worker worker = new Worker(i, startAt, measureFrom, endAt);
+            Thread t = new Thread(worker, "bench-" + i);
+            workers.add(worker);
+            threads.add(t);
+            t.start();
+        }
+        for(Thread t : threads) {
+            t.join();
+        }
+
+        LatencyHistogram latencies = new LatencyHistogram();
+        long errors = 0;
+        long misses = 0;
+        for(Worker worker : workers) {
+            latencies.add(worker.latencies);
+            errors += worker.errors;
+            misses += worker.misses;
+        }
+
+        Client.logMessage(String.format("Throughput: %.0f ops/s (%d ops, %d not found, %d errors)",
+                latencies.count() / (double) duration, latencies.count(), misses, errors));
+        Client.logMessage(String.format("Latency (us): p50 %.1f  p99 %.1f  p99.9 %.1f  max %.1f",
+                latencies.percentile(50) / 1000.0, latencies.percentile(99) / 1000.0,
+                latencies.percentile(99.9) / 1000.0, latencies.max() / 1000.0));
+    }
+
+    /**
+     * Writes every key once, split across the connections, so reads find values from the start.
+     */
+    private void preload() throws Exception {
+        List<Thread> threads = new ArrayList<>();
+        List<Exception> failures = new ArrayList<>();
+        for(int i = 0; i < connections; i++) {
+            int first = (int) ((long) keys * i / connections);
+            int last = (int) ((long) keys * (i + 1) / connections);
+            Thread t = new Thread(() -> {
+                try {
+                    preload(first, last);
+                } catch (Exception e) {
+                    synchronized(failures) {
+                        failures.add(e);
+                    }
+                }
+            }, "bench-preload-" + i);
+            threads.add(t);
+            t.start();
+        }
+        for(Thread t : threads) {
+            t.join();
+        }
+        if(!failures.isEmpty()) {
+            throw failures.get(0);
+        }
+    }
+
+    private void preload(int first, int last) throws IOException {
+        byte[] value = randomValue();
+        if(transport.equals("tcp")) {
+            try (Socket s = new Socket(serverIP, port)) {
+                s.setTcpNoDelay(true);
+                DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+                for(int i = first; i < last; i += PRELOAD_BATCH) {
+                    List<Protocol.Request> batch = new ArrayList<>();
+                    for(int k = i; k < Math.min(last, i + PRELOAD_BATCH); k++) {
+                        batch.add(new Protocol.Request(Protocol.OP_PUT, nextRequestId.incrementAndGet(), keyFor(k), value));
+                    }
+                    Client.TCPBatchOperation(batch, in, out);
+                }
+            }
+        } else {
+            try (DatagramSocket s = new DatagramSocket()) {
+                s.setSoTimeout(UDP_TIMEOUT_MS);
+                InetAddress host = InetAddress.getByName(serverIP);
+                for(int k = first; k < last; k++) {
+                    try {
+                        Client.UDPExchange(new Protocol.Request(Protocol.OP_PUT, nextRequestId.incrementAndGet(), keyFor(k), value), host, port, s);
+                    } catch (SocketTimeoutException e) {
+                        // A lost datagram only leaves one key missing
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * One connection sending operations until the end of the run, recording the latency of those due after
+     * the warmup.
+     */
+    private final class Worker implements Runnable {
+        final LatencyHistogram latencies = new LatencyHistogram();
+        long errors;
+        long misses;
+
+        private final int id;
+        private final long startAt;
+        private final long measureFrom;
+        private final long endAt;
+
+        private Socket socket;
+        private DataInputStream in;
+        private DataOutputStream out;
+        private DatagramSocket datagramSocket;
+        private InetAddress host;
+
+        Worker(int id, long startAt, long measureFrom, long endAt) {
+            this.id = id;
+            this.startAt = startAt;
+            this.measureFrom = measureFrom;
+            this.endAt = endAt;
+        }
+
+        @Override
+        public void run() {
+            byte[] value = randomValue();
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            // Each thread's share of the target rate, with the threads' schedules spread evenly
+            long interval = rate > 0 ? TimeUnit.SECONDS.toNanos(connections) / rate : 0;
+            long due = startAt + interval * id / connections;
+
+            try {
+                connect();
+                LockSupport.parkNanos(startAt - System.nanoTime());
+                while(true) {
+                    long now = System.nanoTime();
+                    if(interval > 0) {
+                        if(due >= endAt) {
+                            break;
+                        }
+                        if(due > now) {
+                            LockSupport.parkNanos(due - now);
+                        }
+                    } else {
+                        if(now >= endAt) {
+                            break;
+                        }
+                        due = now;
+                    }
+
+                    int roll = random.nextInt(100);
+                    byte opcode = roll < readPercent ? Protocol.OP_GET : roll < readPercent + writePercent ? Protocol.OP_PUT : Protocol.OP_DELETE;
+                    int key = zipfian != null ? zipfian.next(random) : random.nextInt(keys);
+                    Protocol.Request request = new Protocol.Request(opcode, nextRequestId.incrementAndGet(), keyFor(key),
+                            opcode == Protocol.OP_PUT ? value : new byte[0]);
+
+                    boolean measured = due >= measureFrom;
+                    try {
+                        Protocol.Response response = exchange(request);
+                        if(measured) {
+                            if(response.status == Protocol.STATUS_ERROR) {
+                                errors++;
+                            } else if(response.status == Protocol.STATUS_NOT_FOUND) {
+                                misses++;
+                            }
+                        }
+                    } catch (IOException e) {
+                        if(measured) {
+                            errors++;
+                        }
+                        if(transport.equals("tcp")) {
+                            reconnect();
+                        }
+                    }
+                    if(measured) {
+                        latencies.record(System.nanoTime() - due);
+                    }
+                    due += interval;
+                }
+            } catch (IOException e) {
+                Client.logMessage("ERROR: Benchmark connection " + id + " failed: " + e.getMessage());
+            } finally {
+                close();
+            }
+        }
+
+        private Protocol.Response exchange(Protocol.Request request) throws IOException {
+            if(datagramSocket != null) {
+                return Client.UDPExchange(request, host, port, datagramSocket);
+            }
+            Protocol.writeRequest(out, request);
+            Protocol.Response response = Protocol.readResponse(in);
+            if(response.requestId != request.requestId) {
+                throw new ProtocolException("Expected response to request " + request.requestId + " but received " + response.requestId);
+            }
+            return response;
+        }
+
+        private void connect() throws IOException {
+            if(transport.equals("tcp")) {
+                socket = new Socket(serverIP, port);
+                socket.setTcpNoDelay(true);
+                in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            } else {
+                datagramSocket = new DatagramSocket();
+                datagramSocket.setSoTimeout(UDP_TIMEOUT_MS);
+                host = InetAddress.getByName(serverIP);
+            }
+        }
+
+        private void reconnect() throws IOException {
+            close();
+            connect();
+        }
+
+        private void close() {
+            try {
+                if(socket != null) {
+                    socket.close();
+                }
+                if(datagramSocket != null) {
+                    datagramSocket.close();
+                }
+            } catch (IOException e) {
+                Client.logMessage("ERROR: Closing benchmark connection " + id + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private byte[] randomValue() {
+        byte[] value = new byte[valueSize];
+        for(int i = 0; i < value.length; i++) {
+            value[i] = (byte) ('a' + ThreadLocalRandom.current().nextInt(26));
+        }
+        return value;
+    }
+
+    private static byte[] keyFor(int index) {
+        return Protocol.toBytes("key" + index);
+    }
+
+    /**
+     * Zipfian distribution over key indexes, following the generator used by YCSB: a few keys get most of the
+     * operations. Ranks are scrambled by a hash so the popular keys are spread across the key space instead of
+     * being the lowest indexes.
+     */
+    static final class Zipfian {
+        private final int items;
+        private final double theta;
+        private final double zetan;
+        private final double alpha;
+        private final double eta;
+
+        Zipfian(int items, double theta) {
+            this.items = items;
+            this.theta = theta;
+            double zeta2 = 1 + Math.pow(0.5, theta);
+            double sum = 0;
+            for(int i = 1; i <= items; i++) {
+                sum += 1 / Math.pow(i, theta);
+            }
+            this.zetan = sum;
+            this.alpha = 1 / (1 - theta);
+            this.eta = (1 - Math.pow(2.0 / items, 1 - theta)) / (1 - zeta2 / zetan);
+        }
+
+        int next(ThreadLocalRandom random) {
+            double u = random.nextDouble();
+            double uz = u * zetan;
+            long rank;
+            if(uz < 1) {
+                rank = 0;
+            } else if(uz < 1 + Math.pow(0.5, theta)) {
+                rank = 1;
+            } else {
+                rank = Math.min(items - 1, (long) (items * Math.pow(eta * u - eta + 1, alpha)));
+            }
+            // Fibonacci hashing spreads consecutive ranks across the key space
+            return (int) Long.remainderUnsigned(rank * 0x9E3779B97F4A7C15L, items);
+        }
+    }
+}
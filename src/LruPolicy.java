@@ -0,0 +1,55 @@
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Evicts the least recently used key. Cheap and predictable, but a single scan over many cold keys flushes
+ * everything else out.
+ */
+public class LruPolicy implements EvictionPolicy {
+
+    // Access order: reads and writes move a key to the end, so the first key is the least recently used
+    private final LinkedHashMap<ByteKey, Integer> weights = new LinkedHashMap<>(1024, 0.75f, true);
+    private long totalWeight;
+
+    @Override
+    public void recordAccess(ByteKey key) {
+        weights.get(key);
+    }
+
+    @Override
+    public void recordWrite(ByteKey key, int weight) {
+        Integer previous = weights.put(key, weight);
+        totalWeight += weight - (previous != null ? previous : 0);
+    }
+
+    @Override
+    public void recordRemove(ByteKey key) {
+        Integer previous = weights.remove(key);
+        if(previous != null) {
+            totalWeight -= previous;
+        }
+    }
+
+    @Override
+    public ByteKey evict() {
+        Iterator<Map.Entry<ByteKey, Integer>> eldest = weights.entrySet().iterator();
+        if(!eldest.hasNext()) {
+            return null;
+        }
+        Map.Entry<ByteKey, Integer> victim = eldest.next();
+        eldest.remove();
+        totalWeight -= victim.getValue();
+        return victim.getKey();
+    }
+
+    @Override
+    public long weight() {
+        return totalWeight;
+    }
+
+    @Override
+    public int entries() {
+        return weights.size();
+    }
+}
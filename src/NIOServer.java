@@ -0,0 +1,364 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Non-blocking TCP server engine built on ServerSocketChannel and Selector.
+ * The accepting thread hands each connection to one of a fixed number of event loops, each running on its own
+ * thread, so many idle keep-alive clients cost a small buffer each instead of a thread each.
+ * Only the binary protocol is supported, since the text protocol depends on blocking request/acknowledge exchanges.
+ */
+public class NIOServer {
+
+    private static final int INITIAL_BUFFER_SIZE = 4 * 1024;
+
+    // Stop reading from a connection while this many response bytes are waiting for a slow reader
+    private static final int MAX_PENDING_WRITE = 1024 * 1024;
+
+    /**
+     * Used to communicate with TCPClient to perform PUT, GET, DELETE operations over TCP with non-blocking IO.
+     * @param serverIP The IP Address or hostname the server will be hosted on.
+     * @param port The port the server will listen on.
+     * @param store The StorageEngine used to store and perform operations on Key, Value pairs specified by the TCPClient.
+     * @param loops The number of event loop threads serving connections.
+     * @param idleTimeout Milliseconds a connection may sit idle before the server closes it, 0 to never time out.
+     */
+    public static void start(String serverIP, int port, StorageEngine store, int loops, int idleTimeout) {
+        try {
+            // Translate String IP or hostname to InetAddress type
+            InetAddress ip = InetAddress.getByName(serverIP);
+
+            EventLoop[] eventLoops = new EventLoop[loops];
+            for(int i = 0; i < loops; i++) {
+                eventLoops[i] = new EventLoop(store, idleTimeout);
+                Thread t = new Thread(eventLoops[i], "nio-loop-" + i);
+                t.setDaemon(true);
+                t.start();
+            }
+
+            ServerSocketChannel listenChannel = ServerSocketChannel.open();
+            listenChannel.bind(new InetSocketAddress(ip, port), 1024);
+            Server.logMessage("NIO server listening on IP " + ip + " port " + port + " with " + loops + " event loops");
+
+            int next = 0;
+            while(true) { // Server listens until ctrl-c is pressed or exception occurs
+                SocketChannel channel = listenChannel.accept();
+                Server.logDebug("Connection accepted on IP {} port {} over TCP (NIO)", ip, port);
+
+                // Spread connections across event loops round-robin
+                eventLoops[next].register(channel);
+                next = (next + 1) % loops;
+            }
+        } catch (IOException e) {
+            Server.logMessage("IOException: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Selector loop serving the connections assigned to it on a single thread.
+     */
+    static class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Queue<SocketChannel> pending = new ConcurrentLinkedQueue<>();
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final StorageEngine store;
+        private final int idleTimeout;
+        private long lastIdleCheck = System.currentTimeMillis();
+
+        EventLoop(StorageEngine store, int idleTimeout) throws IOException {
+            this.selector = Selector.open();
+            this.store = store;
+            this.idleTimeout = idleTimeout;
+        }
+
+        /**
+         * Queues a newly accepted connection to be registered on this loop's thread.
+         * @param channel The accepted SocketChannel.
+         */
+        void register(SocketChannel channel) {
+            pending.add(channel);
+            selector.wakeup();
+        }
+
+        /**
+         * Queues a task to be run on this loop's thread, such as acknowledging writes that have become durable.
+         * @param task The task to run.
+         */
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while(true) {
+                try {
+                    selector.select(1000);
+                    registerPending();
+                    for(Runnable task = tasks.poll(); task != null; task = tasks.poll()) {
+                        task.run();
+                    }
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while(keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        Connection connection = (Connection) key.attachment();
+
+                        try {
+                            if(key.isValid() && key.isReadable()) {
+                                connection.read();
+                            }
+                            if(key.isValid() && key.isWritable()) {
+                                connection.flush();
+                            }
+                        } catch (IOException | UncheckedIOException e) {
+                            Server.logMessage("Error handling client request: " + e.getMessage());
+                            connection.close();
+                        } catch (RuntimeException | Error e) {
+                            // Only this connection is lost; the others on this loop keep being served
+                            Server.stats.recordError();
+                            Server.logMessage("Unexpected error handling request from " + connection.remote + ": " + e);
+                            connection.close();
+                        }
+                    }
+
+                    closeIdle();
+                } catch (IOException | RuntimeException e) {
+                    Server.logMessage("Event loop error: " + e);
+                }
+            }
+        }
+
+        private void registerPending() {
+            SocketChannel channel;
+            while((channel = pending.poll()) != null) {
+                try {
+                    channel.configureBlocking(false);
+                    // Responses to the tail of a pipelined batch, or a SCAN's last response, must not wait on Nagle
+                    channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                    SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                    key.attach(new Connection(channel, key, store, this));
+                    Server.stats.connectionOpened();
+                } catch (IOException e) {
+                    Server.logMessage("Error registering connection: " + e.getMessage());
+                }
+            }
+        }
+
+        /**
+         * Closes connections idle longer than the idle timeout, checking at most once per second.
+         */
+        private void closeIdle() {
+            long now = System.currentTimeMillis();
+            if(idleTimeout <= 0 || now - lastIdleCheck < 1000) {
+                return;
+            }
+            lastIdleCheck = now;
+
+            for(SelectionKey key : selector.keys()) {
+                Connection connection = (Connection) key.attachment();
+                if(connection != null && now - connection.lastActive > idleTimeout) {
+                    Server.logMessage("Connection to " + connection.remote + " idle for " + idleTimeout + "ms");
+                    connection.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * State of a single client connection: partially received request frames and responses not yet written.
+     * Both buffers are reused for the life of the connection and only grow for frames larger than they can hold.
+     */
+    static class Connection {
+        private final SocketChannel channel;
+        private final SelectionKey key;
+        private final StorageEngine store;
+        private final EventLoop loop;
+        private final String remote;
+        // Responses are counted in bytes ever queued; only those up to acknowledgedBytes, whose writes are durable,
+        // may be written, and the rest wait in writeBuf behind them
+        private long queuedBytes;
+        private long writtenBytes;
+        private long acknowledgedBytes;
+        private CompletableFuture<Void> lastDurable; // Of the latest read still waiting, if any
+        private ByteBuffer readBuf = ByteBuffer.allocate(INITIAL_BUFFER_SIZE); // in write mode, filled by reads
+        private ByteBuffer writeBuf = ByteBuffer.allocate(INITIAL_BUFFER_SIZE); // in write mode, filled by responses
+        private long lastActive = System.currentTimeMillis();
+
+        Connection(SocketChannel channel, SelectionKey key, StorageEngine store, EventLoop loop) throws IOException {
+            this.channel = channel;
+            this.key = key;
+            this.store = store;
+            this.loop = loop;
+            this.remote = String.valueOf(channel.getRemoteAddress());
+        }
+
+        /**
+         * Reads available bytes, performs every complete request frame received so far, and writes the responses
+         * once the writes among them are durable.
+         * @throws IOException Throws exception if the connection fails or a frame is malformed.
+         */
+        void read() throws IOException {
+            int n = channel.read(readBuf);
+            if(n == -1) {
+                Server.logDebug("Client {} closed the connection", remote);
+                close();
+                return;
+            }
+            lastActive = System.currentTimeMillis();
+
+            readBuf.flip();
+            int needed = 0;
+            while(true) {
+                int offset = readBuf.arrayOffset() + readBuf.position();
+                if(readBuf.remaining() > 0 && readBuf.get(readBuf.position()) != Protocol.MAGIC) {
+                    throw new IOException("NIO engine only supports the binary protocol");
+                }
+
+                int frameLength = Protocol.frameLength(readBuf.array(), offset, readBuf.remaining());
+                if(frameLength < 0 || frameLength > readBuf.remaining()) {
+                    needed = frameLength; // Partial frame, wait for more bytes
+                    break;
+                }
+
+                Protocol.Request request = Protocol.decodeRequest(readBuf.array(), offset, frameLength);
+                readBuf.position(readBuf.position() + frameLength);
+                Server.logDebug("Received binary {} request from {}", Protocol.opcodeName(request.opcode), remote);
+                Server.stats.recordTraffic(frameLength, 0);
+                if(request.opcode == Protocol.OP_SCAN) {
+                    Server.processScan(request, store, this::queueResponse);
+                } else {
+                    queueResponse(Server.processRequest(request, store));
+                }
+            }
+            readBuf.compact();
+            readBuf = resize(readBuf, needed);
+
+            // Acknowledge only once the writes from this read are durable; one wait covers every frame in it. The
+            // loop never blocks on an fsync: it goes on reading and serving, and the responses wait their turn
+            long mark = queuedBytes;
+            CompletableFuture<Void> durable = store.whenDurable();
+            if(lastDurable != null && !lastDurable.isDone()) {
+                // Responses go out in order, so these also wait for the reads before them
+                durable = CompletableFuture.allOf(lastDurable, durable);
+            }
+            if(durable.isDone() && !durable.isCompletedExceptionally()) {
+                acknowledgedBytes = mark;
+            } else {
+                lastDurable = durable;
+                durable.whenComplete((result, error) -> loop.execute(() -> acknowledge(mark, error)));
+            }
+            flush();
+        }
+
+        /**
+         * Writes the responses held back by read once the writes they acknowledge are durable, or closes the
+         * connection if the writes could not be made durable. Runs on the event loop's thread.
+         * @param mark The queuedBytes up to which the responses can now be written.
+         * @param error The failure making the writes durable, or null.
+         */
+        private void acknowledge(long mark, Throwable error) {
+            if(!channel.isOpen()) {
+                return;
+            }
+            if(error != null) {
+                Server.logMessage("SERVER ERROR: Write could not be made durable: " + error.getMessage());
+                close();
+                return;
+            }
+            acknowledgedBytes = Math.max(acknowledgedBytes, mark);
+            try {
+                flush();
+            } catch (IOException e) {
+                Server.logMessage("Error handling client request: " + e.getMessage());
+                close();
+            }
+        }
+
+        /**
+         * Writes as much of the acknowledged responses as the socket accepts, and only asks the selector for write
+         * readiness when some are left over. Reading pauses while too many response bytes are pending, whether
+         * the socket is slow or their writes are not durable yet.
+         * @throws IOException Throws exception if the connection fails.
+         */
+        void flush() throws IOException {
+            int writable = (int) (acknowledgedBytes - writtenBytes);
+            if(writable > 0) {
+                writeBuf.flip();
+                int end = writeBuf.limit();
+                writeBuf.limit(writable);
+                writtenBytes += channel.write(writeBuf);
+                writeBuf.limit(end);
+                writeBuf.compact();
+                writeBuf = resize(writeBuf, 0);
+            }
+
+            int pendingBytes = writeBuf.position();
+            int interest = acknowledgedBytes > writtenBytes ? SelectionKey.OP_WRITE : 0;
+            if(pendingBytes < MAX_PENDING_WRITE) {
+                interest |= SelectionKey.OP_READ;
+            }
+            key.interestOps(interest);
+        }
+
+        void close() {
+            if(!channel.isOpen()) {
+                return;
+            }
+            Server.stats.connectionClosed();
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                Server.logMessage("Error closing client connection: " + e.getMessage());
+            }
+            Server.logDebug("Client connection to {} closed", remote);
+        }
+
+        private void queueResponse(Protocol.Response response) {
+            byte[] frame = Protocol.encodeResponse(response);
+            Server.stats.recordTraffic(0, frame.length);
+            queueResponse(frame);
+        }
+
+        private void queueResponse(byte[] response) {
+            if(writeBuf.remaining() < response.length) {
+                ByteBuffer larger = ByteBuffer.allocate(Math.max(writeBuf.capacity() * 2, writeBuf.position() + response.length));
+                writeBuf.flip();
+                larger.put(writeBuf);
+                writeBuf = larger;
+            }
+            writeBuf.put(response);
+            queuedBytes += response.length;
+        }
+
+        /**
+         * Grows a buffer in write mode to hold a partially received frame, or shrinks it back to its initial size
+         * once the data that required a larger buffer has been consumed.
+         */
+        private static ByteBuffer resize(ByteBuffer buf, int needed) {
+            if(needed > buf.capacity()) {
+                ByteBuffer larger = ByteBuffer.allocate(needed);
+                buf.flip();
+                larger.put(buf);
+                return larger;
+            }
+            if(buf.capacity() > INITIAL_BUFFER_SIZE && buf.position() == 0 && needed <= INITIAL_BUFFER_SIZE) {
+                return ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+            }
+            return buf;
+        }
+    }
+}
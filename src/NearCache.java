@@ -0,0 +1,197 @@
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Size-bounded, in-process cache of values read from the server, kept coherent by invalidations the server pushes
+ * over a dedicated connection, so repeated GETs of hot keys never leave the client.
+ *
+ * A GET that misses first reserves its key, then asks the server, and only stores the value if the reservation
+ * is still there when the response arrives. An invalidation received in between removes the reservation, so a
+ * value that changed while it was in flight is never cached. If the invalidation connection is lost the cache is
+ * emptied and stays disabled, since changes could no longer be heard about.
+ */
+public class NearCache {
+
+    private final int maxEntries;
+
+    // Access order, so the first entry is the least recently used; values are byte[] or a reservation
+    private final LinkedHashMap<ByteKey, Object> entries;
+
+    private final Socket socket;
+    private final int subscriberId;
+    private volatile boolean connected = true;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+
+    private NearCache(Socket socket, int subscriberId, int maxEntries) {
+        this.socket = socket;
+        this.subscriberId = subscriberId;
+        this.maxEntries = maxEntries;
+        this.entries = new LinkedHashMap<>(Math.min(maxEntries, 1 << 16), 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<ByteKey, Object> eldest) {
+                return size() > NearCache.this.maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Opens the invalidation connection to the server, subscribes, and starts listening for invalidations.
+     * @param serverIP The IP Address or hostname of the server.
+     * @param port The port number the server is listening on.
+     * @param maxEntries The number of keys the cache holds before evicting the least recently used.
+     * @return The NearCache, whose subscriberId must be sent with TRACKING on the connections it caches reads from.
+     * @throws IOException Throws exception if the server cannot be reached or refuses the subscription.
+     */
+    public static NearCache connect(String serverIP, int port, int maxEntries) throws IOException {
+        Socket s = new Socket(serverIP, port);
+        try {
+            s.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+            DataOutputStream out = new DataOutputStream(s.getOutputStream());
+
+            Protocol.writeRequest(out, new Protocol.Request(Protocol.OP_SUBSCRIBE, 0, new byte[0], new byte[0]));
+            Protocol.Response response = Protocol.readResponse(in);
+            if(response.opcode != Protocol.OP_SUBSCRIBE || response.status != Protocol.STATUS_OK || response.value.length != 4) {
+                throw new ProtocolException("Server refused the near cache subscription" +
+                        (response.status == Protocol.STATUS_ERROR ? ": " + Protocol.toString(response.value) : ""));
+            }
+
+            NearCache cache = new NearCache(s, ByteBuffer.wrap(response.value).getInt(), maxEntries);
+            Thread t = new Thread(() -> cache.listen(in), "near-cache-invalidation");
+            t.setDaemon(true);
+            t.start();
+            return cache;
+        } catch (IOException e) {
+            s.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return The ID to send with TRACKING so the server invalidates keys read on that connection.
+     */
+    public int subscriberId() {
+        return subscriberId;
+    }
+
+    /**
+     * @param key The key to look up.
+     * @return The cached value, or null if the key is not cached.
+     */
+    public byte[] get(byte[] key) {
+        Object value;
+        synchronized(entries) {
+            value = entries.get(new ByteKey(key));
+        }
+        if(value instanceof byte[]) {
+            hits.incrementAndGet();
+            return (byte[]) value;
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Reserves a key before its value is requested from the server.
+     * @param key The key about to be read.
+     * @return The reservation to pass to complete, or null if the cache is disabled.
+     */
+    public Object reserve(byte[] key) {
+        if(!connected) {
+            return null;
+        }
+        Object reservation = new Object();
+        synchronized(entries) {
+            entries.put(new ByteKey(key), reservation);
+        }
+        return reservation;
+    }
+
+    /**
+     * Stores the value read for a reserved key, unless the key was invalidated since it was reserved.
+     * @param key The key that was read.
+     * @param reservation The reservation returned by reserve.
+     * @param value The value read, or null if the key was not found.
+     */
+    public void complete(byte[] key, Object reservation, byte[] value) {
+        ByteKey k = new ByteKey(key);
+        synchronized(entries) {
+            if(entries.get(k) != reservation) {
+                return; // Invalidated or evicted while the read was in flight
+            }
+            if(value != null && connected) {
+                entries.put(k, value);
+            } else {
+                entries.remove(k);
+            }
+        }
+    }
+
+    /**
+     * Removes a key, dropping any value or reservation held for it.
+     * @param key The key that changed.
+     */
+    public void invalidate(byte[] key) {
+        synchronized(entries) {
+            entries.remove(new ByteKey(key));
+        }
+    }
+
+    /**
+     * @return A summary of the hits, misses and invalidations so far.
+     */
+    public String stats() {
+        int size;
+        synchronized(entries) {
+            size = entries.size();
+        }
+        return "Near cache: " + hits.get() + " hits, " + misses.get() + " misses, " + invalidations.get() +
+                " invalidations, " + size + " keys" + (connected ? "" : " (disabled)");
+    }
+
+    /**
+     * Closes the invalidation connection, which empties and disables the cache.
+     */
+    public void close() {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            Client.logMessage("Error closing near cache connection: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Applies invalidations pushed by the server until the connection ends.
+     */
+    private void listen(DataInputStream in) {
+        try {
+            while(true) {
+                Protocol.Response push = Protocol.readResponse(in);
+                if(push.opcode == Protocol.OP_INVALIDATE && push.value.length > 0) { // Empty keys are heartbeats
+                    invalidate(push.value);
+                    invalidations.incrementAndGet();
+                }
+            }
+        } catch (IOException e) {
+            if(!socket.isClosed()) {
+                Client.logMessage("ERROR: Near cache invalidation connection lost: " + e.getMessage());
+            }
+        } finally {
+            connected = false;
+            synchronized(entries) {
+                entries.clear();
+            }
+        }
+    }
+}
@@ -0,0 +1,360 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiConsumer;
+
+/**
+ * Storage engine keeping keys and values as raw bytes in direct ByteBuffer slabs outside the Java heap.
+ * Each entry is appended to a slab as KEY_LEN(4) VALUE_LEN(4) KEY VALUE, and located through an open-addressing
+ * index made of primitive arrays, so the garbage collector sees a handful of arrays per segment no matter how
+ * many keys are stored.
+ *
+ * The store is split into segments chosen by key hash, each with its own lock, slabs and index, so writers to
+ * different segments never contend. Overwritten and deleted entries leave garbage in the slabs; a segment copies
+ * its live entries into fresh slabs once more than half of the bytes it has written are garbage.
+ */
+public class OffHeapStorageEngine implements StorageEngine {
+
+    private static final int SEGMENTS = 16;
+    private static final int ENTRY_HEADER_SIZE = 8; // KEY_LEN, VALUE_LEN
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+
+    public OffHeapStorageEngine() {
+        this(8 * 1024 * 1024);
+    }
+
+    /**
+     * @param slabSize The size in bytes of each direct ByteBuffer slab; larger entries get a slab of their own.
+     */
+    public OffHeapStorageEngine(int slabSize) {
+        for(int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment(slabSize);
+        }
+    }
+
+    @Override
+    public byte[] get(byte[] key) {
+        int hash = hash(key);
+        return segmentFor(hash).get(key, hash);
+    }
+
+    @Override
+    public byte[] put(byte[] key, byte[] value) {
+        int hash = hash(key);
+        return segmentFor(hash).put(key, value, hash);
+    }
+
+    @Override
+    public byte[] remove(byte[] key) {
+        int hash = hash(key);
+        return segmentFor(hash).remove(key, hash);
+    }
+
+    @Override
+    public int size() {
+        int size = 0;
+        for(Segment segment : segments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    @Override
+    public void forEach(BiConsumer<byte[], byte[]> action) {
+        // Each segment is copied out under its read lock, one at a time, and the action runs after the lock is
+        // released, so slow actions such as a snapshot's disk writes never hold up writers
+        for(Segment segment : segments) {
+            segment.forEach(action);
+        }
+    }
+
+    private Segment segmentFor(int hash) {
+        return segments[hash >>> 28]; // High bits pick the segment, low bits the index slot
+    }
+
+    /**
+     * Spreads the bits of the key's hash so both the segment and the index slot are well distributed.
+     */
+    private static int hash(byte[] key) {
+        int h = Arrays.hashCode(key);
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * An independently locked part of the store with its own slabs and index.
+     * Index slots hold the entry's slab address plus one, so 0 marks an empty slot; TOMBSTONE marks a removed
+     * entry that lookups must probe past.
+     */
+    static final class Segment {
+        private static final long EMPTY = 0;
+        private static final long TOMBSTONE = -1;
+
+        private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+        private final int slabSize;
+        private List<ByteBuffer> slabs = new ArrayList<>();
+        private ByteBuffer current; // Slab new entries are appended to
+
+        private int[] hashes = new int[64];
+        private long[] addresses = new long[64];
+        private int count;
+        private int tombstones;
+
+        private long writtenBytes; // Bytes appended to slabs since the last compaction
+        private long liveBytes; // Bytes of entries still reachable from the index
+
+        Segment(int slabSize) {
+            this.slabSize = slabSize;
+        }
+
+        byte[] get(byte[] key, int hash) {
+            lock.readLock().lock();
+            try {
+                int slot = find(key, hash);
+                return slot < 0 ? null : readValue(addresses[slot] - 1);
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        byte[] put(byte[] key, byte[] value, int hash) {
+            lock.writeLock().lock();
+            try {
+                byte[] previous = null;
+                int slot = find(key, hash);
+                if(slot >= 0) {
+                    long old = addresses[slot] - 1;
+                    previous = readValue(old);
+                    liveBytes -= entrySize(old);
+                } else {
+                    if((count + tombstones + 1) * 4L > addresses.length * 3L) {
+                        rehash();
+                    }
+                    slot = insertionSlot(hash);
+                    if(addresses[slot] == TOMBSTONE) {
+                        tombstones--;
+                    }
+                    count++;
+                }
+
+                hashes[slot] = hash;
+                addresses[slot] = append(key, value) + 1;
+                liveBytes += ENTRY_HEADER_SIZE + key.length + value.length;
+
+                if(writtenBytes > slabSize && liveBytes * 2 < writtenBytes) {
+                    compact();
+                }
+                return previous;
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        byte[] remove(byte[] key, int hash) {
+            lock.writeLock().lock();
+            try {
+                int slot = find(key, hash);
+                if(slot < 0) {
+                    return null;
+                }
+                long address = addresses[slot] - 1;
+                byte[] previous = readValue(address);
+                liveBytes -= entrySize(address);
+                addresses[slot] = TOMBSTONE;
+                count--;
+                tombstones++;
+                return previous;
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        int size() {
+            lock.readLock().lock();
+            try {
+                return count;
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        void forEach(BiConsumer<byte[], byte[]> action) {
+            byte[][] keys;
+            byte[][] values;
+            int copied = 0;
+            lock.readLock().lock();
+            try {
+                keys = new byte[count][];
+                values = new byte[count][];
+                for(long entry : addresses) {
+                    if(entry != EMPTY && entry != TOMBSTONE) {
+                        keys[copied] = readKey(entry - 1);
+                        values[copied] = readValue(entry - 1);
+                        copied++;
+                    }
+                }
+            } finally {
+                lock.readLock().unlock();
+            }
+            for(int i = 0; i < copied; i++) {
+                action.accept(keys[i], values[i]);
+            }
+        }
+
+        /**
+         * Finds the index slot holding a key by linear probing.
+         * @return The slot, or -1 if the key cannot be found.
+         */
+        private int find(byte[] key, int hash) {
+            int mask = addresses.length - 1;
+            for(int slot = hash & mask; ; slot = (slot + 1) & mask) {
+                long entry = addresses[slot];
+                if(entry == EMPTY) {
+                    return -1;
+                }
+                if(entry != TOMBSTONE && hashes[slot] == hash && keyEquals(entry - 1, key)) {
+                    return slot;
+                }
+            }
+        }
+
+        /**
+         * Finds the first empty or removed slot along a hash's probe sequence.
+         */
+        private int insertionSlot(int hash) {
+            int mask = addresses.length - 1;
+            int slot = hash & mask;
+            while(addresses[slot] != EMPTY && addresses[slot] != TOMBSTONE) {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+
+        /**
+         * Rebuilds the index without tombstones, doubling it if live entries fill more than half of it.
+         */
+        private void rehash() {
+            int capacity = count * 2 >= addresses.length ? addresses.length * 2 : addresses.length;
+            int[] oldHashes = hashes;
+            long[] oldAddresses = addresses;
+            hashes = new int[capacity];
+            addresses = new long[capacity];
+            tombstones = 0;
+
+            for(int i = 0; i < oldAddresses.length; i++) {
+                if(oldAddresses[i] != EMPTY && oldAddresses[i] != TOMBSTONE) {
+                    int slot = insertionSlot(oldHashes[i]);
+                    hashes[slot] = oldHashes[i];
+                    addresses[slot] = oldAddresses[i];
+                }
+            }
+        }
+
+        /**
+         * Copies every live entry into fresh slabs so the slabs holding garbage can be released.
+         */
+        private void compact() {
+            List<ByteBuffer> oldSlabs = slabs;
+            slabs = new ArrayList<>();
+            current = null;
+            writtenBytes = 0;
+
+            for(int i = 0; i < addresses.length; i++) {
+                if(addresses[i] != EMPTY && addresses[i] != TOMBSTONE) {
+                    long address = addresses[i] - 1;
+                    ByteBuffer slab = oldSlabs.get(slabIndex(address));
+                    int offset = slabOffset(address);
+                    int size = ENTRY_HEADER_SIZE + slab.getInt(offset) + slab.getInt(offset + 4);
+
+                    long newAddress = allocate(size);
+                    ByteBuffer target = slabs.get(slabIndex(newAddress));
+                    target.put(slabOffset(newAddress), slab, offset, size);
+                    addresses[i] = newAddress + 1;
+                }
+            }
+            Server.logMessage("Off-heap segment compacted to " + writtenBytes + " bytes in " + slabs.size() + " slabs");
+        }
+
+        /**
+         * Appends an entry to the current slab.
+         * @return The slab address of the entry.
+         */
+        private long append(byte[] key, byte[] value) {
+            long address = allocate(ENTRY_HEADER_SIZE + key.length + value.length);
+            ByteBuffer slab = slabs.get(slabIndex(address));
+            int offset = slabOffset(address);
+            slab.putInt(offset, key.length);
+            slab.putInt(offset + 4, value.length);
+            slab.put(offset + ENTRY_HEADER_SIZE, key);
+            slab.put(offset + ENTRY_HEADER_SIZE + key.length, value);
+            return address;
+        }
+
+        /**
+         * Reserves space for an entry, starting a new slab when the current one is full.
+         * @return The slab address of the reserved space: slab index in the high 32 bits, offset in the low 32 bits.
+         */
+        private long allocate(int size) {
+            if(current == null || current.remaining() < size) {
+                current = ByteBuffer.allocateDirect(Math.max(slabSize, size));
+                slabs.add(current);
+            }
+            int offset = current.position();
+            current.position(offset + size);
+            writtenBytes += size;
+            return ((long) (slabs.size() - 1) << 32) | offset;
+        }
+
+        private boolean keyEquals(long address, byte[] key) {
+            ByteBuffer slab = slabs.get(slabIndex(address));
+            int offset = slabOffset(address);
+            if(slab.getInt(offset) != key.length) {
+                return false;
+            }
+            offset += ENTRY_HEADER_SIZE;
+            for(int i = 0; i < key.length; i++) {
+                if(slab.get(offset + i) != key[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private byte[] readKey(long address) {
+            ByteBuffer slab = slabs.get(slabIndex(address));
+            int offset = slabOffset(address);
+            byte[] key = new byte[slab.getInt(offset)];
+            slab.get(offset + ENTRY_HEADER_SIZE, key);
+            return key;
+        }
+
+        private byte[] readValue(long address) {
+            ByteBuffer slab = slabs.get(slabIndex(address));
+            int offset = slabOffset(address);
+            int keyLength = slab.getInt(offset);
+            byte[] value = new byte[slab.getInt(offset + 4)];
+            slab.get(offset + ENTRY_HEADER_SIZE + keyLength, value);
+            return value;
+        }
+
+        private int entrySize(long address) {
+            ByteBuffer slab = slabs.get(slabIndex(address));
+            int offset = slabOffset(address);
+            return ENTRY_HEADER_SIZE + slab.getInt(offset) + slab.getInt(offset + 4);
+        }
+
+        private static int slabIndex(long address) {
+            return (int) (address >>> 32);
+        }
+
+        private static int slabOffset(long address) {
+            return (int) address;
+        }
+    }
+}
@@ -0,0 +1,111 @@
+import java.util.Arrays;
+import java.util.NavigableSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.function.BiConsumer;
+import java.util.function.BiPredicate;
+
+/**
+ * Storage engine keeping an ordered index of another engine's keys next to its hash table, so keys can be scanned
+ * by range and by prefix in key order while point lookups keep going straight to the hash table.
+ *
+ * The index is a ConcurrentSkipListSet of keys ordered by their unsigned bytes. Finding where a range starts takes
+ * O(log n) however many keys are stored, and walking it never blocks writers. Values stay in the wrapped engine
+ * and are looked up as a scan reaches each key, so the index only costs a skip list node per key.
+ *
+ * Writes to the same key update the engine and the index under one lock, so a racing PUT and DELETE cannot leave
+ * a key in the index that the engine no longer holds, or the other way round.
+ */
+public class OrderedIndexStorageEngine implements StorageEngine {
+
+    private static final int STRIPES = 64;
+
+    private final StorageEngine store;
+    private final ConcurrentSkipListSet<ByteKey> index = new ConcurrentSkipListSet<>();
+    private final Object[] stripes = new Object[STRIPES];
+
+    /**
+     * Wraps an engine, indexing the keys it already holds.
+     * @param store The StorageEngine holding the data.
+     */
+    public OrderedIndexStorageEngine(StorageEngine store) {
+        this.store = store;
+        for(int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Object();
+        }
+
+        // Keys restored from a snapshot or the write-ahead log
+        store.forEach((key, value) -> index.add(new ByteKey(key)));
+        if(!index.isEmpty()) {
+            Server.logMessage("Indexed " + index.size() + " restored keys");
+        }
+    }
+
+    @Override
+    public byte[] get(byte[] key) {
+        return store.get(key);
+    }
+
+    @Override
+    public byte[] put(byte[] key, byte[] value) {
+        synchronized(stripeFor(key)) {
+            byte[] previous = store.put(key, value);
+            if(previous == null) {
+                index.add(new ByteKey(key));
+            }
+            return previous;
+        }
+    }
+
+    @Override
+    public byte[] remove(byte[] key) {
+        synchronized(stripeFor(key)) {
+            byte[] previous = store.remove(key);
+            if(previous != null) {
+                index.remove(new ByteKey(key));
+            }
+            return previous;
+        }
+    }
+
+    @Override
+    public int size() {
+        return store.size();
+    }
+
+    @Override
+    public void forEach(BiConsumer<byte[], byte[]> action) {
+        store.forEach(action);
+    }
+
+    @Override
+    public void scan(byte[] from, byte[] to, BiPredicate<byte[], byte[]> action) {
+        if(to != null && Arrays.compareUnsigned(from, to) >= 0) {
+            return;
+        }
+        NavigableSet<ByteKey> range = to == null ? index.tailSet(new ByteKey(from), true)
+                : index.subSet(new ByteKey(from), true, new ByteKey(to), false);
+        for(ByteKey key : range) {
+            byte[] value = store.get(key.bytes());
+            // Removed since the iterator passed it
+            if(value != null && !action.test(key.bytes(), value)) {
+                return;
+            }
+        }
+    }
+
+    @Override
+    public void awaitDurable() {
+        store.awaitDurable();
+    }
+
+    @Override
+    public CompletableFuture<Void> whenDurable() {
+        return store.whenDurable();
+    }
+
+    private Object stripeFor(byte[] key) {
+        int h = Arrays.hashCode(key);
+        return stripes[(h ^ (h >>> 16)) & (STRIPES - 1)];
+    }
+}
@@ -0,0 +1,849 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Compact binary framing shared by the Client and Server over both TCP and UDP.
+ * Every operation is exactly one request frame and one response frame:
+ *
+ *   request:  MAGIC(1) VERSION(1) LENGTH(4) | OPCODE(1) REQUEST_ID(4) KEY_LEN(4) KEY VALUE_LEN(4) VALUE
+ *   response: MAGIC(1) VERSION(1) LENGTH(4) | OPCODE(1) STATUS(1) REQUEST_ID(4) VALUE_LEN(4) VALUE
+ *
+ * LENGTH counts the bytes following the header. The leading MAGIC byte can never start a writeUTF
+ * operation name, which lets the server tell binary frames apart from the original text protocol.
+ *
+ * Multi-key operations carry their keys (and for MPUT, values) as an encoded list in the KEY (and VALUE) field,
+ * and answer with an encoded list of per-key results in the response VALUE field:
+ *
+ *   list:    COUNT(4) { LEN(4) BYTES }*
+ *   results: COUNT(4) { STATUS(1) LEN(4) BYTES }*
+ *
+ * Expiration operations carry a time to live in milliseconds: PUT_TTL sends TTL(8) followed by the value in the
+ * VALUE field, EXPIRE sends just TTL(8) (0 clears it), and the response to TTL carries the milliseconds left as
+ * VALUE, or -1 if the key never expires.
+ *
+ * Near caches are kept coherent over TCP with a second connection: SUBSCRIBE answers with a SUBSCRIBER_ID(4) as
+ * VALUE and turns that connection into one the server only pushes INVALIDATE frames on, shaped as responses
+ * with REQUEST_ID 0 and the changed key as VALUE (an empty VALUE is a heartbeat). TRACKING, sent on any other
+ * connection with the SUBSCRIBER_ID as VALUE, makes the server invalidate every key later read by GET on it.
+ *
+ * STATS answers with the server's counters and latency percentiles as VALUE, one 'name:value' line each.
+ *
+ * SCAN lists the pairs in a range of keys, in ascending order of their unsigned bytes, over TCP. Its KEY is the
+ * first key of the range (a prefix scan starts at the prefix) and its VALUE is LIMIT(4) followed by the key
+ * ending the range, exclusive, or nothing for no end. It is answered with a stream of responses: any number with
+ * STATUS_PARTIAL carrying the next pairs as a list of alternating keys and values, then one with STATUS_OK whose
+ * VALUE is the cursor, the key to start the next page at, empty once the range is exhausted.
+ *
+ * REPLICATE, sent by a replica over TCP, turns that connection into one its primary only writes on: a PUT request
+ * frame for every key in the store, then a PUT or DELETE request frame for every later write, exactly as stored.
+ * REPLICATE request frames follow the copy and each batch of writes, with SEQUENCE(8) TIME(8) HEAD(8) as VALUE:
+ * the primary's position after the last write sent, the epoch milliseconds that write was made at, and the
+ * primary's latest position.
+ *
+ * Values larger than CHUNK_SIZE, in requests and responses alike, are streamed over TCP instead of being
+ * carried in the frame. The frame's OPCODE has FLAG_CHUNKED set, its VALUE_LEN holds the total length of the
+ * value and it ends there; the value follows the frame in chunks of at most CHUNK_SIZE bytes:
+ *
+ *   chunks:  { CHUNK_LEN(4) BYTES }*   adding up to VALUE_LEN
+ *
+ * so neither side has to hold an oversized frame, and the receiver reads every chunk straight into the value.
+ * The value grows as its chunks arrive rather than being allocated from VALUE_LEN, so a header claiming a huge
+ * value costs no more memory than the bytes actually sent. A UDP datagram carries at most MAX_DATAGRAM_SIZE bytes;
+ * the server answers a request whose response would not fit with STATUS_TOO_LARGE, telling the client to repeat
+ * it over TCP.
+ *
+ * FLAG_COMPRESSED on OPCODE marks a VALUE that is a ValueCompression envelope rather than the value itself: on a
+ * PUT the client compressed it (for PUT_TTL the envelope follows the TTL), on a response it is the value exactly
+ * as the server stores it. A GET with FLAG_COMPRESSED tells the server the client can take an envelope, so a
+ * compressed value is sent without being decompressed; decoding a response decompresses its value. Likewise, an
+ * MGET with FLAG_COMPRESSED is answered with FLAG_COMPRESSED and every value in its results as stored, and
+ * decoding the results decompresses each value.
+ */
+public class Protocol {
+
+    public static final byte MAGIC = (byte) 0xB7;
+    public static final byte VERSION = 1;
+    public static final int HEADER_SIZE = 6; // MAGIC, VERSION, LENGTH
+    public static final int MAX_FRAME_SIZE = 1024 * 1024;
+    public static final int CHUNK_SIZE = 64 * 1024; // Largest value carried in the frame, and largest chunk
+    public static final int MAX_VALUE_SIZE = 64 * 1024 * 1024;
+    // Replicated values are sent as stored, behind an expiration deadline and a compression header
+    private static final int MAX_STORED_OVERHEAD = 64;
+    public static final int MAX_DATAGRAM_SIZE = 65507; // Largest UDP payload over IPv4
+    public static final byte FLAG_CHUNKED = (byte) 0x80; // Set on OPCODE when the value follows in chunks
+    public static final byte FLAG_COMPRESSED = 0x40; // Set on OPCODE when the value is a compressed envelope
+
+    public static final byte OP_PUT = 1;
+    public static final byte OP_GET = 2;
+    public static final byte OP_DELETE = 3;
+    public static final byte OP_MPUT = 4;
+    public static final byte OP_MGET = 5;
+    public static final byte OP_MDELETE = 6;
+    public static final byte OP_SNAPSHOT = 7;
+    public static final byte OP_PUT_TTL = 8;
+    public static final byte OP_EXPIRE = 9;
+    public static final byte OP_TTL = 10;
+    public static final byte OP_SUBSCRIBE = 11;
+    public static final byte OP_TRACKING = 12;
+    public static final byte OP_INVALIDATE = 13;
+    public static final byte OP_STATS = 14;
+    public static final byte OP_SCAN = 15;
+    public static final byte OP_REPLICATE = 16;
+
+    public static final int TTL_SIZE = 8; // Milliseconds, leading the VALUE field of PUT_TTL and EXPIRE
+    public static final int MAX_SCAN_LIMIT = 100_000; // Pairs per SCAN page
+
+    public static final byte STATUS_OK = 0;
+    public static final byte STATUS_NOT_FOUND = 1;
+    public static final byte STATUS_ERROR = 2;
+    public static final byte STATUS_TOO_LARGE = 3; // The response does not fit a datagram, repeat over TCP
+    public static final byte STATUS_PARTIAL = 4; // More responses to the same request follow
+
+    /**
+     * A single operation sent from the Client to the Server.
+     */
+    public static class Request {
+        public final byte opcode;
+        public final byte flags;
+        public final int requestId;
+        public final byte[] key;
+        public final byte[] value;
+
+        public Request(byte opcode, int requestId, byte[] key, byte[] value) {
+            this(opcode, (byte) 0, requestId, key, value);
+        }
+
+        public Request(byte opcode, byte flags, int requestId, byte[] key, byte[] value) {
+            this.opcode = opcode;
+            this.flags = flags;
+            this.requestId = requestId;
+            this.key = key;
+            this.value = value;
+        }
+    }
+
+    /**
+     * The result of a single operation sent from the Server back to the Client.
+     */
+    public static class Response {
+        public final byte opcode;
+        public final byte flags;
+        public final byte status;
+        public final int requestId;
+        public final byte[] value;
+
+        public Response(byte opcode, byte status, int requestId, byte[] value) {
+            this(opcode, (byte) 0, status, requestId, value);
+        }
+
+        public Response(byte opcode, byte flags, byte status, int requestId, byte[] value) {
+            this.opcode = opcode;
+            this.flags = flags;
+            this.status = status;
+            this.requestId = requestId;
+            this.value = value;
+        }
+    }
+
+    /**
+     * Encodes a request into a single frame, followed by its value in chunks if the value is larger than CHUNK_SIZE.
+     * @param request The request to encode.
+     * @return The encoded frame.
+     */
+    public static byte[] encodeRequest(Request request) {
+        ByteBuffer buf = ByteBuffer.allocate(frameSize(request));
+        putRequestFrame(buf, request);
+        putValue(buf, request.value);
+        return buf.array();
+    }
+
+    /**
+     * @param request The request.
+     * @return The number of bytes in the request's encoded frame, including the header and any chunks.
+     */
+    public static int frameSize(Request request) {
+        return HEADER_SIZE + 1 + 4 + 4 + request.key.length + 4 + valueSize(request.value);
+    }
+
+    /**
+     * @param response The response.
+     * @return The number of bytes in the response's encoded frame, including the header and any chunks.
+     */
+    public static int frameSize(Response response) {
+        return HEADER_SIZE + 1 + 1 + 4 + 4 + valueSize(response.value);
+    }
+
+    /**
+     * Encodes a response into a single frame, followed by its value in chunks if the value is larger than CHUNK_SIZE.
+     * @param response The response to encode.
+     * @return The encoded frame.
+     */
+    public static byte[] encodeResponse(Response response) {
+        ByteBuffer buf = ByteBuffer.allocate(frameSize(response));
+        putResponseFrame(buf, response);
+        putValue(buf, response.value);
+        return buf.array();
+    }
+
+    /**
+     * Decodes a request frame, such as the contents of a single datagram.
+     * @param data The bytes containing the frame.
+     * @param offset The offset of the frame within data.
+     * @param length The number of bytes available starting at offset.
+     * @return The decoded request.
+     * @throws ProtocolException Throws exception if the frame is malformed, truncated, or of an unsupported version.
+     */
+    public static Request decodeRequest(byte[] data, int offset, int length) throws ProtocolException {
+        ByteBuffer buf = frameBody(data, offset, length);
+        try {
+            byte opcode = buf.get();
+            int requestId = buf.getInt();
+            byte[] key = readBytes(buf);
+            byte[] value = isChunked(opcode) ? readChunks(buf, buf.getInt()) : readBytes(buf);
+            if(buf.hasRemaining()) {
+                throw new ProtocolException("Unexpected bytes after request frame");
+            }
+            return new Request(opcodeOf(opcode), flagsOf(opcode), requestId, key, value);
+        } catch (RuntimeException e) {
+            throw new ProtocolException("Malformed request frame");
+        }
+    }
+
+    /**
+     * Decodes a response frame, such as the contents of a single datagram.
+     * @param data The bytes containing the frame.
+     * @param offset The offset of the frame within data.
+     * @param length The number of bytes available starting at offset.
+     * @return The decoded response.
+     * @throws ProtocolException Throws exception if the frame is malformed, truncated, or of an unsupported version.
+     */
+    public static Response decodeResponse(byte[] data, int offset, int length) throws ProtocolException {
+        ByteBuffer buf = frameBody(data, offset, length);
+        try {
+            byte opcode = buf.get();
+            byte status = buf.get();
+            int requestId = buf.getInt();
+            byte[] value = isChunked(opcode) ? readChunks(buf, buf.getInt()) : readBytes(buf);
+            if(buf.hasRemaining()) {
+                throw new ProtocolException("Unexpected bytes after response frame");
+            }
+            return decompressed(opcode, status, requestId, value);
+        } catch (RuntimeException e) {
+            throw new ProtocolException("Malformed response frame");
+        }
+    }
+
+    /**
+     * Determines the total length of the frame at the start of the given bytes, so callers accumulating
+     * partial reads know how many bytes they still need.
+     * @param data The bytes containing the start of a frame.
+     * @param offset The offset of the frame within data.
+     * @param length The number of bytes available starting at offset.
+     * For a frame followed by chunks, this is the length of the frame and all its chunks; until every chunk
+     * header has arrived, it is the smallest length the chunks received so far allow.
+     * @return The length of the whole frame including its header, or -1 if the header is not complete yet.
+     * @throws ProtocolException Throws exception if the header or a chunk length is invalid.
+     */
+    public static int frameLength(byte[] data, int offset, int length) throws ProtocolException {
+        if(length < HEADER_SIZE) {
+            return -1;
+        }
+        ByteBuffer buf = ByteBuffer.wrap(data, offset, length);
+        byte magic = buf.get();
+        byte version = buf.get();
+        int bodyLength = buf.getInt();
+        checkHeader(magic, version, bodyLength);
+        int frameLength = HEADER_SIZE + bodyLength;
+        if(bodyLength == 0 || length == HEADER_SIZE || !isChunked(buf.get()) || length < frameLength) {
+            return frameLength;
+        }
+
+        // The frame ends with VALUE_LEN; walk the chunk headers received so far
+        int remaining = checkValueLength(ByteBuffer.wrap(data, offset + frameLength - 4, 4).getInt());
+        int position = frameLength;
+        while(remaining > 0 && position + 4 <= length) {
+            int chunk = ByteBuffer.wrap(data, offset + position, 4).getInt();
+            checkChunkLength(chunk, remaining);
+            position += 4 + chunk;
+            remaining -= chunk;
+        }
+        // Each chunk still to come carries at most CHUNK_SIZE bytes of the value
+        return position + remaining + 4 * ((remaining + CHUNK_SIZE - 1) / CHUNK_SIZE);
+    }
+
+    /**
+     * Reads a single request frame from a stream.
+     * @param in The DataInputStream to read from.
+     * @return The decoded request.
+     * @throws IOException Throws exception if the stream fails or the frame is malformed.
+     */
+    public static Request readRequest(DataInputStream in) throws IOException {
+        byte[] frame = readFrame(in);
+        if(frame.length == HEADER_SIZE || !isChunked(frame[HEADER_SIZE])) {
+            return decodeRequest(frame, 0, frame.length);
+        }
+        ByteBuffer buf = ByteBuffer.wrap(frame, HEADER_SIZE, frame.length - HEADER_SIZE);
+        byte opcode;
+        int requestId;
+        byte[] key;
+        int valueLength;
+        try {
+            opcode = buf.get();
+            requestId = buf.getInt();
+            key = readBytes(buf);
+            valueLength = buf.getInt();
+        } catch (RuntimeException e) {
+            throw new ProtocolException("Malformed request frame");
+        }
+        if(buf.hasRemaining()) {
+            throw new ProtocolException("Unexpected bytes after request frame");
+        }
+        return new Request(opcodeOf(opcode), flagsOf(opcode), requestId, key, readChunks(in, valueLength));
+    }
+
+    /**
+     * Reads a single response frame from a stream.
+     * @param in The DataInputStream to read from.
+     * @return The decoded response.
+     * @throws IOException Throws exception if the stream fails or the frame is malformed.
+     */
+    public static Response readResponse(DataInputStream in) throws IOException {
+        byte[] frame = readFrame(in);
+        if(frame.length == HEADER_SIZE || !isChunked(frame[HEADER_SIZE])) {
+            return decodeResponse(frame, 0, frame.length);
+        }
+        ByteBuffer buf = ByteBuffer.wrap(frame, HEADER_SIZE, frame.length - HEADER_SIZE);
+        byte opcode;
+        byte status;
+        int requestId;
+        int valueLength;
+        try {
+            opcode = buf.get();
+            status = buf.get();
+            requestId = buf.getInt();
+            valueLength = buf.getInt();
+        } catch (RuntimeException e) {
+            throw new ProtocolException("Malformed response frame");
+        }
+        if(buf.hasRemaining()) {
+            throw new ProtocolException("Unexpected bytes after response frame");
+        }
+        return decompressed(opcode, status, requestId, readChunks(in, valueLength));
+    }
+
+    /**
+     * Writes a single request frame to a stream. A value larger than CHUNK_SIZE is written in chunks straight
+     * from the request, without being copied into an encoded frame.
+     * @param out The DataOutputStream to write to.
+     * @param request The request to write.
+     * @throws IOException Throws exception if the stream fails.
+     */
+    public static void writeRequest(DataOutputStream out, Request request) throws IOException {
+        if(request.value.length <= CHUNK_SIZE) {
+            out.write(encodeRequest(request));
+        } else {
+            ByteBuffer buf = ByteBuffer.allocate(HEADER_SIZE + 1 + 4 + 4 + request.key.length + 4);
+            putRequestFrame(buf, request);
+            out.write(buf.array());
+            writeChunks(out, request.value);
+        }
+        out.flush();
+    }
+
+    /**
+     * Writes a single response frame to a stream. A value larger than CHUNK_SIZE is written in chunks straight
+     * from the response, without being copied into an encoded frame.
+     * @param out The DataOutputStream to write to.
+     * @param response The response to write.
+     * @throws IOException Throws exception if the stream fails.
+     */
+    public static void writeResponse(DataOutputStream out, Response response) throws IOException {
+        if(response.value.length <= CHUNK_SIZE) {
+            out.write(encodeResponse(response));
+        } else {
+            ByteBuffer buf = ByteBuffer.allocate(HEADER_SIZE + 1 + 1 + 4 + 4);
+            putResponseFrame(buf, response);
+            out.write(buf.array());
+            writeChunks(out, response.value);
+        }
+        out.flush();
+    }
+
+    /**
+     * Translates an operation name into its opcode.
+     * @param type The type of operation - PUT, GET, DELETE.
+     * @return The opcode, or -1 if the operation is unknown.
+     */
+    public static byte opcodeFor(String type) {
+        if(type.equals("PUT")) {
+            return OP_PUT;
+        } else if(type.equals("GET")) {
+            return OP_GET;
+        } else if(type.equals("DELETE")) {
+            return OP_DELETE;
+        } else if(type.equals("MPUT")) {
+            return OP_MPUT;
+        } else if(type.equals("MGET")) {
+            return OP_MGET;
+        } else if(type.equals("MDELETE")) {
+            return OP_MDELETE;
+        } else if(type.equals("SNAPSHOT")) {
+            return OP_SNAPSHOT;
+        } else if(type.equals("PUT_TTL")) {
+            return OP_PUT_TTL;
+        } else if(type.equals("EXPIRE")) {
+            return OP_EXPIRE;
+        } else if(type.equals("TTL")) {
+            return OP_TTL;
+        } else if(type.equals("SUBSCRIBE")) {
+            return OP_SUBSCRIBE;
+        } else if(type.equals("TRACKING")) {
+            return OP_TRACKING;
+        } else if(type.equals("INVALIDATE")) {
+            return OP_INVALIDATE;
+        } else if(type.equals("STATS")) {
+            return OP_STATS;
+        } else if(type.equals("SCAN")) {
+            return OP_SCAN;
+        } else if(type.equals("REPLICATE")) {
+            return OP_REPLICATE;
+        }
+        return -1;
+    }
+
+    /**
+     * Translates an opcode into its operation name.
+     * @param opcode The opcode.
+     * @return The name of the operation, or UNKNOWN.
+     */
+    public static String opcodeName(byte opcode) {
+        if(opcode == OP_PUT) {
+            return "PUT";
+        } else if(opcode == OP_GET) {
+            return "GET";
+        } else if(opcode == OP_DELETE) {
+            return "DELETE";
+        } else if(opcode == OP_MPUT) {
+            return "MPUT";
+        } else if(opcode == OP_MGET) {
+            return "MGET";
+        } else if(opcode == OP_MDELETE) {
+            return "MDELETE";
+        } else if(opcode == OP_SNAPSHOT) {
+            return "SNAPSHOT";
+        } else if(opcode == OP_PUT_TTL) {
+            return "PUT_TTL";
+        } else if(opcode == OP_EXPIRE) {
+            return "EXPIRE";
+        } else if(opcode == OP_TTL) {
+            return "TTL";
+        } else if(opcode == OP_SUBSCRIBE) {
+            return "SUBSCRIBE";
+        } else if(opcode == OP_TRACKING) {
+            return "TRACKING";
+        } else if(opcode == OP_INVALIDATE) {
+            return "INVALIDATE";
+        } else if(opcode == OP_STATS) {
+            return "STATS";
+        } else if(opcode == OP_SCAN) {
+            return "SCAN";
+        } else if(opcode == OP_REPLICATE) {
+            return "REPLICATE";
+        }
+        return "UNKNOWN";
+    }
+
+    /**
+     * Translates a multi-key opcode into the opcode applied to each of its keys.
+     * @param opcode The multi-key opcode - MPUT, MGET, MDELETE.
+     * @return The single-key opcode, or -1 if the opcode is not a multi-key operation.
+     */
+    public static byte singleKeyOpcode(byte opcode) {
+        if(opcode == OP_MPUT) {
+            return OP_PUT;
+        } else if(opcode == OP_MGET) {
+            return OP_GET;
+        } else if(opcode == OP_MDELETE) {
+            return OP_DELETE;
+        }
+        return -1;
+    }
+
+    /**
+     * Encodes a list of keys or values into the KEY or VALUE field of a multi-key request.
+     * @param items The keys or values.
+     * @return The encoded list.
+     */
+    public static byte[] encodeList(List<byte[]> items) {
+        int length = 4;
+        for(byte[] item : items) {
+            length += 4 + item.length;
+        }
+        ByteBuffer buf = ByteBuffer.allocate(length);
+        buf.putInt(items.size());
+        for(byte[] item : items) {
+            buf.putInt(item.length).put(item);
+        }
+        return buf.array();
+    }
+
+    /**
+     * Decodes a list of keys or values from the KEY or VALUE field of a multi-key request.
+     * @param data The encoded list.
+     * @return The keys or values.
+     * @throws ProtocolException Throws exception if the list is malformed.
+     */
+    public static List<byte[]> decodeList(byte[] data) throws ProtocolException {
+        try {
+            ByteBuffer buf = ByteBuffer.wrap(data);
+            int count = buf.getInt();
+            List<byte[]> items = new ArrayList<>(Math.min(count, data.length / 4));
+            for(int i = 0; i < count; i++) {
+                items.add(readBytes(buf));
+            }
+            return items;
+        } catch (RuntimeException e) {
+            throw new ProtocolException("Malformed list");
+        }
+    }
+
+    /**
+     * Encodes the per-key results of a multi-key operation into the VALUE field of its response.
+     * @param results The result of each single-key operation, in request order.
+     * @return The encoded results.
+     */
+    public static byte[] encodeResults(List<Response> results) {
+        int length = 4;
+        for(Response result : results) {
+            length += 1 + 4 + result.value.length;
+        }
+        ByteBuffer buf = ByteBuffer.allocate(length);
+        buf.putInt(results.size());
+        for(Response result : results) {
+            buf.put(result.status).putInt(result.value.length).put(result.value);
+        }
+        return buf.array();
+    }
+
+    /**
+     * Decodes the per-key results from the response to a multi-key operation.
+     * @param response The response to an MPUT, MGET, MDELETE request.
+     * @return The result of each single-key operation, in request order.
+     * @throws ProtocolException Throws exception if the results are malformed.
+     */
+    public static List<Response> decodeResults(Response response) throws ProtocolException {
+        byte opcode = singleKeyOpcode(response.opcode);
+        try {
+            ByteBuffer buf = ByteBuffer.wrap(response.value);
+            int count = buf.getInt();
+            List<Response> results = new ArrayList<>(Math.min(count, response.value.length / 5));
+            for(int i = 0; i < count; i++) {
+                byte status = buf.get();
+                byte[] value = readBytes(buf);
+                if((response.flags & FLAG_COMPRESSED) != 0) {
+                    value = ValueCompression.decode(value);
+                }
+                results.add(new Response(opcode, status, response.requestId, value));
+            }
+            return results;
+        } catch (RuntimeException e) {
+            throw new ProtocolException("Malformed results");
+        }
+    }
+
+    /**
+     * Builds a human-readable description of a response, matching the messages of the text protocol.
+     * @param key The key the operation was performed on.
+     * @param response The response received from the server.
+     * @return The description of the response.
+     */
+    public static String describe(String key, Response response) {
+        if(response.status == STATUS_ERROR || response.status == STATUS_TOO_LARGE) {
+            return "SERVER ERROR: " + toString(response.value);
+        } else if(response.status == STATUS_NOT_FOUND) {
+            return "Key " + key + " cannot be found in server";
+        } else if(response.opcode == OP_PUT) {
+            return "Entry for " + key + " successfully created";
+        } else if(response.opcode == OP_GET) {
+            return "Value for " + key + ": " + toString(response.value);
+        } else if(response.opcode == OP_DELETE) {
+            return "Key " + key + " deleted from server";
+        } else if(response.opcode == OP_SNAPSHOT) {
+            return toString(response.value);
+        } else if(response.opcode == OP_STATS) {
+            return "Server statistics:\n" + toString(response.value);
+        } else if(response.opcode == OP_PUT_TTL) {
+            return "Entry for " + key + " successfully created with a TTL";
+        } else if(response.opcode == OP_EXPIRE) {
+            return "TTL for " + key + " updated";
+        } else if(response.opcode == OP_TTL) {
+            long ttl = response.value.length == TTL_SIZE ? ByteBuffer.wrap(response.value).getLong() : -1;
+            return ttl < 0 ? "Key " + key + " never expires" : "Key " + key + " expires in " + ttl + "ms";
+        }
+        return "Unknown response for " + key;
+    }
+
+    /**
+     * Prefixes a value with a time to live, as sent in the VALUE field of PUT_TTL and EXPIRE.
+     * @param ttl Milliseconds until the key expires, 0 to never expire.
+     * @param value The value, empty for EXPIRE.
+     * @return The encoded field.
+     */
+    public static byte[] encodeTTL(long ttl, byte[] value) {
+        return ByteBuffer.allocate(TTL_SIZE + value.length).putLong(ttl).put(value).array();
+    }
+
+    /**
+     * Encodes the VALUE field of a SCAN request.
+     * @param limit The most pairs to return.
+     * @param end The key ending the range, exclusive, or null for no end.
+     * @return The encoded field.
+     */
+    public static byte[] encodeScan(int limit, byte[] end) {
+        byte[] to = end != null ? end : new byte[0];
+        return ByteBuffer.allocate(4 + to.length).putInt(limit).put(to).array();
+    }
+
+    /**
+     * Computes the end of the range holding every key that starts with a prefix.
+     * @param prefix The prefix.
+     * @return The lowest key above every key starting with the prefix, or null if there is none, such as for an
+     * empty prefix.
+     */
+    public static byte[] prefixEnd(byte[] prefix) {
+        // Increment the last byte that can be, dropping the 0xFF bytes after it
+        for(int i = prefix.length - 1; i >= 0; i--) {
+            if(prefix[i] != (byte) 0xFF) {
+                byte[] end = Arrays.copyOf(prefix, i + 1);
+                end[i]++;
+                return end;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Reads the time to live leading the VALUE field of PUT_TTL and EXPIRE.
+     * @param data The field.
+     * @return Milliseconds until the key expires.
+     * @throws ProtocolException Throws exception if the field is too short.
+     */
+    public static long decodeTTL(byte[] data) throws ProtocolException {
+        if(data.length < TTL_SIZE) {
+            throw new ProtocolException("Missing TTL");
+        }
+        return ByteBuffer.wrap(data).getLong();
+    }
+
+    public static byte[] toBytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    public static String toString(byte[] b) {
+        return new String(b, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Reads the header and body of a single frame from a stream.
+     * @param in The DataInputStream to read from.
+     * @return The whole frame, header included.
+     * @throws IOException Throws exception if the stream fails or the header is invalid.
+     */
+    private static byte[] readFrame(DataInputStream in) throws IOException {
+        byte magic = in.readByte();
+        byte version = in.readByte();
+        int bodyLength = in.readInt();
+        checkHeader(magic, version, bodyLength);
+
+        byte[] frame = new byte[HEADER_SIZE + bodyLength];
+        ByteBuffer.wrap(frame).put(magic).put(version).putInt(bodyLength);
+        in.readFully(frame, HEADER_SIZE, bodyLength);
+        return frame;
+    }
+
+    /**
+     * Validates the header of a frame and returns a buffer positioned at the start of its body, and limited to
+     * the end of its chunks if it has any.
+     */
+    private static ByteBuffer frameBody(byte[] data, int offset, int length) throws ProtocolException {
+        if(length < HEADER_SIZE) {
+            throw new ProtocolException("Truncated frame header");
+        }
+        ByteBuffer buf = ByteBuffer.wrap(data, offset, length);
+        byte magic = buf.get();
+        byte version = buf.get();
+        int bodyLength = buf.getInt();
+        checkHeader(magic, version, bodyLength);
+        // A chunked frame is followed by its chunks, checked as the value is read
+        boolean chunked = bodyLength > 0 && buf.remaining() > 0 && isChunked(buf.get(buf.position()));
+        if(chunked ? bodyLength > buf.remaining() : bodyLength != buf.remaining()) {
+            throw new ProtocolException("Frame length " + bodyLength + " does not match " + buf.remaining() + " bytes received");
+        }
+        return buf;
+    }
+
+    private static void checkHeader(byte magic, byte version, int bodyLength) throws ProtocolException {
+        if(magic != MAGIC) {
+            throw new ProtocolException("Frame does not start with protocol magic byte");
+        }
+        if(version != VERSION) {
+            throw new ProtocolException("Unsupported protocol version " + version);
+        }
+        if(bodyLength < 0 || bodyLength > MAX_FRAME_SIZE) {
+            throw new ProtocolException("Invalid frame length " + bodyLength);
+        }
+    }
+
+    private static byte[] readBytes(ByteBuffer buf) throws ProtocolException {
+        int length = buf.getInt();
+        // Checked before allocating, so a few bytes claiming a huge length cannot exhaust the heap
+        if(length < 0 || length > buf.remaining()) {
+            throw new ProtocolException("Invalid length " + length + " with " + buf.remaining() + " bytes left in frame");
+        }
+        byte[] b = new byte[length];
+        buf.get(b);
+        return b;
+    }
+
+    private static boolean isChunked(byte opcode) {
+        return (opcode & FLAG_CHUNKED) != 0;
+    }
+
+    private static byte opcodeOf(byte opcode) {
+        return (byte) (opcode & ~(FLAG_CHUNKED | FLAG_COMPRESSED));
+    }
+
+    private static byte flagsOf(byte opcode) {
+        return (byte) (opcode & FLAG_COMPRESSED);
+    }
+
+    /**
+     * Builds a decoded response, decompressing a value the server sent as it stores it.
+     */
+    private static Response decompressed(byte opcode, byte status, int requestId, byte[] value) throws ProtocolException {
+        if(singleKeyOpcode(opcodeOf(opcode)) != -1) {
+            // Multi-key results are decompressed one value at a time by decodeResults
+            return new Response(opcodeOf(opcode), flagsOf(opcode), status, requestId, value);
+        }
+        if((opcode & FLAG_COMPRESSED) != 0) {
+            value = ValueCompression.decode(value);
+        }
+        return new Response(opcodeOf(opcode), status, requestId, value);
+    }
+
+    /**
+     * @return The bytes the value takes after VALUE_LEN: the value itself, or its chunks.
+     */
+    private static int valueSize(byte[] value) {
+        if(value.length <= CHUNK_SIZE) {
+            return value.length;
+        }
+        return value.length + 4 * ((value.length + CHUNK_SIZE - 1) / CHUNK_SIZE);
+    }
+
+    /**
+     * Puts everything of a request frame up to and including VALUE_LEN, flagging the frame as chunked if its
+     * value is larger than CHUNK_SIZE.
+     */
+    private static void putRequestFrame(ByteBuffer buf, Request request) {
+        boolean chunked = request.value.length > CHUNK_SIZE;
+        int bodyLength = 1 + 4 + 4 + request.key.length + 4 + (chunked ? 0 : request.value.length);
+        buf.put(MAGIC).put(VERSION).putInt(bodyLength);
+        buf.put((byte) (request.opcode | request.flags | (chunked ? FLAG_CHUNKED : 0))).putInt(request.requestId);
+        buf.putInt(request.key.length).put(request.key);
+        buf.putInt(request.value.length);
+    }
+
+    /**
+     * Puts everything of a response frame up to and including VALUE_LEN, flagging the frame as chunked if its
+     * value is larger than CHUNK_SIZE.
+     */
+    private static void putResponseFrame(ByteBuffer buf, Response response) {
+        boolean chunked = response.value.length > CHUNK_SIZE;
+        int bodyLength = 1 + 1 + 4 + 4 + (chunked ? 0 : response.value.length);
+        buf.put(MAGIC).put(VERSION).putInt(bodyLength);
+        buf.put((byte) (response.opcode | response.flags | (chunked ? FLAG_CHUNKED : 0))).put(response.status);
+        buf.putInt(response.requestId).putInt(response.value.length);
+    }
+
+    /**
+     * Puts a value following its VALUE_LEN, inline or in chunks.
+     */
+    private static void putValue(ByteBuffer buf, byte[] value) {
+        if(value.length <= CHUNK_SIZE) {
+            buf.put(value);
+            return;
+        }
+        for(int offset = 0; offset < value.length; offset += CHUNK_SIZE) {
+            int chunk = Math.min(CHUNK_SIZE, value.length - offset);
+            buf.putInt(chunk).put(value, offset, chunk);
+        }
+    }
+
+    private static void writeChunks(DataOutputStream out, byte[] value) throws IOException {
+        byte[] chunkLength = new byte[4]; // One write per length, as writeInt writes a byte at a time
+        for(int offset = 0; offset < value.length; offset += CHUNK_SIZE) {
+            int chunk = Math.min(CHUNK_SIZE, value.length - offset);
+            ByteBuffer.wrap(chunkLength).putInt(chunk);
+            out.write(chunkLength);
+            out.write(value, offset, chunk);
+        }
+    }
+
+    /**
+     * Reads the chunks of a value following its frame in a buffer.
+     */
+    private static byte[] readChunks(ByteBuffer buf, int valueLength) throws ProtocolException {
+        if(checkValueLength(valueLength) > buf.remaining()) {
+            throw new ProtocolException("Chunked value length " + valueLength + " exceeds the " + buf.remaining() + " bytes received");
+        }
+        byte[] value = new byte[valueLength];
+        int filled = 0;
+        while(filled < value.length) {
+            int chunk = buf.getInt();
+            checkChunkLength(chunk, value.length - filled);
+            buf.get(value, filled, chunk);
+            filled += chunk;
+        }
+        return value;
+    }
+
+    /**
+     * Reads the chunks of a value following its frame on a stream, straight into the value, which starts small
+     * and at most doubles as chunks arrive until it reaches VALUE_LEN.
+     */
+    private static byte[] readChunks(DataInputStream in, int valueLength) throws IOException {
+        byte[] value = new byte[Math.min(checkValueLength(valueLength), 4 * CHUNK_SIZE)];
+        int filled = 0;
+        while(filled < valueLength) {
+            int chunk = in.readInt();
+            checkChunkLength(chunk, valueLength - filled);
+            if(filled + chunk > value.length) {
+                value = Arrays.copyOf(value, (int) Math.min(valueLength, Math.max(2L * value.length, filled + chunk)));
+            }
+            in.readFully(value, filled, chunk);
+            filled += chunk;
+        }
+        return value;
+    }
+
+    private static int checkValueLength(int valueLength) throws ProtocolException {
+        if(valueLength <= CHUNK_SIZE || valueLength > MAX_VALUE_SIZE + MAX_STORED_OVERHEAD) {
+            throw new ProtocolException("Invalid chunked value length " + valueLength);
+        }
+        return valueLength;
+    }
+
+    private static void checkChunkLength(int chunk, int remaining) throws ProtocolException {
+        if(chunk <= 0 || chunk > CHUNK_SIZE || chunk > remaining) {
+            throw new ProtocolException("Invalid chunk length " + chunk);
+        }
+    }
+}
@@ -0,0 +1,420 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.BiPredicate;
+
+/**
+ * Storage engine that streams every write to replica servers, and on a replica applies the writes streamed by its
+ * primary, so reads can be spread over several servers holding the same data.
+ *
+ * A replica connects to its primary and sends REPLICATE, which turns the connection into one the primary only
+ * writes on. The primary first sends a full copy of the store as PUT frames, then every PUT and DELETE made since,
+ * as the same frames clients send, in the order they were made to each key. A REPLICATE frame follows the copy and
+ * every batch of writes, giving the primary's position in its sequence of writes and when the last write sent was
+ * made, from which the replica knows how far behind it is; an idle primary sends one every second, so a replica
+ * notices a lost primary and reconnects, copying the store again.
+ *
+ * Writes are queued per replica and sent by the thread serving its connection, so writers never wait for a replica.
+ * A replica whose queue grows past REPLICA_BACKLOG_BYTES is disconnected and copies the store again. Values are
+ * replicated exactly as stored below expiration and compression, deadlines and compressed envelopes included, and
+ * keys the primary expires or evicts are replicated as DELETEs.
+ */
+public class ReplicatingStorageEngine implements StorageEngine {
+
+    // Writes to the same key are numbered and queued in the order they are made to the store
+    private static final int STRIPES = 64;
+
+    private static final long REPLICA_BACKLOG_BYTES = 64L * 1024 * 1024;
+
+    // Writes sent to a replica between two position frames
+    private static final int BATCH_BYTES = 64 * 1024;
+
+    private static final int HEARTBEAT_MILLIS = 1000;
+
+    // A replica gives up on a primary silent for this long, and waits this long before reconnecting
+    private static final int PRIMARY_TIMEOUT_MILLIS = 10 * HEARTBEAT_MILLIS;
+    private static final int RECONNECT_MILLIS = HEARTBEAT_MILLIS;
+
+    private static final int POSITION_SIZE = 24; // SEQUENCE, TIME, HEAD
+
+    // Queued in place of a write to make serveReplica disconnect an overflowing replica
+    private static final Write OVERFLOW = new Write(0, 0, new byte[0], null);
+
+    private final StorageEngine store;
+    private final Object[] stripes = new Object[STRIPES];
+    private final AtomicLong sequence = new AtomicLong();
+    private final CopyOnWriteArrayList<Feed> feeds = new CopyOnWriteArrayList<>();
+    private final AtomicInteger nextReplicaId = new AtomicInteger();
+
+    // Replica side: the primary's <server_ip>:<port>, or null on a primary
+    private volatile String primary;
+    private volatile boolean linked;
+    private volatile long appliedSequence; // Primary's position of the last write applied
+    private volatile long primaryHead; // Primary's position when it last reported
+    private volatile long lagMillis;
+    private volatile long lastContact;
+
+    /**
+     * A write to send to replicas, with its value as stored, or null for a DELETE.
+     */
+    private static final class Write {
+        final long sequence;
+        final long time;
+        final byte[] key;
+        final byte[] value;
+
+        Write(long sequence, long time, byte[] key, byte[] value) {
+            this.sequence = sequence;
+            this.time = time;
+            this.key = key;
+            this.value = value;
+        }
+
+        int size() {
+            return key.length + (value != null ? value.length : 0);
+        }
+    }
+
+    /**
+     * The writes queued for one replica.
+     */
+    private static final class Feed {
+        final BlockingQueue<Write> queue = new LinkedBlockingQueue<>();
+        final AtomicLong backlog = new AtomicLong();
+        volatile boolean overflowed;
+
+        void offer(Write write) {
+            if(overflowed) {
+                return;
+            }
+            if(backlog.addAndGet(write.size()) > REPLICA_BACKLOG_BYTES) {
+                // Too far behind to catch up; drop the backlog and wake the sender to disconnect it
+                overflowed = true;
+                queue.clear();
+                queue.offer(OVERFLOW);
+                return;
+            }
+            queue.offer(write);
+        }
+    }
+
+    /**
+     * @param store The StorageEngine holding the data.
+     */
+    public ReplicatingStorageEngine(StorageEngine store) {
+        this.store = store;
+        for(int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Object();
+        }
+    }
+
+    @Override
+    public byte[] get(byte[] key) {
+        return store.get(key);
+    }
+
+    @Override
+    public byte[] put(byte[] key, byte[] value) {
+        synchronized(stripeFor(key)) {
+            byte[] previous = store.put(key, value);
+            record(key, value);
+            return previous;
+        }
+    }
+
+    @Override
+    public byte[] remove(byte[] key) {
+        synchronized(stripeFor(key)) {
+            byte[] previous = store.remove(key);
+            if(previous != null) {
+                record(key, null);
+            }
+            return previous;
+        }
+    }
+
+    @Override
+    public int size() {
+        return store.size();
+    }
+
+    @Override
+    public void forEach(BiConsumer<byte[], byte[]> action) {
+        store.forEach(action);
+    }
+
+    @Override
+    public void scan(byte[] from, byte[] to, BiPredicate<byte[], byte[]> action) {
+        store.scan(from, to, action);
+    }
+
+    @Override
+    public void awaitDurable() {
+        store.awaitDurable();
+    }
+
+    @Override
+    public CompletableFuture<Void> whenDurable() {
+        return store.whenDurable();
+    }
+
+    /**
+     * Sends a replica a full copy of the store followed by every later write, until the replica disconnects.
+     * @param out The DataOutputStream of the connection the replica sent REPLICATE on.
+     * @throws IOException Throws exception once the connection fails or the replica falls too far behind.
+     */
+    public void serveReplica(DataOutputStream out) throws IOException {
+        int id = nextReplicaId.incrementAndGet();
+        Feed feed = new Feed();
+        // Registered before the copy, so every write the copy might miss is sent after it
+        feeds.add(feed);
+        Server.logMessage("Replica " + id + " connected, copying " + store.size() + " keys");
+
+        DataOutputStream buffered = new DataOutputStream(new BufferedOutputStream(out, BATCH_BYTES));
+        try {
+            long start = System.nanoTime();
+            long sent = sequence.get();
+            long sentTime = System.currentTimeMillis();
+            long[] copied = new long[1];
+            try {
+                store.forEach((key, value) -> {
+                    try {
+                        send(buffered, Protocol.OP_PUT, key, value);
+                        copied[0]++;
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            sendPosition(buffered, sent, sentTime);
+            Server.logMessage("Replica " + id + " copied " + copied[0] + " keys in " +
+                    (System.nanoTime() - start) / 1_000_000 + "ms");
+
+            while(true) {
+                Write write = feed.queue.poll(HEARTBEAT_MILLIS, TimeUnit.MILLISECONDS);
+                if(feed.overflowed) {
+                    throw new IOException("Replica " + id + " fell more than " + REPLICA_BACKLOG_BYTES / 1024 / 1024 +
+                            "MB of writes behind");
+                }
+                int batched = 0;
+                while(write != null) {
+                    send(buffered, write.value != null ? Protocol.OP_PUT : Protocol.OP_DELETE, write.key,
+                            write.value != null ? write.value : new byte[0]);
+                    feed.backlog.addAndGet(-write.size());
+                    // Writes to different keys may be queued slightly out of sequence
+                    if(write.sequence > sent) {
+                        sent = write.sequence;
+                        sentTime = write.time;
+                    }
+                    batched += write.size();
+                    write = batched < BATCH_BYTES ? feed.queue.poll() : null;
+                }
+                sendPosition(buffered, sent, sentTime);
+            }
+        } catch (InterruptedException e) {
+            throw new IOException("Replica " + id + " interrupted");
+        } finally {
+            feeds.remove(feed);
+            Server.logMessage("Replica " + id + " disconnected");
+        }
+    }
+
+    /**
+     * Makes this server a replica: copies the primary's store into this one and keeps applying its writes, on a
+     * background thread that reconnects whenever the primary is lost.
+     * @param endpoint The primary's <server_ip>:<port>.
+     * @throws IllegalArgumentException Throws exception if the endpoint is malformed.
+     */
+    public void replicateFrom(String endpoint) {
+        int colon = endpoint.lastIndexOf(':');
+        if(colon <= 0) {
+            throw new IllegalArgumentException("Primary " + endpoint + " must be given as <server_ip>:<port>");
+        }
+        String host = endpoint.substring(0, colon);
+        int port = Integer.parseInt(endpoint.substring(colon + 1));
+        primary = endpoint;
+
+        Thread t = new Thread(() -> {
+            while(true) {
+                try (Socket s = new Socket(host, port)) {
+                    s.setTcpNoDelay(true);
+                    s.setSoTimeout(PRIMARY_TIMEOUT_MILLIS);
+                    DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream(), BATCH_BYTES));
+                    DataOutputStream out = new DataOutputStream(s.getOutputStream());
+                    Protocol.writeRequest(out, new Protocol.Request(Protocol.OP_REPLICATE, 0, new byte[0], new byte[0]));
+                    Server.logMessage("Replicating from " + endpoint);
+                    apply(in);
+                } catch (EOFException e) {
+                    Server.logMessage("Replication from " + endpoint + " stopped: the primary closed the connection");
+                } catch (IOException e) {
+                    Server.logMessage("Replication from " + endpoint + " stopped: " + e.getMessage());
+                } finally {
+                    linked = false;
+                }
+                try {
+                    TimeUnit.MILLISECONDS.sleep(RECONNECT_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }, "replication");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * @return Whether this server is a replica, which only takes writes from its primary.
+     */
+    public boolean isReplica() {
+        return primary != null;
+    }
+
+    /**
+     * @return The primary's <server_ip>:<port>, or null if this server is not a replica.
+     */
+    public String primary() {
+        return primary;
+    }
+
+    /**
+     * @return Milliseconds the data on this replica is behind its primary, as of the primary's last report.
+     */
+    public long lagMillis() {
+        return lagMillis;
+    }
+
+    /**
+     * Reports the state of replication as 'name', value pairs for the STATS operation.
+     * @param line Called with each statistic.
+     */
+    public void report(BiConsumer<String, Object> line) {
+        line.accept("replication_role", isReplica() ? "replica" : "primary");
+        line.accept("replication_sequence", sequence.get());
+        long backlog = 0;
+        for(Feed feed : feeds) {
+            backlog += feed.backlog.get();
+        }
+        line.accept("replicas", feeds.size());
+        line.accept("replication_backlog_bytes", backlog);
+        if(isReplica()) {
+            line.accept("replication_primary", primary);
+            line.accept("replication_link", linked ? "up" : "down");
+            line.accept("replication_applied", appliedSequence);
+            line.accept("replication_behind", Math.max(0, primaryHead - appliedSequence));
+            line.accept("replication_lag_ms", lagMillis);
+            line.accept("replication_last_contact_ms", lastContact > 0 ? System.currentTimeMillis() - lastContact : -1);
+        }
+    }
+
+    /**
+     * Applies the copy and the writes a primary streams, until the connection fails.
+     */
+    private void apply(DataInputStream in) throws IOException {
+        // Keys held before the copy, removed once the copy is complete unless it included them
+        Set<ByteKey> stale = new HashSet<>();
+        store.forEach((key, value) -> stale.add(new ByteKey(key)));
+        boolean copying = true;
+        long copied = 0;
+        long start = System.nanoTime();
+
+        while(true) {
+            Protocol.Request request = Protocol.readRequest(in);
+            lastContact = System.currentTimeMillis();
+            if(request.opcode == Protocol.OP_PUT) {
+                put(request.key, request.value);
+                if(copying) {
+                    copied++;
+                    stale.remove(new ByteKey(request.key));
+                }
+            } else if(request.opcode == Protocol.OP_DELETE) {
+                remove(request.key);
+            } else if(request.opcode == Protocol.OP_REPLICATE) {
+                applyPosition(request.value);
+                if(copying) {
+                    for(ByteKey key : stale) {
+                        remove(key.bytes());
+                    }
+                    Server.logMessage("Copied " + copied + " keys from " + primary + " in " +
+                            (System.nanoTime() - start) / 1_000_000 + "ms" +
+                            (stale.isEmpty() ? "" : ", removed " + stale.size() + " keys it no longer holds"));
+                    stale.clear();
+                    copying = false;
+                    linked = true;
+                }
+            } else {
+                throw new ProtocolException("Unexpected " + Protocol.opcodeName(request.opcode) + " from primary");
+            }
+        }
+    }
+
+    private void applyPosition(byte[] position) throws ProtocolException {
+        if(position.length != POSITION_SIZE) {
+            throw new ProtocolException("Malformed replication position");
+        }
+        ByteBuffer buf = ByteBuffer.wrap(position);
+        long applied = buf.getLong();
+        long time = buf.getLong();
+        long head = buf.getLong();
+        appliedSequence = applied;
+        primaryHead = head;
+        // Caught up if nothing had been written after the last write sent; otherwise as old as that write
+        lagMillis = applied >= head ? 0 : Math.max(0, System.currentTimeMillis() - time);
+    }
+
+    /**
+     * Queues a write for every replica, numbered in the order it was made to the store.
+     */
+    private void record(byte[] key, byte[] value) {
+        long seq = sequence.incrementAndGet();
+        if(feeds.isEmpty()) {
+            return;
+        }
+        Write write = new Write(seq, System.currentTimeMillis(), key, value);
+        for(Feed feed : feeds) {
+            feed.offer(write);
+        }
+    }
+
+    private static void send(DataOutputStream out, byte opcode, byte[] key, byte[] value) throws IOException {
+        Protocol.Request request = new Protocol.Request(opcode, 0, key, value);
+        if(value.length <= Protocol.CHUNK_SIZE) {
+            out.write(Protocol.encodeRequest(request));
+        } else {
+            Protocol.writeRequest(out, request);
+        }
+    }
+
+    /**
+     * Sends the position of the last write sent and flushes the batch before it.
+     */
+    private void sendPosition(DataOutputStream out, long sent, long sentTime) throws IOException {
+        byte[] position = ByteBuffer.allocate(POSITION_SIZE).putLong(sent).putLong(sentTime).putLong(sequence.get()).array();
+        out.write(Protocol.encodeRequest(new Protocol.Request(Protocol.OP_REPLICATE, 0, new byte[0], position)));
+        out.flush();
+    }
+
+    private Object stripeFor(byte[] key) {
+        int h = Arrays.hashCode(key);
+        return stripes[(h ^ (h >>> 16)) & (STRIPES - 1)];
+    }
+}
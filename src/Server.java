@@ -1,22 +1,61 @@
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.UTFDataFormatException;
+import java.io.UncheckedIOException;
 import java.net.*;
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.nio.file.Paths;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.InputMismatchException;
-import java.util.Scanner;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 public class Server {
 
+    // Bytes of pipelined responses buffered before they are written back to the client
+    private static final int PIPELINE_FLUSH_SIZE = 64 * 1024;
+
+    // Pairs, and bytes of keys and values, sent per SCAN response, so results go out while the scan goes on
+    private static final int SCAN_BATCH_PAIRS = 256;
+    private static final int SCAN_BATCH_BYTES = 64 * 1024;
+
+    // Largest UDP request datagram the server receives
+    private static final int UDP_BUFFER_SIZE = Protocol.MAX_DATAGRAM_SIZE;
+
+    // Takes snapshots of the store on SNAPSHOT requests, or null if snapshots are not enabled
+    private static volatile Snapshot snapshots;
+
+    // Tracks the keys cached by client near caches and pushes their invalidations
+    private static volatile TrackingStorageEngine tracking;
+
+    // Streams writes to replicas, and on a replica applies the writes of its primary
+    private static volatile ReplicatingStorageEngine replication;
+
+    // Operation counts, latencies and traffic of every transport, reported by STATS
+    static final ServerStats stats = new ServerStats();
+
     /**
      * Used to communicate with TCPClient to perform PUT, GET, DELETE operations over TCP protocol.
+     * Each accepted connection is handed off to the provided workers, or handled on the accepting thread if none.
      * @param serverIP The IP Address or hostname the server will be hosted on.
      * @param port The port the server will listen on.
-     * @param hMap The HashMap used to store and perform operations on Key, Value pairs specified by the TCPClient.
+     * @param store The StorageEngine used to store and perform operations on Key, Value pairs specified by the TCPClient.
+     * @param workers The ExecutorService used to handle accepted connections, or null to handle them sequentially.
+     * @param idleTimeout Milliseconds a connection may sit idle before the server closes it, 0 to never time out.
      */
-    public static void TCPServer(String serverIP, int port, HashMap<String, String> hMap) {
+    public static void TCPServer(String serverIP, int port, StorageEngine store, ExecutorService workers,
+                                 int idleTimeout) {
 
         try {
             // Translate String IP or hostname to InetAddress type
@@ -28,90 +67,24 @@ public class Server {
             while(true) { // Server listens until ctrl-c is pressed or exception occurs
                 // Look for and accept single incoming connection
                 Socket clientSocket = listenSocket.accept();
-                logMessage("Connection accepted on IP " + ip + " port " + port + " over TCP");
-
-                DataInputStream in = new DataInputStream(clientSocket.getInputStream());
-                DataOutputStream out = new DataOutputStream(clientSocket.getOutputStream());
+                logDebug("Connection accepted on IP {} port {} over TCP", ip, port);
 
                 try {
-                    // listen for type of operation: PUT, GET, DELETE
-                    String operation = in.readUTF();
-
-                    logMessage("Received " + operation + " request from " + ip + " port " + port);
-
-                    if(operation.equals("PUT")){
-                        // confirm to server that PUT operation is commencing
-                        out.writeUTF("Server initializing PUT operation");
-                        logMessage("Server initializing PUT operation");
-
-                        // Get key from client
-                        String key = in.readUTF();
-                        out.writeUTF("Key " + key + " received by server");
-                        logMessage(("Key " + key + " received by server"));
-
-                        // Get value from client
-                        String value = in.readUTF();
-                        out.writeUTF("Value " + value + " received by server");
-                        logMessage("Value " + value + " received by server");
-
-                        // Write key, value to hMap
-                        hMap.put(key, value);
-                        out.writeUTF("Key: " + key + " Value: " +  value + " have been written to the server");
-                        logMessage("Key: " + key + " Value: " +  value + " have been written to the server");
-
-                    } else if(operation.equals("GET")) {
-                        // confirm to server that GET operation is commencing
-                        out.writeUTF("Server initializing GET operation");
-                        logMessage("Server initializing GET operation");
-
-                        String key = in.readUTF();
-                        out.writeUTF("Key " + key + " received by server");
-                        logMessage(("Key " + key + " received by server"));
-
-                        if(hMap.containsKey(key)) {
-                            // Return value to client
-                            String value = hMap.get(key);
-                            out.writeUTF("Value for " + key + ": " + value);
-                            logMessage("Value for " + key + ": " + value);
-
-                        } else { // If key cannot be found in hMap
-                            // Return 'cannot be found' message to client
-                            out.writeUTF("Key " + key + " cannot be found");
-                            logMessage("Key " + key + " cannot be found");
-
-                        }
-
-                    } else if(operation.equals("DELETE")) {
-                        // confirm to server that DELETE operation is commencing
-                        out.writeUTF("Server initializing DELETE operation");
-                        logMessage("Server initializing DELETE operation");
-
-                        String key = in.readUTF();
-                        out.writeUTF("Key " + key + " received by server");
-                        logMessage("Key " + key + " received by server");
-
-                        if(hMap.containsKey(key)) {
-                            // If key exists, delete key from hMap
-                            hMap.remove(key);
-                            out.writeUTF("Key " + key + " deleted from server");
-                            logMessage("Key " + key + " deleted from server");
-                        } else {
-                            // If key is not found in server
-                            out.writeUTF("Key " + key +  " cannot be found in server");
-                            logMessage("Key " + key +  " cannot be found in server");
-                        }
-
+                    if(workers == null) {
+                        handleTCPClient(clientSocket, store, idleTimeout);
                     } else {
-                        // Faulty operation provided, send back error message
-                        out.writeUTF("SERVER ERROR: Faulty operation detected");
-                        logMessage("SERVER ERROR: Faulty operation detected");
+                        // Hand connection off so the next client can be accepted immediately
+                        workers.execute(() -> handleTCPClient(clientSocket, store, idleTimeout));
                     }
-
-                } catch (Exception e) {
-                    logMessage("Error handling client request: " + e.getMessage());
-                } finally {
+                } catch (RejectedExecutionException e) {
+                    // Every worker is serving a connection; turn this one away rather than queue it behind them
+                    logMessage("Connection limit reached, closing connection from " + clientSocket.getInetAddress() +
+                            " (raise --max-connections, or use --exec virtual for many idle clients)");
+                    clientSocket.close();
+                } catch (RuntimeException e) {
+                    // Keep accepting; only this connection is lost
+                    logMessage("Error handing off connection from " + clientSocket.getInetAddress() + ": " + e);
                     clientSocket.close();
-                    logMessage("Client connection to" + ip + " " + port + " closed");
                 }
             }
         } catch (UnknownHostException e) {
@@ -122,172 +95,1064 @@ public class Server {
 
     }
 
+    /**
+     * Performs PUT, GET, DELETE operations requested by a connected TCPClient until the client closes the
+     * connection or it stays idle longer than the idle timeout.
+     * @param clientSocket The Socket connected to the TCPClient.
+     * @param store The StorageEngine used to store and perform operations on Key, Value pairs specified by the TCPClient.
+     * @param idleTimeout Milliseconds the connection may sit idle before it is closed, 0 to never time out.
+     */
+    public static void handleTCPClient(Socket clientSocket, StorageEngine store, int idleTimeout) {
+        InetAddress ip = clientSocket.getInetAddress();
+        int port = clientSocket.getPort();
+        stats.connectionOpened();
+
+        try {
+            clientSocket.setSoTimeout(idleTimeout);
+            // Responses are written in whole batches, so Nagle would only delay the last one of a streamed SCAN
+            clientSocket.setTcpNoDelay(true);
+            // Buffered so the first byte of each request can be inspected to pick the protocol
+            DataInputStream in = new DataInputStream(new BufferedInputStream(clientSocket.getInputStream()));
+            DataOutputStream out = new DataOutputStream(clientSocket.getOutputStream());
+            TrackingStorageEngine.Session session = new TrackingStorageEngine.Session();
+
+            while(true) { // Serve requests until the client disconnects or the connection times out
+                handleTCPRequest(in, out, store, ip, port, session);
+            }
+        } catch (EOFException e) {
+            logDebug("Client {} {} closed the connection", ip, port);
+        } catch (SocketTimeoutException e) {
+            logMessage("Connection to " + ip + " " + port + " idle for " + idleTimeout + "ms");
+        } catch (Exception e) {
+            logMessage("Error handling client request: " + e.getMessage());
+        } finally {
+            stats.connectionClosed();
+            try {
+                clientSocket.close();
+            } catch (IOException e) {
+                logMessage("Error closing client connection: " + e.getMessage());
+            }
+            logDebug("Client connection to {} {} closed", ip, port);
+        }
+    }
+
+    /**
+     * Reads and performs a single PUT, GET, DELETE operation from a connected TCPClient.
+     * Requests starting with the binary protocol's magic byte are handled as a single frame,
+     * anything else falls back to the original text protocol.
+     * Binary requests pipelined behind the first one are processed in order and their responses
+     * are written back together, except values larger than Protocol.CHUNK_SIZE, which are streamed in chunks
+     * straight from the store.
+     * A SUBSCRIBE request turns the connection into a near cache invalidation channel for the rest of its life,
+     * and a REPLICATE request turns it into a replication stream to a replica.
+     * @param in The DataInputStream used to receive messages from the client, must support mark/reset.
+     * @param out The DataOutputStream used to send messages to the client.
+     * @param store The StorageEngine used to store and perform operations on Key, Value pairs specified by the TCPClient.
+     * @param ip The InetAddress of the client.
+     * @param port The port of the client.
+     * @param session The near cache tracking state of the connection.
+     * @throws IOException Throws exception if the connection is closed, times out, or fails.
+     */
+    public static void handleTCPRequest(DataInputStream in, DataOutputStream out, StorageEngine store,
+                                        InetAddress ip, int port, TrackingStorageEngine.Session session) throws IOException {
+        if((byte) peek(in) == Protocol.MAGIC) {
+            ByteArrayOutputStream responses = new ByteArrayOutputStream();
+            long received = 0;
+            long streamed = 0;
+            do {
+                Protocol.Request request = Protocol.readRequest(in);
+                received += Protocol.frameSize(request);
+                logDebug("Received binary {} request from {} port {}", Protocol.opcodeName(request.opcode), ip, port);
+
+                if(request.opcode == Protocol.OP_SUBSCRIBE) {
+                    // Answer anything pipelined before it, then only push invalidations until the client leaves
+                    store.awaitDurable();
+                    stats.recordTraffic(received, streamed + responses.size());
+                    out.write(responses.toByteArray());
+                    tracking.serveSubscriber(request, out);
+                    throw new EOFException();
+                } else if(request.opcode == Protocol.OP_REPLICATE) {
+                    // Likewise, then only send the store and its writes until the replica leaves
+                    store.awaitDurable();
+                    stats.recordTraffic(received, streamed + responses.size());
+                    out.write(responses.toByteArray());
+                    replication.serveReplica(out);
+                    throw new EOFException();
+                } else if(request.opcode == Protocol.OP_TRACKING) {
+                    responses.write(Protocol.encodeResponse(tracking.enableTracking(request, session)));
+                } else if(request.opcode == Protocol.OP_SCAN) {
+                    // Buffered responses are written out whenever there are enough, while the scan goes on
+                    processScan(request, store, response -> {
+                        responses.write(Protocol.encodeResponse(response));
+                        if(responses.size() >= PIPELINE_FLUSH_SIZE) {
+                            store.awaitDurable();
+                            stats.recordTraffic(0, responses.size());
+                            out.write(responses.toByteArray());
+                            responses.reset();
+                        }
+                    });
+                } else {
+                    if(request.opcode == Protocol.OP_GET) {
+                        // Tracked before the read, so a write racing with it is always followed by an invalidation
+                        tracking.track(request.key, session);
+                    }
+                    Protocol.Response response = processRequest(request, store);
+                    if(response.value.length > Protocol.CHUNK_SIZE) {
+                        // Answer what is pipelined before it, then write the value without copying it
+                        store.awaitDurable();
+                        out.write(responses.toByteArray());
+                        responses.reset();
+                        Protocol.writeResponse(out, response);
+                        streamed += Protocol.frameSize(response);
+                    } else {
+                        responses.write(Protocol.encodeResponse(response));
+                    }
+                }
+
+                // Keep going while further binary requests are already buffered, up to a bounded amount of output
+            } while(in.available() > 0 && responses.size() < PIPELINE_FLUSH_SIZE && (byte) peek(in) == Protocol.MAGIC);
+
+            // Acknowledge only once the writes in this batch are durable; one wait covers the whole batch
+            store.awaitDurable();
+            stats.recordTraffic(received, streamed + responses.size());
+            out.write(responses.toByteArray());
+            out.flush();
+        } else {
+            handleTextTCPRequest(in, out, store, ip, port);
+        }
+    }
+
+    /**
+     * Returns the next byte of the stream without consuming it.
+     * @param in The DataInputStream to peek at, must support mark/reset.
+     * @return The next byte as an int from 0 to 255.
+     * @throws IOException Throws exception if the stream fails or has ended.
+     */
+    private static int peek(DataInputStream in) throws IOException {
+        in.mark(1);
+        int next = in.read();
+        if(next == -1) {
+            throw new EOFException();
+        }
+        in.reset();
+        return next;
+    }
+
+    /**
+     * Performs a single PUT, GET, DELETE operation using the original text protocol,
+     * which acknowledges each part of the request with a separate message.
+     * @param in The DataInputStream used to receive messages from the client.
+     * @param out The DataOutputStream used to send messages to the client.
+     * @param store The StorageEngine used to store and perform operations on Key, Value pairs specified by the TCPClient.
+     * @param ip The InetAddress of the client.
+     * @param port The port of the client.
+     * @throws IOException Throws exception if the connection is closed, times out, or fails.
+     */
+    public static void handleTextTCPRequest(DataInputStream in, DataOutputStream out, StorageEngine store,
+                                            InetAddress ip, int port) throws IOException {
+        // listen for type of operation: PUT, GET, DELETE
+        String operation = in.readUTF();
+
+        logDebug("Received {} request from {} port {}", operation, ip, port);
+
+        if(operation.equals("PUT")){
+            // confirm to server that PUT operation is commencing
+            out.writeUTF("Server initializing PUT operation");
+            logDebug("Server initializing PUT operation");
+
+            // Get key from client
+            String key = in.readUTF();
+            out.writeUTF("Key " + key + " received by server");
+            logDebug("Key {} received by server", key);
+
+            // Get value from client
+            String value = in.readUTF();
+            out.writeUTF("Value " + value + " received by server");
+            logDebug("Value {} received by server", value);
+
+            if(isReadOnly()) {
+                stats.recordError();
+                out.writeUTF("SERVER ERROR: " + readOnlyMessage());
+                return;
+            }
+
+            // Write key, value to store
+            long start = System.nanoTime();
+            store.set(Protocol.toBytes(key), Protocol.toBytes(value), 0);
+            stats.recordOperation(Protocol.OP_PUT, Protocol.STATUS_OK, System.nanoTime() - start);
+            store.awaitDurable();
+            out.writeUTF("Key: " + key + " Value: " +  value + " have been written to the server");
+            logDebug("Key: {} Value: {} have been written to the server", key, value);
+
+        } else if(operation.equals("GET")) {
+            // confirm to server that GET operation is commencing
+            out.writeUTF("Server initializing GET operation");
+            logDebug("Server initializing GET operation");
+
+            String key = in.readUTF();
+            out.writeUTF("Key " + key + " received by server");
+            logDebug("Key {} received by server", key);
+
+            // Single lookup so a concurrent DELETE cannot remove the key between check and read
+            long start = System.nanoTime();
+            byte[] stored = store.get(Protocol.toBytes(key));
+            stats.recordOperation(Protocol.OP_GET, stored != null ? Protocol.STATUS_OK : Protocol.STATUS_NOT_FOUND,
+                    System.nanoTime() - start);
+            if(stored != null) {
+                // Return value to client
+                String value = Protocol.toString(stored);
+                try {
+                    out.writeUTF("Value for " + key + ": " + value);
+                    logDebug("Value for {}: {}", key, value);
+                } catch (UTFDataFormatException e) {
+                    // writeUTF checks the length before writing anything, so the connection is still usable
+                    out.writeUTF("SERVER ERROR: Value for " + key + " is too large for the text protocol");
+                    logMessage("Value for " + key + " of " + stored.length + " bytes is too large for the text protocol");
+                }
+
+            } else { // If key cannot be found in store
+                // Return 'cannot be found' message to client
+                out.writeUTF("Key " + key + " cannot be found");
+                logDebug("Key {} cannot be found", key);
+
+            }
+
+        } else if(operation.equals("DELETE")) {
+            // confirm to server that DELETE operation is commencing
+            out.writeUTF("Server initializing DELETE operation");
+            logDebug("Server initializing DELETE operation");
+
+            String key = in.readUTF();
+            out.writeUTF("Key " + key + " received by server");
+            logDebug("Key {} received by server", key);
+
+            if(isReadOnly()) {
+                stats.recordError();
+                out.writeUTF("SERVER ERROR: " + readOnlyMessage());
+                return;
+            }
+
+            long start = System.nanoTime();
+            boolean removed = store.delete(Protocol.toBytes(key));
+            stats.recordOperation(Protocol.OP_DELETE, removed ? Protocol.STATUS_OK : Protocol.STATUS_NOT_FOUND,
+                    System.nanoTime() - start);
+            if(removed) {
+                // If key existed, it has been deleted from store
+                store.awaitDurable();
+                out.writeUTF("Key " + key + " deleted from server");
+                logDebug("Key {} deleted from server", key);
+            } else {
+                // If key is not found in server
+                out.writeUTF("Key " + key +  " cannot be found in server");
+                logDebug("Key {} cannot be found in server", key);
+            }
+
+        } else {
+            // Faulty operation provided, send back error message
+            stats.recordError();
+            out.writeUTF("SERVER ERROR: Faulty operation detected");
+            logMessage("SERVER ERROR: Faulty operation detected");
+        }
+    }
+
+    /**
+     * Performs a single PUT, GET, DELETE, MPUT, MGET, MDELETE, SNAPSHOT, PUT_TTL, EXPIRE, TTL, STATS operation
+     * received as a binary protocol frame, and records it in the server statistics. SCAN is answered with
+     * several responses by processScan.
+     * @param request The decoded request.
+     * @param store The StorageEngine used to store and perform operations on Key, Value pairs.
+     * @return The response to send back to the client.
+     */
+    public static Protocol.Response processRequest(Protocol.Request request, StorageEngine store) {
+        long start = System.nanoTime();
+        Protocol.Response response = performRequest(request, store);
+        stats.recordOperation(request.opcode, response.status, System.nanoTime() - start);
+        return response;
+    }
+
+    /**
+     * Receives the responses to an operation answered with more than one, such as SCAN.
+     */
+    public interface ResponseSink {
+        void send(Protocol.Response response) throws IOException;
+    }
+
+    /**
+     * Performs a SCAN operation and records it in the server statistics. The pairs in the range are sent in
+     * batches as they are read, rather than gathered into one response, followed by the response carrying the
+     * cursor. Each batch is read by a fresh scan starting where the last one stopped, so a slow client never
+     * holds a scan open inside the store.
+     * @param request The decoded SCAN request.
+     * @param store The StorageEngine used to store and perform operations on Key, Value pairs.
+     * @param sink Receives each response.
+     * @throws IOException Throws exception if a response cannot be sent.
+     */
+    public static void processScan(Protocol.Request request, StorageEngine store, ResponseSink sink) throws IOException {
+        long start = System.nanoTime();
+        Protocol.Response last;
+        try {
+            last = performScan(request, store, sink);
+        } catch (ProtocolException e) {
+            logMessage("SERVER ERROR: Malformed SCAN request: " + e.getMessage());
+            last = new Protocol.Response(request.opcode, Protocol.STATUS_ERROR, request.requestId, Protocol.toBytes(e.getMessage()));
+        } catch (UnsupportedOperationException e) {
+            last = new Protocol.Response(request.opcode, Protocol.STATUS_ERROR, request.requestId,
+                    Protocol.toBytes("SCAN needs the ordered index, which is turned off on this server"));
+        }
+        stats.recordOperation(request.opcode, last.status, System.nanoTime() - start);
+        sink.send(last);
+    }
+
+    private static Protocol.Response performScan(Protocol.Request request, StorageEngine store, ResponseSink sink)
+            throws IOException {
+        if(request.value.length < 4) {
+            throw new ProtocolException("Missing SCAN limit");
+        }
+        int limit = ByteBuffer.wrap(request.value).getInt();
+        if(limit < 1 || limit > Protocol.MAX_SCAN_LIMIT) {
+            throw new ProtocolException("SCAN limit must be from 1 to " + Protocol.MAX_SCAN_LIMIT);
+        }
+        byte[] end = request.value.length > 4 ? Arrays.copyOfRange(request.value, 4, request.value.length) : null;
+
+        byte[] from = request.key;
+        int remaining = limit;
+        while(true) {
+            int pairs = Math.min(remaining, SCAN_BATCH_PAIRS);
+            List<byte[]> batch = new ArrayList<>(2 * pairs);
+            byte[][] next = new byte[1][]; // First key of the next batch or page
+            int[] bytes = new int[1];
+            store.scan(from, end, (key, value) -> {
+                if(batch.size() == 2 * pairs || bytes[0] >= SCAN_BATCH_BYTES) {
+                    next[0] = key;
+                    return false;
+                }
+                batch.add(key);
+                batch.add(value);
+                bytes[0] += key.length + value.length;
+                return true;
+            });
+
+            remaining -= batch.size() / 2;
+            if(!batch.isEmpty()) {
+                sink.send(new Protocol.Response(request.opcode, Protocol.STATUS_PARTIAL, request.requestId, Protocol.encodeList(batch)));
+            }
+            if(next[0] == null || remaining == 0) {
+                logDebug("SCAN from {} returned {} pairs", request.key, limit - remaining);
+                return new Protocol.Response(request.opcode, Protocol.STATUS_OK, request.requestId,
+                        next[0] != null ? next[0] : new byte[0]);
+            }
+            from = next[0];
+        }
+    }
+
+    private static Protocol.Response performRequest(Protocol.Request request, StorageEngine store) {
+        if(Protocol.singleKeyOpcode(request.opcode) != -1) {
+            return processMultiKeyRequest(request, store);
+        }
+
+        if(isReadOnly() && (request.opcode == Protocol.OP_PUT || request.opcode == Protocol.OP_DELETE ||
+                request.opcode == Protocol.OP_PUT_TTL || request.opcode == Protocol.OP_EXPIRE)) {
+            return new Protocol.Response(request.opcode, Protocol.STATUS_ERROR, request.requestId,
+                    Protocol.toBytes(readOnlyMessage()));
+        }
+
+        byte status = Protocol.STATUS_OK;
+        byte flags = 0;
+        byte[] value = new byte[0];
+        boolean compressed = (request.flags & Protocol.FLAG_COMPRESSED) != 0;
+
+        // Keys and values are logged as raw bytes and only turned into text if the message is written
+        if(request.opcode == Protocol.OP_PUT) {
+            try {
+                putValue(store, request.key, request.value, 0, compressed);
+                logDebug("Key: {} Value: {} have been written to the server", request.key, request.value);
+            } catch (ProtocolException e) {
+                status = Protocol.STATUS_ERROR;
+                value = Protocol.toBytes(e.getMessage());
+                logMessage("SERVER ERROR: Malformed PUT request: " + e.getMessage());
+            }
+
+        } else if(request.opcode == Protocol.OP_GET) {
+            // A client that can decompress gets a compressed value exactly as stored
+            byte[] stored = compressed && store instanceof CompressingStorageEngine
+                    ? ((CompressingStorageEngine) store).getStored(request.key) : store.get(request.key);
+            if(stored != null) {
+                value = stored;
+                if(compressed && ValueCompression.isEnvelope(stored)) {
+                    flags = Protocol.FLAG_COMPRESSED;
+                }
+                logDebug("Value for {}: {}", request.key, stored);
+            } else {
+                status = Protocol.STATUS_NOT_FOUND;
+                logDebug("Key {} cannot be found in server", request.key);
+            }
+
+        } else if(request.opcode == Protocol.OP_DELETE) {
+            if(store.delete(request.key)) {
+                logDebug("Key {} deleted from server", request.key);
+            } else {
+                status = Protocol.STATUS_NOT_FOUND;
+                logDebug("Key {} cannot be found in server", request.key);
+            }
+
+        } else if(request.opcode == Protocol.OP_PUT_TTL || request.opcode == Protocol.OP_EXPIRE) {
+            try {
+                long ttl = Protocol.decodeTTL(request.value);
+                if(request.opcode == Protocol.OP_PUT_TTL) {
+                    byte[] stored = Arrays.copyOfRange(request.value, Protocol.TTL_SIZE, request.value.length);
+                    putValue(store, request.key, stored, ttl, compressed);
+                    logDebug("Key: {} Value: {} have been written to the server with a TTL of {}ms", request.key, stored, ttl);
+                } else if(store.expire(request.key, ttl)) {
+                    logDebug("TTL for {} set to {}ms", request.key, ttl);
+                } else {
+                    status = Protocol.STATUS_NOT_FOUND;
+                    logDebug("Key {} cannot be found in server", request.key);
+                }
+            } catch (ProtocolException e) {
+                status = Protocol.STATUS_ERROR;
+                value = Protocol.toBytes(e.getMessage());
+                logMessage("SERVER ERROR: Malformed " + Protocol.opcodeName(request.opcode) + " request: " + e.getMessage());
+            }
+
+        } else if(request.opcode == Protocol.OP_TTL) {
+            long ttl = store.ttl(request.key);
+            if(ttl == -2) {
+                status = Protocol.STATUS_NOT_FOUND;
+                logDebug("Key {} cannot be found in server", request.key);
+            } else {
+                value = ByteBuffer.allocate(Protocol.TTL_SIZE).putLong(ttl).array();
+                logDebug("TTL for {}: {}ms", request.key, ttl);
+            }
+
+        } else if(request.opcode == Protocol.OP_STATS) {
+            value = Protocol.toBytes(stats.report(store));
+
+        } else if(request.opcode == Protocol.OP_SCAN) {
+            // Only reached over UDP; stream transports call processScan
+            status = Protocol.STATUS_ERROR;
+            value = Protocol.toBytes("SCAN streams its results and is only supported over TCP");
+
+        } else if(request.opcode == Protocol.OP_REPLICATE) {
+            // Only reached over UDP and NIO; the blocking TCP handler serves replicas
+            status = Protocol.STATUS_ERROR;
+            value = Protocol.toBytes("REPLICATE is only supported by the blocking TCP listener (--listen tcp)");
+
+        } else if(request.opcode == Protocol.OP_SUBSCRIBE || request.opcode == Protocol.OP_TRACKING) {
+            // Only reached over UDP and NIO; the blocking TCP handler serves near cache subscribers
+            status = Protocol.STATUS_ERROR;
+            value = Protocol.toBytes("Near caches are only supported by the blocking TCP listener (--listen tcp)");
+
+        } else if(request.opcode == Protocol.OP_SNAPSHOT) {
+            // Taken in the background, so the request is answered as soon as the snapshot has started
+            Snapshot snapshot = snapshots;
+            if(snapshot == null) {
+                status = Protocol.STATUS_ERROR;
+                value = Protocol.toBytes("Snapshots are not enabled on this server");
+            } else if(snapshot.trigger()) {
+                value = Protocol.toBytes("Snapshot started");
+                logMessage("Snapshot requested by client");
+            } else {
+                value = Protocol.toBytes("Snapshot already in progress");
+            }
+
+        } else {
+            status = Protocol.STATUS_ERROR;
+            value = Protocol.toBytes("Faulty operation detected");
+            logMessage("SERVER ERROR: Faulty operation detected");
+        }
+
+        return new Protocol.Response(request.opcode, flags, status, request.requestId, value);
+    }
+
+    /**
+     * @return Whether this server is a replica, which only takes writes from its primary.
+     */
+    private static boolean isReadOnly() {
+        ReplicatingStorageEngine r = replication;
+        return r != null && r.isReplica();
+    }
+
+    private static String readOnlyMessage() {
+        return "This server is a read-only replica of " + replication.primary() + ", send writes to the primary";
+    }
+
+    /**
+     * Stores the value of a PUT or PUT_TTL, keeping a value the client compressed as it is when the store can.
+     */
+    private static void putValue(StorageEngine store, byte[] key, byte[] value, long ttl, boolean compressed)
+            throws ProtocolException {
+        if(compressed) {
+            if(store instanceof CompressingStorageEngine) {
+                ((CompressingStorageEngine) store).putStored(key, value, ttl);
+                return;
+            }
+            value = ValueCompression.decode(value);
+        }
+        store.set(key, value, ttl);
+    }
+
+    /**
+     * Performs an MPUT, MGET, MDELETE operation by applying the single-key operation to each key in order,
+     * and returns every per-key result in one response.
+     * @param request The decoded multi-key request.
+     * @param store The StorageEngine used to store and perform operations on Key, Value pairs.
+     * @return The response to send back to the client.
+     */
+    public static Protocol.Response processMultiKeyRequest(Protocol.Request request, StorageEngine store) {
+        byte opcode = Protocol.singleKeyOpcode(request.opcode);
+        try {
+            List<byte[]> keys = Protocol.decodeList(request.key);
+            List<byte[]> values = opcode == Protocol.OP_PUT ? Protocol.decodeList(request.value) : null;
+            if(values != null && values.size() != keys.size()) {
+                throw new ProtocolException(keys.size() + " keys do not match " + values.size() + " values");
+            }
+            logDebug("Server performing {} on {} keys", Protocol.opcodeName(request.opcode), keys.size());
+
+            List<Protocol.Response> results = new ArrayList<>(keys.size());
+            for(int i = 0; i < keys.size(); i++) {
+                byte[] value = values != null ? values.get(i) : new byte[0];
+                // Each key is handled with the request's flags, so an MGET that accepts compressed values gets them as stored
+                results.add(processRequest(new Protocol.Request(opcode, request.flags, request.requestId, keys.get(i), value), store));
+            }
+            byte flags = opcode == Protocol.OP_GET ? (byte) (request.flags & Protocol.FLAG_COMPRESSED) : 0;
+            return new Protocol.Response(request.opcode, flags, Protocol.STATUS_OK, request.requestId,
+                    Protocol.encodeResults(results));
+
+        } catch (ProtocolException e) {
+            logMessage("SERVER ERROR: Malformed " + Protocol.opcodeName(request.opcode) + " request: " + e.getMessage());
+            return new Protocol.Response(request.opcode, Protocol.STATUS_ERROR, request.requestId, Protocol.toBytes(e.getMessage()));
+        }
+    }
+
     /**
      * Used to communicate with UDPClient to perform PUT, GET, DELETE operations over UDP protocol.
+     * Every request and response is a single self-contained binary protocol datagram tagged with the client's
+     * request ID, so datagrams from concurrent clients never depend on each other and can be handled by
+     * several workers at once. Each worker gets its own socket bound with SO_REUSEPORT where the platform
+     * supports it, otherwise all workers receive from one shared socket.
      * @param serverIP The IP Address or hostname the server will be hosted on.
      * @param port The port the server will listen on.
-     * @param hMap The HashMap used to store and perform operations on Key, Value pairs specified by the UDPClient.
+     * @param store The StorageEngine used to store and perform operations on Key, Value pairs specified by the UDPClient.
+     * @param udpWorkers The number of threads receiving and handling datagrams.
      */
-    public static void UDPServer(String serverIP, int port, HashMap<String, String> hMap) {
-        DatagramSocket s = null;
+    public static void UDPServer(String serverIP, int port, StorageEngine store, int udpWorkers) {
         try {
-            String val;
-            byte[] byteResponse;
-
             // Translate String IP or hostname to InetAddress type
             InetAddress ip = InetAddress.getByName(serverIP);
 
             // Create new socket at provided port and InetAddress
-            s = new DatagramSocket(port, ip);
+            DatagramSocket s = openUDPSocket(ip, port, udpWorkers > 1);
+            boolean reusePort = s.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT) &&
+                    s.getOption(StandardSocketOptions.SO_REUSEPORT);
+            logMessage("Server listening on IP " + ip + " port " + port + " over UDP with " + udpWorkers +
+                    (reusePort ? " workers on SO_REUSEPORT sockets" : " workers on a shared socket"));
 
-            byte[] buffer = new byte[1024];
-            while(true) { // Server listens until ctrl-c is pressed or exception occurs
+            Thread[] workers = new Thread[udpWorkers];
+            for(int i = 0; i < udpWorkers; i++) {
+                DatagramSocket workerSocket = (i == 0 || !reusePort) ? s : openUDPSocket(ip, port, true);
+                workers[i] = new Thread(() -> receiveUDPRequests(workerSocket, store), "udp-worker-" + i);
+                workers[i].start();
+            }
+            for(Thread worker : workers) {
+                worker.join();
+            }
 
-                // Get type of incoming request from client
-                DatagramPacket typePacket = new DatagramPacket(buffer, buffer.length);
-                s.receive(typePacket); // Get type of request
-                String typeMsg = new String(typePacket.getData(), 0, typePacket.getLength());
-
-                logMessage("Connection accepted on IP " + ip + "port " + port + " over UDP");
-                logMessage("Received " + typeMsg + " request from " + typePacket.getAddress() + " port " + typePacket.getPort());
-
-                // Get key from client
-                DatagramPacket keyPacket = new DatagramPacket(buffer, buffer.length);
-                s.receive(keyPacket); // Get type of request
-                String keyMsg = new String(keyPacket.getData(), 0, keyPacket.getLength());
-
-                logMessage("Key " + keyMsg + "from " + typePacket.getAddress() + " port " +
-                        typePacket.getPort() + " received by the server");
-
-                if(typeMsg.equals("PUT")) {
-                    // If operation is PUT, retrieve value
-                    DatagramPacket valPacket = new DatagramPacket(buffer, buffer.length);
-                    s.receive(valPacket);
-                    String valMsg = new String(valPacket.getData(), 0, valPacket.getLength());
-                    logMessage("Value " + valMsg + "from " + typePacket.getAddress() + " port " +
-                            typePacket.getPort() + " received by the server");
-
-                    hMap.put(keyMsg, valMsg);
-
-                    logMessage("Key: " + keyMsg + " Value: " +  valMsg + " have been written to the server");
-
-                    // Send confirmation to client of successful operation
-                    byteResponse = ("Entry for " + keyMsg + " successfully created").getBytes();
-                    DatagramPacket response = new DatagramPacket(byteResponse, byteResponse.length,
-                            typePacket.getAddress(), typePacket.getPort());
-                    s.send(response);
-
-                } else if (typeMsg.equals("GET")) {
-                    if(hMap.containsKey(keyMsg)) { // if key exists, return value
-                        val = "Value for " + keyMsg + ": " + hMap.get(keyMsg);
-                    } else { // Else return 'cannot be found' message
-                        val = ("Key " + keyMsg + " cannot be found in server");
-                    }
-                    logMessage(val);
-                    byteResponse = val.getBytes();
-                    DatagramPacket response = new DatagramPacket(byteResponse, byteResponse.length,
-                            typePacket.getAddress(), typePacket.getPort());
-                    s.send(response);
+        } catch (IOException e) {
+            logMessage(e.getMessage());
+        } catch (InterruptedException e) {
+            logMessage("UDP server interrupted");
+        }
+    }
 
-                } else if(typeMsg.equals("DELETE")) {
-                    if(hMap.containsKey(keyMsg)) { // if key exists, return value
-                        hMap.remove(keyMsg);
-                        val = "Key " + keyMsg + " deleted from server";
+    /**
+     * Opens the DatagramSocket a UDP worker receives requests on.
+     * @param ip The InetAddress the socket is bound to.
+     * @param port The port the socket is bound to.
+     * @param reusePort Whether to enable SO_REUSEPORT, if supported, so other workers can bind the same port.
+     * @return The bound DatagramSocket.
+     * @throws IOException Throws exception if the socket cannot be bound.
+     */
+    private static DatagramSocket openUDPSocket(InetAddress ip, int port, boolean reusePort) throws IOException {
+        DatagramSocket s = new DatagramSocket(null);
+        if(reusePort && s.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+            s.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+        }
+        s.bind(new InetSocketAddress(ip, port));
+        return s;
+    }
 
-                    } else { // Else return 'cannot be found' message
-                        val = ("Key " + keyMsg + " cannot be found in server");
+    /**
+     * Receives and handles UDP requests on a socket until the server is stopped or an exception occurs.
+     * @param s The DatagramSocket to receive requests on, possibly shared with other workers.
+     * @param store The StorageEngine used to store and perform operations on Key, Value pairs specified by the UDPClient.
+     */
+    public static void receiveUDPRequests(DatagramSocket s, StorageEngine store) {
+        byte[] buffer = new byte[UDP_BUFFER_SIZE]; // Owned by this worker
+        try {
+            while(true) { // Server listens until ctrl-c is pressed or exception occurs
+                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                s.receive(packet);
 
-                    }
-                    logMessage(val);
-                    byteResponse = val.getBytes();
-                    DatagramPacket response = new DatagramPacket(byteResponse, byteResponse.length,
-                            typePacket.getAddress(), typePacket.getPort());
-                    s.send(response);
+                try {
+                    if(packet.getLength() > 0 && buffer[0] == Protocol.MAGIC) {
+                        handleBinaryUDPRequest(s, packet, store);
 
-                } else {
-                    // Faulty operation provided
-                    logMessage("SERVER ERROR: Faulty operation detected");
-                    byteResponse = "SERVER ERROR: Faulty operation detected".getBytes();
-                    DatagramPacket response = new DatagramPacket(byteResponse, byteResponse.length,
-                            typePacket.getAddress(), typePacket.getPort());
-                    s.send(response);
+                    } else {
+                        // Not a binary protocol datagram, e.g. the retired multi-datagram text protocol
+                        stats.recordError();
+                        logMessage("SERVER ERROR: Faulty operation detected from " + packet.getAddress() + " port " + packet.getPort());
+                        byte[] byteResponse = "SERVER ERROR: Faulty operation detected".getBytes();
+                        s.send(new DatagramPacket(byteResponse, byteResponse.length, packet.getAddress(), packet.getPort()));
+                    }
+                } catch (RuntimeException e) {
+                    // One bad datagram must not stop this worker from serving the next
+                    stats.recordError();
+                    logMessage("SERVER ERROR: Request from " + packet.getAddress() + " port " + packet.getPort() +
+                            " failed: " + e);
                 }
             }
-
-        } catch (SocketException e) {
-            logMessage(e.getMessage());
         } catch (IOException e) {
             logMessage(e.getMessage());
         }
     }
 
     /**
-     * Asks the user for the communication type they wish to use with the server.
-     * User must enter '1' for TCP or '2' for UDP.
-     * If provided input is not '1' or '2', function will rerun until appropriate input is given.
-     * @param scanner The Scanner used for taking user input from System.in.
+     * Performs a single PUT, GET, DELETE operation received as a binary protocol datagram and sends back the response.
+     * Malformed datagrams are logged and answered with an error response.
+     * @param s The DatagramSocket the request was received on.
+     * @param packet The DatagramPacket containing the request frame.
+     * @param store The StorageEngine used to store and perform operations on Key, Value pairs.
+     * @throws IOException Throws exception if the response cannot be sent.
      */
-    public static void askForCommType(Scanner scanner, String serverIP, int port, HashMap<String,String> hMap) {
+    public static void handleBinaryUDPRequest(DatagramSocket s, DatagramPacket packet, StorageEngine store)
+            throws IOException {
+        Protocol.Response response;
+        Protocol.Request request = null;
         try {
-            System.out.println("Enter '1' to use TCP or enter '2' to use UDP");
-            int selection = scanner.nextInt();
+            request = Protocol.decodeRequest(packet.getData(), packet.getOffset(), packet.getLength());
+            logDebug("Received binary {} request from {} port {}", Protocol.opcodeName(request.opcode),
+                    packet.getAddress(), packet.getPort());
+            response = processRequest(request, store);
+            store.awaitDurable();
+        } catch (ProtocolException e) {
+            stats.recordError();
+            logMessage("SERVER ERROR: Malformed packet from " + packet.getAddress() + " port " + packet.getPort() +
+                    ": " + e.getMessage());
+            response = malformedResponse(packet, e.getMessage());
+        } catch (UncheckedIOException e) {
+            logMessage("SERVER ERROR: Write could not be made durable: " + e.getCause().getMessage());
+            response = new Protocol.Response(request.opcode, Protocol.STATUS_ERROR, request.requestId,
+                    Protocol.toBytes("Write could not be made durable"));
+        }
 
-            if (selection == 1) {
-                logMessage("TCP Communication Selected");
-                TCPServer(serverIP, port, hMap);
+        byte[] byteResponse = Protocol.encodeResponse(response);
+        if(byteResponse.length > Protocol.MAX_DATAGRAM_SIZE) {
+            // Reads are safe to repeat, and only their responses can grow this large
+            stats.recordError();
+            logMessage("Response of " + byteResponse.length + " bytes to " + packet.getAddress() + " port " +
+                    packet.getPort() + " does not fit a datagram");
+            byteResponse = Protocol.encodeResponse(new Protocol.Response(response.opcode, Protocol.STATUS_TOO_LARGE,
+                    response.requestId, Protocol.toBytes("Response too large for UDP, repeat the request over TCP")));
+        }
+        stats.recordTraffic(packet.getLength(), byteResponse.length);
+        s.send(new DatagramPacket(byteResponse, byteResponse.length, packet.getAddress(), packet.getPort()));
+    }
+
+    /**
+     * Builds the error response to a datagram that could not be decoded, echoing its opcode, without flags, and its
+     * request ID when the datagram is long enough to hold them, so the client can match the error to its request.
+     * @param packet The DatagramPacket containing the malformed request frame.
+     * @param message The reason the frame was rejected.
+     * @return The error response.
+     */
+    private static Protocol.Response malformedResponse(DatagramPacket packet, String message) {
+        byte opcode = 0;
+        int requestId = 0;
+        if(packet.getLength() >= Protocol.HEADER_SIZE + 1 + 4) {
+            ByteBuffer buf = ByteBuffer.wrap(packet.getData(), packet.getOffset(), packet.getLength());
+            opcode = (byte) (buf.get(packet.getOffset() + Protocol.HEADER_SIZE) & ~(Protocol.FLAG_CHUNKED | Protocol.FLAG_COMPRESSED));
+            requestId = buf.getInt(packet.getOffset() + Protocol.HEADER_SIZE + 1);
+        }
+        return new Protocol.Response(opcode, Protocol.STATUS_ERROR, requestId, Protocol.toBytes(message));
+    }
+
+    /**
+     * Parses the --listen option.
+     * @param listen Comma separated listeners - tcp, nio, udp.
+     * @return The listeners, lower case.
+     * @throws IllegalArgumentException Throws exception if a listener is unknown, or both tcp and nio are listed since
+     * they both serve TCP on the same port.
+     */
+    public static List<String> parseListeners(String listen) {
+        List<String> listeners = new ArrayList<>();
+        for(String listener : listen.split(",")) {
+            listener = listener.trim().toLowerCase();
+            if(listener.isEmpty()) {
+                continue;
+            }
+            if(!listener.equals("tcp") && !listener.equals("nio") && !listener.equals("udp")) {
+                throw new IllegalArgumentException("Unknown listener '" + listener + "'; use tcp, nio or udp");
+            }
+            listeners.add(listener);
+        }
+        if(listeners.contains("tcp") && listeners.contains("nio")) {
+            throw new IllegalArgumentException("tcp and nio both serve TCP; list only one");
+        }
+        if(listeners.isEmpty()) {
+            throw new IllegalArgumentException("No listener given");
+        }
+        return listeners;
+    }
 
-            } else if (selection == 2) {
+    /**
+     * Starts each listener on its own thread, all serving the same store, and waits for them.
+     * @param listeners The listeners to start, from parseListeners - tcp, nio, udp.
+     * @param serverIP The IP Address or hostname the server will be hosted on.
+     * @param port The port the TCP listener uses.
+     * @param udpPort The port the UDP listener uses.
+     * @param store The StorageEngine shared by every listener; must be safe for concurrent use.
+     * @param workers The ExecutorService used to handle TCP connections, or null to handle them sequentially.
+     * @param idleTimeout Milliseconds a TCP connection may sit idle before the server closes it.
+     * @param loops The number of event loop threads used by the NIO engine.
+     * @param udpWorkers The number of threads handling UDP requests.
+     */
+    public static void startListeners(List<String> listeners, String serverIP, int port, int udpPort, StorageEngine store,
+                                      ExecutorService workers, int idleTimeout, int loops, int udpWorkers) {
+        List<Thread> threads = new ArrayList<>();
+        for(String listener : listeners) {
+            Runnable server;
+            if(listener.equals("tcp")) {
+                logMessage("TCP Communication Selected");
+                server = () -> TCPServer(serverIP, port, store, workers, idleTimeout);
+            } else if(listener.equals("udp")) {
                 logMessage("UDP Communication Selected");
-                UDPServer(serverIP, port, hMap);
+                server = () -> UDPServer(serverIP, udpPort, store, udpWorkers);
+            } else {
+                logMessage("TCP Communication with NIO engine Selected");
+                server = () -> NIOServer.start(serverIP, port, store, loops, idleTimeout);
+            }
+            threads.add(new Thread(() -> {
+                server.run();
+                // Listeners only return if they fail, e.g. when the port is taken
+                logMessage(listener.toUpperCase() + " listener stopped");
+            }, listener + "-listener"));
+        }
 
-            } else { // Rerun if input doesn't match '1' or '2'
-                logMessage("Invalid Input");
-                askForCommType(scanner, serverIP, port, hMap);
+        for(Thread t : threads) {
+            t.start();
+        }
+        for(Thread t : threads) {
+            try {
+                t.join();
+            } catch (InterruptedException e) {
+                logMessage("Server interrupted");
+                return;
+            }
+        }
+    }
+
+    /**
+     * Creates the ExecutorService used to handle accepted TCP connections.
+     * 'single' handles connections one at a time on the accepting thread, 'pool' uses a pool of worker threads,
+     * and 'virtual' starts a virtual thread per connection (falls back to 'pool' if unsupported).
+     * A keep-alive connection holds its thread until the client leaves or the idle timeout closes it, and SUBSCRIBE
+     * and REPLICATE connections hold theirs for good, so the pool never queues a connection behind others or runs it
+     * on the accepting thread: every connection gets a thread at once, up to maxConnections threads, and threads
+     * beyond the ones kept warm exit after a minute idle. Once every thread is busy the pool rejects the connection.
+     * @param mode The execution mode - single, pool, virtual.
+     * @param threads The number of worker threads the 'pool' mode keeps ready.
+     * @param maxConnections The most connections the 'pool' mode serves at once, each on its own thread.
+     * @return The ExecutorService for the selected mode, or null for 'single'.
+     */
+    public static ExecutorService createWorkers(String mode, int threads, int maxConnections) {
+        if(mode.equals("single")) {
+            return null;
+
+        } else if(mode.equals("virtual")) {
+            try {
+                // Looked up reflectively so the server still runs on JDKs without virtual threads
+                return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (ReflectiveOperationException | UnsupportedOperationException e) {
+                logMessage("Virtual threads unavailable on this JVM, falling back to worker pool");
             }
-        } catch (InputMismatchException e) {
-            logMessage("Input mismatch detected: exiting");
+
+        } else if(!mode.equals("pool")) {
+            logMessage("Unknown execution mode '" + mode + "', falling back to worker pool");
         }
+
+        // Hands each connection straight to a free thread, or a new one, rather than queueing it
+        return new ThreadPoolExecutor(Math.min(threads, maxConnections), maxConnections, 60L, TimeUnit.SECONDS,
+                new SynchronousQueue<>());
     }
 
     /**
-     * Gets current system time and prints Client output in MM-dd-yyyy HH:mm:ss.SSS format.
+     * Queues a message for the asynchronous logger, which prints it in MM-dd-yyyy HH:mm:ss.SSS format.
      * @param message The message to be printed.
      */
     public static void logMessage(String message) {
-        long currSystemTime = System.currentTimeMillis(); // Get current system time
+        AsyncLogger.log(AsyncLogger.Level.INFO, message);
+    }
 
-        // Convert system time to human-readable format
-        Date date = new Date(currSystemTime);
-        SimpleDateFormat SDF = new SimpleDateFormat("MM-dd-yyyy HH:mm:ss.SSS");
-        String time = SDF.format(date);
+    /**
+     * Queues a per-request detail message, only logged when the log level is 'debug'.
+     * The message is only built from its arguments if it is actually written.
+     * @param message The message to be printed, with a '{}' placeholder for each argument.
+     * @param args The arguments substituted into the message; long values are truncated.
+     */
+    public static void logDebug(String message, Object... args) {
+        AsyncLogger.log(AsyncLogger.Level.DEBUG, message, args);
+    }
 
-        System.out.println(time + " -- " + message);
+    /**
+     * Creates the StorageEngine holding the server's Key, Value pairs.
+     * 'concurrent' uses lock-free reads and fine-grained writes, 'hashmap' locks a single HashMap for every operation,
+     * and 'offheap' keeps keys and values as raw bytes outside the Java heap.
+     * @param engine The storage engine - concurrent, hashmap, offheap.
+     * @return The StorageEngine for the selected engine.
+     */
+    public static StorageEngine createStore(String engine) {
+        if(engine.equals("hashmap")) {
+            return new HashMapStorageEngine();
+        } else if(engine.equals("offheap")) {
+            return new OffHeapStorageEngine();
+        } else if(!engine.equals("concurrent")) {
+            logMessage("Unknown storage engine '" + engine + "', falling back to concurrent");
+        }
+        return new ConcurrentStorageEngine();
     }
 
+    /**
+     * Parses optional '--name value' arguments following <server_ip> and <port>.
+     * @param args The command line arguments.
+     * @return The Map of option names to values.
+     */
+    public static Map<String, String> parseOptions(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for(int i = 2; i < args.length; i++) {
+            if(args[i].startsWith("--") && i + 1 < args.length) {
+                options.put(args[i].substring(2), args[++i]);
+            } else {
+                logMessage("Ignoring unrecognized argument " + args[i]);
+            }
+        }
+        return options;
+    }
 
     public static void main(String[] args) {
-        if(args.length != 2){
-            logMessage("Proper input format must be 'java Server.java <server_ip> <port>'");
+        if(args.length < 2){
+            logMessage("Proper input format must be 'java Server.java <server_ip> <port> " +
+                    "[--listen tcp|nio|udp,...] [--udp-port <port>] [--exec single|pool|virtual] [--threads <count>] [--max-connections <count>] [--idle-timeout <seconds>] [--loops <count>] [--udp-workers <count>] [--store concurrent|hashmap|offheap] " +
+                    "[--log-level off|info|debug] [--log-max-value <bytes>] " +
+                    "[--wal-dir <dir>] [--wal-sync-ms <ms>] [--wal-batch <bytes>] [--wal-segment-mb <mb>] " +
+                    "[--snapshot-dir <dir>] [--snapshot-interval <seconds>] [--ttl-tick-ms <ms>] " +
+                    "[--max-memory <mb>] [--max-entries <count>] [--eviction lru|tinylfu] [--stats-interval <seconds>] [--ordered-index on|off] " +
+                    "[--compress deflate|off] [--compress-min <bytes>] [--replica-of <server_ip>:<port>]'");
             return;
         }
 
         String serverIP = null;
         int port = -1;
-
-        // Stores all keys, values provided by client
-        HashMap<String, String> hMap = new HashMap<>();
+        String listen = "tcp,udp";
+        int udpPort = -1; // same as port unless given
+        String execMode = "pool";
+        int threads = Runtime.getRuntime().availableProcessors() * 8;
+        int maxConnections = 1024;
+        int idleTimeout = 60; // seconds
+        int loops = Runtime.getRuntime().availableProcessors();
+        int udpWorkers = Runtime.getRuntime().availableProcessors();
+        String engine = "concurrent";
+        String logLevel = "info";
+        int logMaxValue = 64;
+        String walDir = null;
+        int walSyncMs = 0;
+        int walBatch = 1024 * 1024;
+        int walSegmentMb = 64;
+        String snapshotDir = null;
+        int snapshotInterval = 0; // seconds, 0 to only snapshot on request
+        int ttlTick = 10; // milliseconds
+        long maxMemory = 0; // MB, 0 for no limit
+        long maxEntries = 0; // 0 for no limit
+        String eviction = "tinylfu";
+        int statsInterval = 0; // seconds, 0 to only report on STATS requests
+        String orderedIndex = "on";
+        String compress = "off";
+        int compressMin = 512; // bytes
+        String replicaOf = null; // <server_ip>:<port> of the primary, or null to accept writes
 
         try {
             serverIP = args[0];
             port = Integer.parseInt(args[1]);
 
+            Map<String, String> options = parseOptions(args);
+            listen = options.getOrDefault("listen", listen);
+            udpPort = Integer.parseInt(options.getOrDefault("udp-port", String.valueOf(port)));
+            execMode = options.getOrDefault("exec", execMode);
+            threads = Integer.parseInt(options.getOrDefault("threads", String.valueOf(threads)));
+            maxConnections = Integer.parseInt(options.getOrDefault("max-connections", String.valueOf(maxConnections)));
+            idleTimeout = Integer.parseInt(options.getOrDefault("idle-timeout", String.valueOf(idleTimeout)));
+            loops = Integer.parseInt(options.getOrDefault("loops", String.valueOf(loops)));
+            udpWorkers = Integer.parseInt(options.getOrDefault("udp-workers", String.valueOf(udpWorkers)));
+            engine = options.getOrDefault("store", engine);
+            logLevel = options.getOrDefault("log-level", logLevel);
+            logMaxValue = Integer.parseInt(options.getOrDefault("log-max-value", String.valueOf(logMaxValue)));
+            walDir = options.getOrDefault("wal-dir", walDir);
+            walSyncMs = Integer.parseInt(options.getOrDefault("wal-sync-ms", String.valueOf(walSyncMs)));
+            walBatch = Integer.parseInt(options.getOrDefault("wal-batch", String.valueOf(walBatch)));
+            walSegmentMb = Integer.parseInt(options.getOrDefault("wal-segment-mb", String.valueOf(walSegmentMb)));
+            snapshotDir = options.getOrDefault("snapshot-dir", snapshotDir);
+            snapshotInterval = Integer.parseInt(options.getOrDefault("snapshot-interval", String.valueOf(snapshotInterval)));
+            ttlTick = Integer.parseInt(options.getOrDefault("ttl-tick-ms", String.valueOf(ttlTick)));
+            maxMemory = Long.parseLong(options.getOrDefault("max-memory", String.valueOf(maxMemory)));
+            maxEntries = Long.parseLong(options.getOrDefault("max-entries", String.valueOf(maxEntries)));
+            eviction = options.getOrDefault("eviction", eviction);
+            statsInterval = Integer.parseInt(options.getOrDefault("stats-interval", String.valueOf(statsInterval)));
+            orderedIndex = options.getOrDefault("ordered-index", orderedIndex);
+            compress = options.getOrDefault("compress", compress);
+            compressMin = Integer.parseInt(options.getOrDefault("compress-min", String.valueOf(compressMin)));
+            replicaOf = options.getOrDefault("replica-of", replicaOf);
+
         } catch (Exception e) {
-            logMessage("<server_ip> must be type String and <port> must be type int");
+            logMessage("<server_ip> must be type String and <port>, <count> must be type int");
+        }
+
+        List<String> listeners;
+        try {
+            listeners = parseListeners(listen);
+        } catch (IllegalArgumentException e) {
+            logMessage("Invalid --listen: " + e.getMessage());
+            return;
+        }
+
+        try {
+            AsyncLogger.setLevel(AsyncLogger.Level.valueOf(logLevel.toUpperCase()));
+        } catch (IllegalArgumentException e) {
+            logMessage("Unknown log level '" + logLevel + "', using info");
+        }
+        try {
+            AsyncLogger.setMaxValueLength(logMaxValue);
+        } catch (IllegalArgumentException e) {
+            logMessage("Invalid --log-max-value: " + e.getMessage());
+            return;
+        }
+
+        // Stores all keys, values provided by client; shared safely between connection handlers
+        StorageEngine store = createStore(engine);
+        logMessage("Storage engine: " + engine);
+
+        // Restore the latest snapshot, then replay only the log segments written after it
+        long firstSegment = 0;
+        if(snapshotDir != null) {
+            try {
+                firstSegment = Snapshot.load(Paths.get(snapshotDir), store);
+            } catch (IOException e) {
+                logMessage("Could not load snapshot from " + snapshotDir + ": " + e.getMessage());
+                return;
+            }
+        }
+
+        WriteAheadLog wal = null;
+        if(walDir != null) {
+            try {
+                // Replays the log into the store before any client is served
+                wal = new WriteAheadLog(Paths.get(walDir), store, firstSegment, walSegmentMb * 1024L * 1024L, walSyncMs, walBatch);
+                Runtime.getRuntime().addShutdownHook(new Thread(wal::close, "wal-close"));
+                store = new DurableStorageEngine(store, wal);
+                logMessage("Write-ahead log: " + walDir + " (sync interval " + walSyncMs + "ms, batch " + walBatch + " bytes)");
+            } catch (IOException e) {
+                logMessage("Could not open write-ahead log in " + walDir + ": " + e.getMessage());
+                return;
+            }
+        }
+
+        if(snapshotDir != null) {
+            try {
+                snapshots = new Snapshot(Paths.get(snapshotDir), store, wal);
+                if(snapshotInterval > 0) {
+                    snapshots.schedule(snapshotInterval);
+                }
+                logMessage("Snapshots: " + snapshotDir + (snapshotInterval > 0 ? " every " + snapshotInterval + "s" : " on request"));
+            } catch (IOException e) {
+                logMessage("Could not use snapshot directory " + snapshotDir + ": " + e.getMessage());
+                return;
+            }
+        }
+
+        // Below eviction and expiration, so keys they remove leave the index too
+        if(orderedIndex.equals("off")) {
+            logMessage("Ordered index: off, SCAN disabled");
+        } else {
+            if(!orderedIndex.equals("on")) {
+                logMessage("Unknown --ordered-index '" + orderedIndex + "', using on");
+            }
+            store = new OrderedIndexStorageEngine(store);
+            logMessage("Ordered index: on, SCAN enabled");
+        }
+
+        // Below eviction and expiration, so keys they remove are invalidated in near caches too
+        tracking = new TrackingStorageEngine(store);
+        store = tracking;
+
+        // Above tracking, so writes applied on a replica invalidate its clients' near caches, and below eviction
+        // and expiration, so keys they remove on the primary are removed from replicas too
+        replication = new ReplicatingStorageEngine(store);
+        store = replication;
+        stats.setReplication(replication);
+
+        if(replicaOf != null && (maxMemory > 0 || maxEntries > 0)) {
+            // A replica holds what its primary holds, and the primary's evictions are replicated
+            logMessage("Replicas follow their primary's evictions; ignoring --max-memory and --max-entries");
+        } else if(maxMemory > 0 || maxEntries > 0) {
+            long maxBytes = maxMemory * 1024 * 1024;
+            EvictionPolicy policy = EvictingStorageEngine.createPolicy(eviction, maxBytes, maxEntries);
+            if(policy == null) {
+                logMessage("Unknown eviction policy '" + eviction + "', falling back to tinylfu");
+                eviction = "tinylfu";
+                policy = EvictingStorageEngine.createPolicy(eviction, maxBytes, maxEntries);
+            }
+            // Evicted keys are removed through the log, so they stay evicted after a restart
+            EvictingStorageEngine evicting = new EvictingStorageEngine(store, policy, maxBytes, maxEntries);
+            stats.setEvictionCounter(evicting::evictionCount);
+            store = evicting;
+            logMessage("Eviction: " + eviction + " limited to " + (maxMemory > 0 ? maxMemory + "MB" : "") +
+                    (maxMemory > 0 && maxEntries > 0 ? " and " : "") + (maxEntries > 0 ? maxEntries + " entries" : ""));
+        }
+
+        // Above the log and snapshots, so deadlines are stored with the values and persisted by them
+        store = new ExpiringStorageEngine(store, ttlTick);
+
+        // Outermost, so every layer below, eviction included, holds and counts values as compressed. Values
+        // compressed by clients are stored as they are even when the server compresses nothing itself.
+        if(!compress.equals("off") && !compress.equals("deflate")) {
+            logMessage("Unknown --compress '" + compress + "', using off");
+            compress = "off";
+        }
+        int minSize = compress.equals("deflate") ? Math.max(1, compressMin) : 0;
+        store = new CompressingStorageEngine(store, minSize);
+        logMessage("Compression: " + (minSize > 0 ? "deflate for values of " + minSize + " bytes or more" : "off"));
+
+        if(statsInterval > 0) {
+            stats.scheduleDump(statsInterval, store);
+        }
+
+        if(replicaOf != null) {
+            try {
+                replication.replicateFrom(replicaOf);
+                logMessage("Replica of " + replicaOf + ", writes from clients are rejected");
+            } catch (IllegalArgumentException e) {
+                logMessage("Invalid --replica-of: " + e.getMessage());
+                return;
+            }
+        }
+
+        if(threads < 1 || maxConnections < 1) {
+            logMessage("--threads and --max-connections must be at least 1");
+            return;
         }
+        ExecutorService workers = createWorkers(execMode, threads, maxConnections);
+        logMessage("TCP execution mode: " + execMode + (execMode.equals("pool") ?
+                " (" + threads + " threads, up to " + maxConnections + " connections)" : ""));
 
-        // Create scanner for selecting TCP or UDP
-        Scanner scanner = new Scanner(System.in);
-        askForCommType(scanner, serverIP, port, hMap);
+        startListeners(listeners, serverIP, port, udpPort, store, workers, idleTimeout * 1000, loops, udpWorkers);
 
     }
 }
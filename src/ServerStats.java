@@ -0,0 +1,220 @@
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Live counters for a running server: operations by type, GET hits and misses, errors, bytes in and out, open
+ * connections, and the latency of GET, PUT and DELETE, reported by the STATS operation and the periodic dump.
+ *
+ * Counters are LongAdders and latencies go to lock-free histograms, so recording from many request threads at
+ * once never blocks and rarely contends. Latency is the time the server spends performing an operation, from
+ * the decoded request to the response being ready, and leaves out the network and waiting for durability.
+ * Each key of an MPUT, MGET or MDELETE is also counted as the PUT, GET or DELETE it performs.
+ */
+public class ServerStats {
+
+    // Opcodes at or above this are counted together with unknown opcodes
+    private static final int MAX_OPCODE = 32;
+
+    private final long startNanos = System.nanoTime();
+    private final LongAdder[] operations = new LongAdder[MAX_OPCODE];
+    private final LatencyHistogram.Concurrent getLatency = new LatencyHistogram.Concurrent();
+    private final LatencyHistogram.Concurrent putLatency = new LatencyHistogram.Concurrent();
+    private final LatencyHistogram.Concurrent deleteLatency = new LatencyHistogram.Concurrent();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final LongAdder connections = new LongAdder();
+    private final LongAdder connectionsTotal = new LongAdder();
+    private volatile LongSupplier evictions;
+    private volatile ReplicatingStorageEngine replication;
+
+    public ServerStats() {
+        for(int i = 0; i < MAX_OPCODE; i++) {
+            operations[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Records a performed operation.
+     * @param opcode The opcode of the request.
+     * @param status The status of the response.
+     * @param nanos How long the operation took in nanoseconds.
+     */
+    public void recordOperation(byte opcode, byte status, long nanos) {
+        operations[opcode > 0 && opcode < MAX_OPCODE ? opcode : 0].increment();
+        if(status == Protocol.STATUS_ERROR) {
+            errors.increment();
+        }
+
+        if(opcode == Protocol.OP_GET) {
+            getLatency.record(nanos);
+            if(status == Protocol.STATUS_OK) {
+                hits.increment();
+            } else if(status == Protocol.STATUS_NOT_FOUND) {
+                misses.increment();
+            }
+        } else if(opcode == Protocol.OP_PUT || opcode == Protocol.OP_PUT_TTL) {
+            putLatency.record(nanos);
+        } else if(opcode == Protocol.OP_DELETE) {
+            deleteLatency.record(nanos);
+        }
+    }
+
+    /**
+     * Records a request that could not be performed at all, such as a malformed frame.
+     */
+    public void recordError() {
+        errors.increment();
+    }
+
+    /**
+     * @param in Bytes received from clients.
+     * @param out Bytes sent to clients.
+     */
+    public void recordTraffic(long in, long out) {
+        bytesIn.add(in);
+        bytesOut.add(out);
+    }
+
+    public void connectionOpened() {
+        connections.increment();
+        connectionsTotal.increment();
+    }
+
+    public void connectionClosed() {
+        connections.decrement();
+    }
+
+    /**
+     * @param evictions Source of the number of keys evicted so far, reported when the store is bounded.
+     */
+    public void setEvictionCounter(LongSupplier evictions) {
+        this.evictions = evictions;
+    }
+
+    /**
+     * @param replication The engine replicating the store, reported for its replicas or primary.
+     */
+    public void setReplication(ReplicatingStorageEngine replication) {
+        this.replication = replication;
+    }
+
+    /**
+     * Describes the server as one 'name:value' line per statistic, answered to the STATS operation.
+     * Rates are averaged since the server started.
+     * @param store The StorageEngine the server uses, for the number of keys.
+     * @return The report.
+     */
+    public String report(StorageEngine store) {
+        double uptime = Math.max(1e-9, (System.nanoTime() - startNanos) / 1e9);
+        long total = totalOperations();
+
+        StringBuilder sb = new StringBuilder();
+        line(sb, "uptime_seconds", (long) uptime);
+        line(sb, "connections_current", connections.sum());
+        line(sb, "connections_total", connectionsTotal.sum());
+        line(sb, "keys", store.size());
+        line(sb, "ops_total", total);
+        line(sb, "ops_per_second", String.format(Locale.ROOT, "%.1f", total / uptime));
+        for(int i = 1; i < MAX_OPCODE; i++) {
+            long count = operations[i].sum();
+            if(count > 0) {
+                line(sb, "ops_" + Protocol.opcodeName((byte) i).toLowerCase(Locale.ROOT), count);
+            }
+        }
+        if(operations[0].sum() > 0) {
+            line(sb, "ops_unknown", operations[0].sum());
+        }
+        line(sb, "get_hits", hits.sum());
+        line(sb, "get_misses", misses.sum());
+        line(sb, "hit_ratio", String.format(Locale.ROOT, "%.4f", hitRatio(hits.sum(), misses.sum())));
+        line(sb, "errors", errors.sum());
+        line(sb, "bytes_in", bytesIn.sum());
+        line(sb, "bytes_out", bytesOut.sum());
+        LongSupplier evicted = evictions;
+        if(evicted != null) {
+            line(sb, "evictions", evicted.getAsLong());
+        }
+        ReplicatingStorageEngine replicated = replication;
+        if(replicated != null) {
+            replicated.report((name, value) -> line(sb, name, value));
+        }
+        line(sb, "latency_get_us", percentiles(getLatency.snapshot()));
+        line(sb, "latency_put_us", percentiles(putLatency.snapshot()));
+        line(sb, "latency_delete_us", percentiles(deleteLatency.snapshot()));
+        return sb.toString();
+    }
+
+    /**
+     * Logs a one line summary every interval, with rates measured over the interval and latency percentiles
+     * since the server started.
+     * @param seconds The interval in seconds.
+     * @param store The StorageEngine the server uses, for the number of keys.
+     */
+    public void scheduleDump(int seconds, StorageEngine store) {
+        Thread t = new Thread(() -> {
+            long lastOps = totalOperations();
+            long lastHits = hits.sum();
+            long lastMisses = misses.sum();
+            long lastIn = bytesIn.sum();
+            long lastOut = bytesOut.sum();
+            while(true) {
+                try {
+                    TimeUnit.SECONDS.sleep(seconds);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                long ops = totalOperations();
+                long hitCount = hits.sum();
+                long missCount = misses.sum();
+                long in = bytesIn.sum();
+                long out = bytesOut.sum();
+                Server.logMessage(String.format(Locale.ROOT,
+                        "Stats: %.0f ops/s, hit ratio %.1f%%, GET p99 %.1fus, PUT p99 %.1fus, %d keys, %d connections, " +
+                                "in %.1fKB/s, out %.1fKB/s",
+                        (ops - lastOps) / (double) seconds, 100 * hitRatio(hitCount - lastHits, missCount - lastMisses),
+                        getLatency.snapshot().percentile(99) / 1000.0, putLatency.snapshot().percentile(99) / 1000.0,
+                        store.size(), connections.sum(), (in - lastIn) / 1024.0 / seconds, (out - lastOut) / 1024.0 / seconds) +
+                        replicationLag());
+                lastOps = ops;
+                lastHits = hitCount;
+                lastMisses = missCount;
+                lastIn = in;
+                lastOut = out;
+            }
+        }, "stats-dump");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    private String replicationLag() {
+        ReplicatingStorageEngine replicated = replication;
+        return replicated != null && replicated.isReplica() ? ", replication lag " + replicated.lagMillis() + "ms" : "";
+    }
+
+    private long totalOperations() {
+        long total = 0;
+        for(LongAdder count : operations) {
+            total += count.sum();
+        }
+        return total;
+    }
+
+    private static double hitRatio(long hitCount, long missCount) {
+        return hitCount + missCount == 0 ? 0 : hitCount / (double) (hitCount + missCount);
+    }
+
+    private static String percentiles(LatencyHistogram latencies) {
+        return String.format(Locale.ROOT, "p50=%.1f,p99=%.1f,p99.9=%.1f,max=%.1f",
+                latencies.percentile(50) / 1000.0, latencies.percentile(99) / 1000.0,
+                latencies.percentile(99.9) / 1000.0, latencies.max() / 1000.0);
+    }
+
+    private static void line(StringBuilder sb, String name, Object value) {
+        sb.append(name).append(':').append(value).append('\n');
+    }
+}
@@ -0,0 +1,352 @@
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Spreads keys across several servers with consistent hashing, keeping one binary protocol TCP connection per
+ * server (shard), so capacity grows by starting more servers.
+ *
+ * Each shard is placed on a hash ring at many points (virtual nodes), and a key belongs to the shard owning the
+ * first point at or after the key's hash. Adding or removing a shard therefore only moves the keys between its
+ * points and their neighbours, about 1/N of them, and the virtual nodes even out how many keys each shard gets.
+ *
+ * Batches and multi-key operations are split by shard, sent to every shard involved at the same time, and
+ * their results put back in the original order.
+ */
+public class ShardedClient implements AutoCloseable {
+
+    // Points per shard on the ring; more points spread keys more evenly
+    private static final int VIRTUAL_NODES = 160;
+
+    private final List<Shard> shards = new ArrayList<>();
+    private long[] points; // Sorted ring positions
+    private Shard[] owners; // Shard owning each point
+    private final ExecutorService senders;
+
+    /**
+     * A connection to one server, used by one thread at a time.
+     *
+     * Responses are matched to requests by arrival order, so once a response is late, missing or for another
+     * request the stream is out of step for good. The connection is then closed and opened again on next use.
+     */
+    private static final class Shard {
+        final String endpoint;
+        final String host;
+        final int port;
+        private volatile Socket socket;
+        private DataInputStream in;
+        private DataOutputStream out;
+
+        Shard(String endpoint) throws IOException {
+            int colon = endpoint.lastIndexOf(':');
+            if(colon <= 0) {
+                throw new IllegalArgumentException("Server " + endpoint + " must be given as <server_ip>:<port>");
+            }
+            this.endpoint = endpoint;
+            this.host = endpoint.substring(0, colon);
+            this.port = Integer.parseInt(endpoint.substring(colon + 1));
+            connect();
+        }
+
+        private void connect() throws IOException {
+            Socket s = new Socket(host, port);
+            try {
+                s.setTcpNoDelay(true);
+                s.setSoTimeout(10000);
+                in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+                out = new DataOutputStream(s.getOutputStream());
+            } catch (IOException e) {
+                s.close();
+                throw e;
+            }
+            socket = s;
+        }
+
+        synchronized Protocol.Response exchange(Protocol.Request request) throws IOException {
+            if(socket == null) {
+                connect();
+            }
+            try {
+                Protocol.writeRequest(out, request);
+                Protocol.Response response = Protocol.readResponse(in);
+                if(response.requestId != request.requestId) {
+                    throw new ProtocolException("Expected response to request " + request.requestId +
+                            " but received " + response.requestId);
+                }
+                return response;
+            } catch (IOException | RuntimeException e) {
+                close();
+                throw e;
+            }
+        }
+
+        synchronized List<Protocol.Response> batch(List<Protocol.Request> requests) throws IOException {
+            if(socket == null) {
+                connect();
+            }
+            try {
+                return Client.TCPBatchOperation(requests, in, out);
+            } catch (IOException | RuntimeException e) {
+                close();
+                throw e;
+            }
+        }
+
+        /**
+         * Closes the connection; the next request opens a new one.
+         */
+        void close() {
+            Socket s = socket;
+            socket = null;
+            if(s == null) {
+                return;
+            }
+            try {
+                s.close();
+            } catch (IOException e) {
+                Client.logMessage("Error closing connection to " + endpoint + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private ShardedClient(int shardCount) {
+        senders = Executors.newFixedThreadPool(shardCount, r -> {
+            Thread t = new Thread(r, "shard-sender");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Connects to every server and builds the hash ring.
+     * @param endpoints The servers, each as <server_ip>:<port>.
+     * @return The ShardedClient.
+     * @throws IOException Throws exception if any server cannot be reached.
+     * @throws IllegalArgumentException Throws exception if an endpoint is malformed or listed twice.
+     */
+    public static ShardedClient connect(List<String> endpoints) throws IOException {
+        ShardedClient client = new ShardedClient(endpoints.size());
+        try {
+            for(String endpoint : endpoints) {
+                for(Shard shard : client.shards) {
+                    if(shard.endpoint.equals(endpoint)) {
+                        throw new IllegalArgumentException("Server " + endpoint + " is listed twice");
+                    }
+                }
+                client.shards.add(new Shard(endpoint));
+            }
+        } catch (IOException | RuntimeException e) {
+            client.close();
+            throw e;
+        }
+        client.buildRing();
+        return client;
+    }
+
+    private void buildRing() {
+        int size = shards.size() * VIRTUAL_NODES;
+        long[] hashes = new long[size];
+        Shard[] byPoint = new Shard[size];
+        Integer[] order = new Integer[size];
+        for(int s = 0; s < shards.size(); s++) {
+            for(int v = 0; v < VIRTUAL_NODES; v++) {
+                int i = s * VIRTUAL_NODES + v;
+                // Points depend only on the endpoint, so every client builds the same ring
+                hashes[i] = hash((shards.get(s).endpoint + "#" + v).getBytes(StandardCharsets.UTF_8));
+                byPoint[i] = shards.get(s);
+                order[i] = i;
+            }
+        }
+        Arrays.sort(order, (a, b) -> Long.compareUnsigned(hashes[a], hashes[b]));
+
+        points = new long[size];
+        owners = new Shard[size];
+        for(int i = 0; i < size; i++) {
+            points[i] = hashes[order[i]];
+            owners[i] = byPoint[order[i]];
+        }
+    }
+
+    /**
+     * @param key The key.
+     * @return The <server_ip>:<port> of the server the key is stored on.
+     */
+    public String endpointFor(String key) {
+        return shardFor(Protocol.toBytes(key)).endpoint;
+    }
+
+    /**
+     * Sends a single-key request to the server owning its key.
+     * @param request The request, with a single key.
+     * @return The response.
+     * @throws IOException Throws exception if the connection to the server fails.
+     */
+    public Protocol.Response execute(Protocol.Request request) throws IOException {
+        return shardFor(request.key).exchange(request);
+    }
+
+    /**
+     * Performs a batch of single-key requests, pipelined to each server owning some of their keys, with all
+     * servers working at the same time. Requests to the same server are performed in their original order.
+     * @param requests The requests to perform, each with a single key.
+     * @return The responses, in the same order as the requests.
+     * @throws IOException Throws exception if the connection to any server fails.
+     */
+    public List<Protocol.Response> executeBatch(List<Protocol.Request> requests) throws IOException {
+        Map<Shard, List<Integer>> positions = new LinkedHashMap<>();
+        for(int i = 0; i < requests.size(); i++) {
+            positions.computeIfAbsent(shardFor(requests.get(i).key), shard -> new ArrayList<>()).add(i);
+        }
+
+        Map<Shard, Future<List<Protocol.Response>>> sent = new LinkedHashMap<>();
+        for(Map.Entry<Shard, List<Integer>> entry : positions.entrySet()) {
+            List<Protocol.Request> part = new ArrayList<>(entry.getValue().size());
+            for(int i : entry.getValue()) {
+                part.add(requests.get(i));
+            }
+            sent.put(entry.getKey(), senders.submit(() -> entry.getKey().batch(part)));
+        }
+
+        Protocol.Response[] responses = new Protocol.Response[requests.size()];
+        for(Map.Entry<Shard, Future<List<Protocol.Response>>> entry : sent.entrySet()) {
+            List<Protocol.Response> part = await(entry.getKey(), entry.getValue());
+            List<Integer> indexes = positions.get(entry.getKey());
+            for(int i = 0; i < indexes.size(); i++) {
+                responses[indexes.get(i)] = part.get(i);
+            }
+        }
+        return Arrays.asList(responses);
+    }
+
+    /**
+     * Performs an MPUT, MGET, MDELETE operation as one multi-key request per server owning some of the keys,
+     * with all servers working at the same time.
+     * @param keys The Keys of the objects to perform the operation on.
+     * @param values The Values to PUT, one per key, or null for MGET and MDELETE.
+     * @param type The type of operation to be performed - MPUT, MGET, MDELETE.
+     * @return The result for each key, in the same order as the keys.
+     * @throws IOException Throws exception if the connection to any server fails or a server rejects the request.
+     */
+    public List<Protocol.Response> multiKeyOperation(List<String> keys, List<String> values, String type) throws IOException {
+        Map<Shard, List<Integer>> positions = new LinkedHashMap<>();
+        for(int i = 0; i < keys.size(); i++) {
+            positions.computeIfAbsent(shardFor(Protocol.toBytes(keys.get(i))), shard -> new ArrayList<>()).add(i);
+        }
+
+        Map<Shard, Future<Protocol.Response>> sent = new LinkedHashMap<>();
+        Map<Shard, List<String>> keysByShard = new LinkedHashMap<>();
+        for(Map.Entry<Shard, List<Integer>> entry : positions.entrySet()) {
+            List<String> partKeys = new ArrayList<>();
+            List<String> partValues = values != null ? new ArrayList<>() : null;
+            for(int i : entry.getValue()) {
+                partKeys.add(keys.get(i));
+                if(partValues != null) {
+                    partValues.add(values.get(i));
+                }
+            }
+            keysByShard.put(entry.getKey(), partKeys);
+            Protocol.Request request = Client.buildMultiKeyRequest(partKeys, partValues, type);
+            sent.put(entry.getKey(), senders.submit(() -> entry.getKey().exchange(request)));
+        }
+
+        Protocol.Response[] results = new Protocol.Response[keys.size()];
+        for(Map.Entry<Shard, Future<Protocol.Response>> entry : sent.entrySet()) {
+            Protocol.Response response = await(entry.getKey(), entry.getValue());
+            if(response.status != Protocol.STATUS_OK) {
+                throw new ProtocolException(entry.getKey().endpoint + ": " + Protocol.toString(response.value));
+            }
+            List<Protocol.Response> part = Protocol.decodeResults(response);
+            List<Integer> indexes = positions.get(entry.getKey());
+            if(part.size() != indexes.size()) {
+                throw new ProtocolException(entry.getKey().endpoint + " returned " + part.size() + " results for " +
+                        indexes.size() + " keys");
+            }
+            for(int i = 0; i < indexes.size(); i++) {
+                results[indexes.get(i)] = part.get(i);
+            }
+        }
+        return Arrays.asList(results);
+    }
+
+    /**
+     * Sends a request without a key, such as STATS or SNAPSHOT, to every server.
+     * @param type The type of operation to be performed - STATS, SNAPSHOT.
+     * @return Each server's <server_ip>:<port> with its response, in the order the servers were given.
+     * @throws IOException Throws exception if the connection to any server fails.
+     */
+    public Map<String, Protocol.Response> broadcast(String type) throws IOException {
+        Map<String, Protocol.Response> responses = new LinkedHashMap<>();
+        for(Shard shard : shards) {
+            responses.put(shard.endpoint, shard.exchange(Client.buildRequest("", "", type)));
+        }
+        return responses;
+    }
+
+    @Override
+    public void close() {
+        senders.shutdownNow();
+        for(Shard shard : shards) {
+            shard.close();
+        }
+    }
+
+    private Shard shardFor(byte[] key) {
+        long h = hash(key);
+        // First point at or after the key's hash, wrapping around to the first point
+        int low = 0;
+        int high = points.length;
+        while(low < high) {
+            int mid = (low + high) >>> 1;
+            if(Long.compareUnsigned(points[mid], h) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return owners[low == points.length ? 0 : low];
+    }
+
+    private static <T> T await(Shard shard, Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            if(e.getCause() instanceof IOException) {
+                throw new IOException(shard.endpoint + ": " + e.getCause().getMessage(), e.getCause());
+            }
+            throw new IOException(shard.endpoint + ": " + e.getCause(), e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for " + shard.endpoint);
+        }
+    }
+
+    /**
+     * 64-bit FNV-1a followed by the MurmurHash3 finalizer, so similar keys and endpoints land far apart on the ring.
+     */
+    private static long hash(byte[] bytes) {
+        long h = 0xcbf29ce484222325L;
+        for(byte b : bytes) {
+            h ^= b & 0xff;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb3fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,251 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.CRC32;
+
+/**
+ * Point-in-time snapshots of the store in a compact binary file, so a restart loads the data at disk speed instead
+ * of replaying every logged operation. The file is
+ *
+ *   MAGIC(4) VERSION(4) WAL_SEGMENT(8) COUNT(8) CRC(4) | { KEY_LEN(4) VALUE_LEN(4) KEY VALUE }*
+ *
+ * where CRC covers the entries and WAL_SEGMENT is the first write-ahead log segment the snapshot does not hold.
+ *
+ * Snapshots are taken on a background thread while requests keep being served. The write-ahead log is rolled to a
+ * new segment first, then the store is traversed; a write that lands during the traversal may be missed, but it was
+ * logged in the new segment or a later one. Loading the snapshot and replaying the log from WAL_SEGMENT therefore
+ * restores the exact state, and older segments can be deleted once the snapshot is safely on disk. Without a
+ * write-ahead log, a snapshot holds whatever the traversal saw.
+ */
+public class Snapshot {
+
+    private static final int MAGIC = 0x4B56534E; // "KVSN"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 28;
+    private static final int ENTRY_HEADER_SIZE = 8; // KEY_LEN, VALUE_LEN
+    private static final int WRITE_BUFFER_SIZE = 1024 * 1024;
+    private static final long MAX_MAPPING = Integer.MAX_VALUE; // Largest region a single MappedByteBuffer can map
+    private static final String FILE_NAME = "snapshot.dat";
+
+    private final Path file;
+    private final StorageEngine store;
+    private final WriteAheadLog wal;
+    private final AtomicBoolean running = new AtomicBoolean();
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "snapshot");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /**
+     * @param dir The directory the snapshot file is kept in, created if missing.
+     * @param store The StorageEngine to snapshot.
+     * @param wal The WriteAheadLog rolled for each snapshot, or null if writes are not logged.
+     * @throws IOException Throws exception if the directory cannot be created.
+     */
+    public Snapshot(Path dir, StorageEngine store, WriteAheadLog wal) throws IOException {
+        Files.createDirectories(dir);
+        this.file = dir.resolve(FILE_NAME);
+        this.store = store;
+        this.wal = wal;
+    }
+
+    /**
+     * Loads the snapshot kept in a directory through a memory-mapped read of the file.
+     * @param dir The directory the snapshot file is kept in.
+     * @param store The StorageEngine the entries are loaded into.
+     * @return The first write-ahead log segment to replay after the snapshot, or 0 if there is no snapshot.
+     * @throws IOException Throws exception if the snapshot cannot be read or is corrupt.
+     */
+    public static long load(Path dir, StorageEngine store) throws IOException {
+        Path file = dir.resolve(FILE_NAME);
+        if(!Files.exists(file)) {
+            return 0;
+        }
+        long start = System.nanoTime();
+
+        try(FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long fileSize = channel.size();
+            if(fileSize < HEADER_SIZE) {
+                throw new IOException("Snapshot " + file + " is truncated");
+            }
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+            if(header.getInt() != MAGIC || header.getInt() != VERSION) {
+                throw new IOException(file + " is not a snapshot");
+            }
+            long walSegment = header.getLong();
+            long count = header.getLong();
+            int expectedCrc = header.getInt();
+
+            // Map the entries in windows of at most 2GB; an entry cut off by the end of a window starts the next one
+            CRC32 crc = new CRC32();
+            long position = HEADER_SIZE;
+            long loaded = 0;
+            while(loaded < count) {
+                MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, position,
+                        Math.min(MAX_MAPPING, fileSize - position));
+                int consumed = 0;
+                while(loaded < count && window.capacity() - consumed >= ENTRY_HEADER_SIZE) {
+                    int keyLength = window.getInt(consumed);
+                    int valueLength = window.getInt(consumed + 4);
+                    if(keyLength < 0 || valueLength < 0 ||
+                            position + consumed + ENTRY_HEADER_SIZE + (long) keyLength + valueLength > fileSize) {
+                        throw new IOException("Snapshot " + file + " is corrupt at byte " + (position + consumed));
+                    }
+                    int entrySize = ENTRY_HEADER_SIZE + keyLength + valueLength;
+                    if(window.capacity() - consumed < entrySize) {
+                        break;
+                    }
+
+                    byte[] key = new byte[keyLength];
+                    byte[] value = new byte[valueLength];
+                    window.get(consumed + ENTRY_HEADER_SIZE, key);
+                    window.get(consumed + ENTRY_HEADER_SIZE + keyLength, value);
+                    store.put(key, value);
+
+                    window.limit(consumed + entrySize).position(consumed);
+                    crc.update(window);
+                    window.limit(window.capacity());
+                    consumed += entrySize;
+                    loaded++;
+                }
+                if(consumed == 0) {
+                    throw new IOException("Snapshot " + file + " is truncated");
+                }
+                position += consumed;
+            }
+
+            if((int) crc.getValue() != expectedCrc) {
+                throw new IOException("Snapshot " + file + " failed its checksum");
+            }
+            Server.logMessage("Loaded " + count + " entries (" + fileSize + " bytes) from snapshot in " +
+                    (System.nanoTime() - start) / 1000000 + "ms");
+            return walSegment;
+        }
+    }
+
+    /**
+     * Takes a snapshot every interval on the background thread.
+     * @param interval Seconds between snapshots.
+     */
+    public void schedule(int interval) {
+        executor.scheduleWithFixedDelay(this::take, interval, interval, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Starts a snapshot on the background thread, unless one is already being taken.
+     * @return Whether a new snapshot was started.
+     */
+    public boolean trigger() {
+        if(running.get()) {
+            return false;
+        }
+        executor.execute(this::take);
+        return true;
+    }
+
+    /**
+     * Writes a snapshot to a temporary file, then moves it over the previous one so a crash midway always
+     * leaves a complete snapshot behind, and finally deletes the log segments it covers.
+     */
+    private void take() {
+        if(!running.compareAndSet(false, true)) {
+            return;
+        }
+        long start = System.nanoTime();
+        Path tmp = file.resolveSibling(FILE_NAME + ".tmp");
+        try {
+            long walSegment = wal != null ? wal.rollSegment() : 0;
+
+            long[] count = new long[1];
+            long size;
+            CRC32 crc = new CRC32();
+            try(FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                ByteBuffer buf = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+                buf.position(HEADER_SIZE); // Header is filled in once the count and checksum are known
+
+                IOException[] error = new IOException[1];
+                store.forEach((key, value) -> {
+                    if(error[0] != null) {
+                        return;
+                    }
+                    try {
+                        writeEntry(channel, buf, crc, key, value);
+                        count[0]++;
+                    } catch (IOException e) {
+                        error[0] = e;
+                    }
+                });
+                if(error[0] != null) {
+                    throw error[0];
+                }
+                buf.flip();
+                writeFully(channel, buf);
+
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                header.putInt(MAGIC).putInt(VERSION).putLong(walSegment).putLong(count[0]).putInt((int) crc.getValue());
+                header.flip();
+                channel.position(0);
+                writeFully(channel, header);
+                channel.force(true);
+                size = channel.size();
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+            if(wal != null) {
+                wal.deleteSegmentsBefore(walSegment);
+            }
+            Server.logMessage("Snapshot of " + count[0] + " entries (" + size + " bytes) written to " + file + " in " +
+                    (System.nanoTime() - start) / 1000000 + "ms");
+        } catch (IOException | RuntimeException e) {
+            Server.logMessage("Snapshot failed: " + e.getMessage());
+        } finally {
+            running.set(false);
+        }
+    }
+
+    /**
+     * Adds an entry to the write buffer, writing the buffer out first if the entry does not fit.
+     * Entries larger than the buffer are written straight from their arrays.
+     */
+    private static void writeEntry(FileChannel channel, ByteBuffer buf, CRC32 crc, byte[] key, byte[] value)
+            throws IOException {
+        int entrySize = ENTRY_HEADER_SIZE + key.length + value.length;
+        if(buf.remaining() < entrySize) {
+            buf.flip();
+            writeFully(channel, buf);
+            buf.clear();
+        }
+
+        if(entrySize <= buf.capacity()) {
+            int start = buf.position();
+            buf.putInt(key.length).putInt(value.length).put(key).put(value);
+            crc.update(buf.duplicate().position(start).limit(buf.position()));
+        } else {
+            ByteBuffer entryHeader = ByteBuffer.allocate(ENTRY_HEADER_SIZE).putInt(key.length).putInt(value.length);
+            crc.update(entryHeader.array());
+            crc.update(key);
+            crc.update(value);
+            entryHeader.flip();
+            writeFully(channel, entryHeader);
+            writeFully(channel, ByteBuffer.wrap(key));
+            writeFully(channel, ByteBuffer.wrap(value));
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buf) throws IOException {
+        while(buf.hasRemaining()) {
+            channel.write(buf);
+        }
+    }
+}
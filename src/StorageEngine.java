@@ -0,0 +1,133 @@
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
+import java.util.function.BiPredicate;
+
+/**
+ * Storage engine holding the Key, Value pairs served by the Server.
+ * Keys and values are raw bytes so handlers can pass them straight through from the wire.
+ * Implementations must be safe to use from many connection handlers at once.
+ */
+public interface StorageEngine {
+
+    /**
+     * Looks up the value stored for a key.
+     * @param key The key to look up.
+     * @return The stored value, or null if the key cannot be found.
+     */
+    byte[] get(byte[] key);
+
+    /**
+     * Stores a value for a key, replacing any existing value.
+     * @param key The key to store.
+     * @param value The value to store.
+     * @return The value previously stored for the key, or null if there was none.
+     */
+    byte[] put(byte[] key, byte[] value);
+
+    /**
+     * Stores a value for a key that expires after a time to live, replacing any existing value and deadline.
+     * @param key The key to store.
+     * @param value The value to store.
+     * @param ttl Milliseconds until the key expires, 0 to never expire.
+     * @return The value previously stored for the key, or null if there was none.
+     * @throws UnsupportedOperationException Throws exception if the engine does not support expiration.
+     */
+    default byte[] put(byte[] key, byte[] value, long ttl) {
+        throw new UnsupportedOperationException("Expiration is not supported by " + getClass().getSimpleName());
+    }
+
+    /**
+     * Sets or clears the time to live of an existing key.
+     * @param key The key to update.
+     * @param ttl Milliseconds until the key expires, 0 to never expire.
+     * @return Whether the key was found.
+     * @throws UnsupportedOperationException Throws exception if the engine does not support expiration.
+     */
+    default boolean expire(byte[] key, long ttl) {
+        throw new UnsupportedOperationException("Expiration is not supported by " + getClass().getSimpleName());
+    }
+
+    /**
+     * Looks up how long a key has left to live.
+     * @param key The key to look up.
+     * @return Milliseconds until the key expires, -1 if it never expires, or -2 if the key cannot be found.
+     * @throws UnsupportedOperationException Throws exception if the engine does not support expiration.
+     */
+    default long ttl(byte[] key) {
+        throw new UnsupportedOperationException("Expiration is not supported by " + getClass().getSimpleName());
+    }
+
+    /**
+     * Removes a key and its value.
+     * @param key The key to remove.
+     * @return The value that was removed, or null if the key cannot be found.
+     */
+    byte[] remove(byte[] key);
+
+    /**
+     * Stores a value without returning the one it replaces, for callers that do not need it, so engines that
+     * would have to decode the previous value can skip that.
+     * @param key The key to store.
+     * @param value The value to store.
+     * @param ttl Milliseconds until the key expires, 0 to never expire.
+     * @throws UnsupportedOperationException Throws exception if a TTL is given and the engine does not support expiration.
+     */
+    default void set(byte[] key, byte[] value, long ttl) {
+        if(ttl > 0) {
+            put(key, value, ttl);
+        } else {
+            put(key, value);
+        }
+    }
+
+    /**
+     * Removes a key without returning its value, for callers that only need to know whether it was there.
+     * @param key The key to remove.
+     * @return Whether the key was found and removed.
+     */
+    default boolean delete(byte[] key) {
+        return remove(key) != null;
+    }
+
+    /**
+     * @return The number of keys currently stored.
+     */
+    int size();
+
+    /**
+     * Calls an action for every stored Key, Value pair, without stopping other operations for the whole traversal.
+     * Pairs written or removed during the traversal may or may not be seen, but every pair left unchanged is seen once.
+     * @param action The action called with each key and value.
+     */
+    void forEach(BiConsumer<byte[], byte[]> action);
+
+    /**
+     * Calls an action for the stored Key, Value pairs in a range of keys, in ascending order of their unsigned bytes,
+     * until the range ends or the action returns false. Like forEach, the scan never stops other operations.
+     * @param from The first key of the range, inclusive; empty to start at the lowest key.
+     * @param to The key ending the range, exclusive, or null to continue to the highest key.
+     * @param action The action called with each key and value, returning whether to continue.
+     * @throws UnsupportedOperationException Throws exception if the engine keeps no ordered index of its keys.
+     */
+    default void scan(byte[] from, byte[] to, BiPredicate<byte[], byte[]> action) {
+        throw new UnsupportedOperationException("Ordered scans are not supported by " + getClass().getSimpleName());
+    }
+
+    /**
+     * Blocks until every write made by the calling thread is durable, called before acknowledging writes to a client.
+     * Engines that only keep data in memory return immediately.
+     * @throws java.io.UncheckedIOException Throws exception if the writes could not be made durable.
+     */
+    default void awaitDurable() {
+    }
+
+    /**
+     * Like awaitDurable, but returns at once, for handlers that must not block, such as an event loop.
+     * @return A future completed once every write made by the calling thread since its last call is durable,
+     * already completed for engines that only keep data in memory, or failed with an UncheckedIOException if the
+     * writes could not be made durable.
+     */
+    default CompletableFuture<Void> whenDurable() {
+        return CompletableFuture.completedFuture(null);
+    }
+}
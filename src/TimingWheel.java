@@ -0,0 +1,237 @@
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Consumer;
+
+/**
+ * Hierarchical timing wheel that calls back with each key once its deadline has passed, at a cost of O(1) per
+ * scheduled key and per tick no matter how many keys are waiting.
+ *
+ * There are LEVELS wheels of SLOTS slots each. A deadline less than SLOTS ticks away goes in the first wheel, one
+ * less than SLOTS^2 ticks away in the second, and so on. Each tick fires the current slot of the first wheel; when
+ * the first wheel wraps around, the current slot of the second wheel is emptied and its keys are placed again,
+ * now landing in the first wheel, and likewise up the levels. With 256 slots, 4 levels and a 10ms tick, deadlines
+ * up to about 497 days out are placed directly.
+ *
+ * Each key has at most one timer. Scheduling a key again moves its timer to the new deadline, so a hot key
+ * rewritten with a TTL keeps a single timer however often it is written. Slots are doubly linked lists of timers,
+ * so a timer is moved out of its slot in O(1).
+ *
+ * The wheel itself is only touched by its own thread; schedule hands timers over through a lock-free queue.
+ * A timer may fire after its key's deadline has been moved further out or removed, so the callback must check
+ * the key's current deadline.
+ */
+public class TimingWheel {
+
+    private static final int SLOT_BITS = 8;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int SLOT_MASK = SLOTS - 1;
+    private static final int LEVELS = 4;
+
+    private final long tickMillis;
+    private final long startMillis;
+    private final Consumer<byte[]> onExpire;
+    private final Map<ByteKey, Timer> timers = new ConcurrentHashMap<>();
+    private final Queue<Timer> incoming = new ConcurrentLinkedQueue<>();
+
+    // Only touched by the wheel thread: the head of each slot's circular list
+    private final Timer[][] wheels = new Timer[LEVELS][SLOTS];
+    private long currentTick;
+
+    /**
+     * The timer of a key, measured in ticks since the wheel started.
+     */
+    private static final class Timer {
+        final ByteKey key;
+        volatile long deadlineTick;
+        volatile boolean queued; // In incoming, to be placed again by the wheel thread
+
+        // Only touched by the wheel thread; null while the timer is in no slot
+        Timer prev;
+        Timer next;
+
+        Timer(ByteKey key, long deadlineTick) {
+            this.key = key;
+            this.deadlineTick = deadlineTick;
+        }
+    }
+
+    /**
+     * @param tickMillis Milliseconds per tick; keys expire at most one tick after their deadline.
+     * @param onExpire Called on the wheel thread with each key whose deadline has passed.
+     */
+    public TimingWheel(long tickMillis, Consumer<byte[]> onExpire) {
+        this.tickMillis = tickMillis;
+        this.startMillis = System.currentTimeMillis();
+        this.onExpire = onExpire;
+        for(Timer[] wheel : wheels) {
+            for(int i = 0; i < SLOTS; i++) {
+                Timer head = new Timer(null, 0);
+                head.prev = head;
+                head.next = head;
+                wheel[i] = head;
+            }
+        }
+    }
+
+    /**
+     * Starts the thread that advances the wheel every tick.
+     */
+    public void start() {
+        Thread t = new Thread(this::run, "ttl-wheel");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * Schedules a key to be passed to the callback once a deadline has passed, replacing any deadline it was
+     * scheduled for before.
+     * @param key The key.
+     * @param deadline The deadline in epoch milliseconds.
+     */
+    public void schedule(byte[] key, long deadline) {
+        // Round up, so a key never fires before its deadline
+        long millis = Math.max(0, deadline - startMillis);
+        long ticks = millis / tickMillis + (millis % tickMillis == 0 ? 0 : 1);
+        timers.compute(new ByteKey(key), (k, timer) -> {
+            if(timer == null) {
+                timer = new Timer(k, ticks);
+            } else {
+                timer.deadlineTick = ticks;
+            }
+            // Set before queued is read, and the wheel clears queued before reading it, so one side always sees
+            // the other: either the wheel places the timer at the new deadline or the timer is queued again
+            if(!timer.queued) {
+                timer.queued = true;
+                incoming.add(timer);
+            }
+            return timer;
+        });
+    }
+
+    /**
+     * @return The number of keys with a timer.
+     */
+    public int size() {
+        return timers.size();
+    }
+
+    private void run() {
+        while(true) {
+            try {
+                Thread.sleep(tickMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            // Catch up on every tick that has passed, in case the thread slept longer than one
+            long targetTick = (System.currentTimeMillis() - startMillis) / tickMillis;
+            while(currentTick < targetTick) {
+                Timer timer;
+                while((timer = incoming.poll()) != null) {
+                    timer.queued = false;
+                    unlink(timer);
+                    place(timer);
+                }
+                advance();
+            }
+        }
+    }
+
+    /**
+     * Moves to the next tick, cascading higher wheels whose slots are now due, and fires the keys in the new slot.
+     */
+    private void advance() {
+        currentTick++;
+        for(int level = 1; level < LEVELS; level++) {
+            // A wheel only cascades when every wheel below it has wrapped around
+            if((currentTick & ((1L << (SLOT_BITS * level)) - 1)) != 0) {
+                break;
+            }
+            Timer timer = detach(wheels[level][(int) (currentTick >>> (SLOT_BITS * level)) & SLOT_MASK]);
+            while(timer != null) {
+                Timer next = timer.next;
+                timer.next = null;
+                place(timer);
+                timer = next;
+            }
+        }
+
+        Timer timer = detach(wheels[0][(int) currentTick & SLOT_MASK]);
+        while(timer != null) {
+            Timer next = timer.next;
+            timer.next = null;
+            fire(timer);
+            timer = next;
+        }
+    }
+
+    /**
+     * Puts a timer in the lowest wheel whose range covers its deadline, or fires it if it is already due.
+     */
+    private void place(Timer timer) {
+        long deadlineTick = timer.deadlineTick;
+        long delta = deadlineTick - currentTick;
+        if(delta <= 0) {
+            fire(timer);
+            return;
+        }
+        for(int level = 0; level < LEVELS; level++) {
+            if(delta < 1L << (SLOT_BITS * (level + 1))) {
+                link(wheels[level][(int) (deadlineTick >>> (SLOT_BITS * level)) & SLOT_MASK], timer);
+                return;
+            }
+        }
+        // Beyond the top wheel: park it in the furthest slot, it is placed again when that slot cascades
+        long parked = currentTick + (1L << (SLOT_BITS * LEVELS)) - 1;
+        link(wheels[LEVELS - 1][(int) (parked >>> (SLOT_BITS * (LEVELS - 1))) & SLOT_MASK], timer);
+    }
+
+    private void fire(Timer timer) {
+        // Dropped unless it was scheduled again meanwhile, in which case it is placed at its new deadline
+        timers.computeIfPresent(timer.key, (k, current) -> current == timer && !timer.queued ? null : current);
+        try {
+            onExpire.accept(timer.key.bytes());
+        } catch (RuntimeException e) {
+            Server.logMessage("Error expiring key: " + e.getMessage());
+        }
+    }
+
+    private static void link(Timer head, Timer timer) {
+        timer.prev = head.prev;
+        timer.next = head;
+        head.prev.next = timer;
+        head.prev = timer;
+    }
+
+    private static void unlink(Timer timer) {
+        if(timer.prev == null) {
+            return;
+        }
+        if(timer.next != null) {
+            timer.next.prev = timer.prev;
+        }
+        timer.prev.next = timer.next;
+        timer.prev = null;
+        timer.next = null;
+    }
+
+    /**
+     * Empties a slot.
+     * @return The first of its timers, chained by next up to null, each with no prev.
+     */
+    private static Timer detach(Timer head) {
+        if(head.next == head) {
+            return null;
+        }
+        Timer first = head.next;
+        head.prev.next = null;
+        head.prev = head;
+        head.next = head;
+        for(Timer timer = first; timer != null; timer = timer.next) {
+            timer.prev = null;
+        }
+        return first;
+    }
+}
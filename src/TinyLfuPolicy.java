@@ -0,0 +1,248 @@
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * W-TinyLFU eviction: recency and frequency combined, so one-off scans do not flush keys that are read often.
+ *
+ * New keys enter a small LRU window holding about 1% of the capacity. Keys pushed out of the window become
+ * candidates for the main area, a segmented LRU split into probation and protected parts; a probation key that
+ * is read again is promoted to protected, which holds up to 80% of the main area. When something has to go, the
+ * newest candidate competes with the least recently used probation key, and whichever has been seen less often
+ * according to a frequency sketch is evicted.
+ *
+ * The sketch is a count-min sketch of 4-bit counters that halves every count after a number of increments
+ * proportional to its size, so popularity from long ago fades.
+ */
+public class TinyLfuPolicy implements EvictionPolicy {
+
+    private static final int WINDOW = 0;
+    private static final int PROBATION = 1;
+    private static final int PROTECTED = 2;
+
+    private final long windowMax;
+    private final long protectedMax;
+
+    // Each queue is in LRU order: first entry least recently used
+    private final LinkedHashMap<ByteKey, Node> window = new LinkedHashMap<>();
+    private final LinkedHashMap<ByteKey, Node> probation = new LinkedHashMap<>();
+    private final LinkedHashMap<ByteKey, Node> protectedKeys = new LinkedHashMap<>();
+    private final Map<ByteKey, Node> nodes = new HashMap<>();
+    private long windowWeight;
+    private long protectedWeight;
+    private long totalWeight;
+    private ByteKey candidate; // Last key moved from the window into probation
+
+    private final FrequencySketch sketch;
+
+    private static final class Node {
+        final ByteKey key;
+        int weight;
+        int queue;
+
+        Node(ByteKey key, int weight) {
+            this.key = key;
+            this.weight = weight;
+        }
+    }
+
+    /**
+     * @param capacity The total weight the store is limited to, used to size the window and protected areas.
+     * @param expectedEntries The number of keys expected at capacity, used to size the frequency sketch.
+     */
+    public TinyLfuPolicy(long capacity, long expectedEntries) {
+        this.windowMax = Math.max(1, capacity / 100);
+        this.protectedMax = (capacity - windowMax) * 8 / 10;
+        this.sketch = new FrequencySketch(expectedEntries);
+    }
+
+    @Override
+    public void recordAccess(ByteKey key) {
+        sketch.increment(key.hashCode());
+        Node node = nodes.get(key);
+        if(node != null) {
+            onHit(node);
+        }
+    }
+
+    @Override
+    public void recordWrite(ByteKey key, int weight) {
+        sketch.increment(key.hashCode());
+        Node node = nodes.get(key);
+        if(node != null) {
+            adjustWeight(node, weight - node.weight);
+            node.weight = weight;
+            onHit(node);
+            return;
+        }
+
+        node = new Node(key, weight);
+        node.queue = WINDOW;
+        nodes.put(key, node);
+        window.put(key, node);
+        windowWeight += weight;
+        totalWeight += weight;
+    }
+
+    @Override
+    public void recordRemove(ByteKey key) {
+        Node node = nodes.remove(key);
+        if(node != null) {
+            queueOf(node).remove(key);
+            adjustWeight(node, -node.weight);
+        }
+    }
+
+    @Override
+    public ByteKey evict() {
+        // Keys that no longer fit in the window become candidates for the main area
+        while(windowWeight > windowMax && window.size() > 1) {
+            Node node = removeFirst(window);
+            windowWeight -= node.weight;
+            node.queue = PROBATION;
+            probation.put(node.key, node);
+            candidate = node.key;
+        }
+
+        Node victim;
+        if(!probation.isEmpty()) {
+            victim = probation.values().iterator().next();
+            Node challenger = candidate != null ? probation.get(candidate) : null;
+            // The candidate is admitted only if it has been seen more often than the key it would replace
+            if(challenger != null && challenger != victim &&
+                    sketch.frequency(challenger.key.hashCode()) <= sketch.frequency(victim.key.hashCode())) {
+                victim = challenger;
+            }
+        } else if(!protectedKeys.isEmpty()) {
+            victim = protectedKeys.values().iterator().next();
+        } else if(!window.isEmpty()) {
+            victim = window.values().iterator().next();
+        } else {
+            return null;
+        }
+
+        if(victim.key.equals(candidate)) {
+            candidate = null;
+        }
+        recordRemove(victim.key);
+        return victim.key;
+    }
+
+    @Override
+    public long weight() {
+        return totalWeight;
+    }
+
+    @Override
+    public int entries() {
+        return nodes.size();
+    }
+
+    /**
+     * Moves a key that was read or rewritten to the most recently used end of its queue, promoting it from
+     * probation to protected.
+     */
+    private void onHit(Node node) {
+        if(node.queue == PROBATION) {
+            probation.remove(node.key);
+            node.queue = PROTECTED;
+            protectedKeys.put(node.key, node);
+            protectedWeight += node.weight;
+
+            // Demote the least recently used protected keys back to probation if protected is now too large
+            while(protectedWeight > protectedMax && protectedKeys.size() > 1) {
+                Node demoted = removeFirst(protectedKeys);
+                protectedWeight -= demoted.weight;
+                demoted.queue = PROBATION;
+                probation.put(demoted.key, demoted);
+            }
+        } else {
+            LinkedHashMap<ByteKey, Node> queue = queueOf(node);
+            queue.remove(node.key);
+            queue.put(node.key, node);
+        }
+    }
+
+    private void adjustWeight(Node node, int delta) {
+        totalWeight += delta;
+        if(node.queue == WINDOW) {
+            windowWeight += delta;
+        } else if(node.queue == PROTECTED) {
+            protectedWeight += delta;
+        }
+    }
+
+    private LinkedHashMap<ByteKey, Node> queueOf(Node node) {
+        return node.queue == WINDOW ? window : node.queue == PROBATION ? probation : protectedKeys;
+    }
+
+    private static Node removeFirst(LinkedHashMap<ByteKey, Node> queue) {
+        Iterator<Node> it = queue.values().iterator();
+        Node first = it.next();
+        it.remove();
+        return first;
+    }
+
+    /**
+     * Count-min sketch estimating how often each key hash has been seen, with 4 rows of 4-bit counters.
+     */
+    static final class FrequencySketch {
+        private static final long[] SEEDS = {0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+        private static final int MAX_COUNT = 15;
+
+        private final byte[][] rows = new byte[SEEDS.length][];
+        private final int mask;
+        private final int sampleSize;
+        private int additions;
+
+        FrequencySketch(long expectedEntries) {
+            int width = Integer.highestOneBit((int) Math.max(1024, Math.min(expectedEntries, 1 << 24)) - 1) << 1;
+            for(int i = 0; i < rows.length; i++) {
+                rows[i] = new byte[width];
+            }
+            this.mask = width - 1;
+            this.sampleSize = width * 10;
+        }
+
+        void increment(int hash) {
+            boolean added = false;
+            for(int i = 0; i < rows.length; i++) {
+                int index = index(hash, i);
+                if(rows[i][index] < MAX_COUNT) {
+                    rows[i][index]++;
+                    added = true;
+                }
+            }
+            if(added && ++additions >= sampleSize) {
+                age();
+            }
+        }
+
+        int frequency(int hash) {
+            int min = MAX_COUNT;
+            for(int i = 0; i < rows.length; i++) {
+                min = Math.min(min, rows[i][index(hash, i)]);
+            }
+            return min;
+        }
+
+        /**
+         * Halves every counter, so old popularity counts for less than recent popularity.
+         */
+        private void age() {
+            for(byte[] row : rows) {
+                for(int i = 0; i < row.length; i++) {
+                    row[i] >>= 1;
+                }
+            }
+            additions /= 2;
+        }
+
+        private int index(int hash, int row) {
+            long h = (hash + SEEDS[row]) * SEEDS[row];
+            h += h >>> 32;
+            return (int) h & mask;
+        }
+    }
+}
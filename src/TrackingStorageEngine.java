@@ -0,0 +1,213 @@
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.BiPredicate;
+
+/**
+ * Storage engine that keeps client near caches coherent by tracking which clients have read which keys and
+ * pushing an invalidation to them whenever one of those keys is written or removed.
+ *
+ * A client opens a dedicated invalidation connection and sends SUBSCRIBE, which returns a subscriber ID; the
+ * connection then only carries INVALIDATE frames from the server. On its normal connection, the client sends
+ * TRACKING with that ID, after which every GET it sends records the key against the subscriber before the value
+ * is read, so a write racing with the GET is always followed by an invalidation. Each key is tracked until its
+ * next write or removal, which sends one invalidation per subscriber and forgets the key until it is read again.
+ *
+ * Invalidations are queued per subscriber and written by the thread serving its connection, so writers never
+ * block on a slow client. A subscriber whose queue overflows is disconnected, which makes its client drop its
+ * near cache. Once a subscriber has disconnected, GETs naming it are no longer tracked.
+ */
+public class TrackingStorageEngine implements StorageEngine {
+
+    private static final int SUBSCRIBER_QUEUE_SIZE = 16 * 1024;
+
+    // Tracked keys beyond this are invalidated early, an arbitrary one at a time, bounding the memory used by the
+    // tracking table
+    private static final int MAX_TRACKED_KEYS = 1_000_000;
+
+    // Idle subscriber connections get an empty invalidation this often, so dead clients are noticed
+    private static final int HEARTBEAT_SECONDS = 30;
+
+    // Queued in place of a key to make serveSubscriber disconnect an overflowing subscriber
+    private static final byte[] OVERFLOW = new byte[0];
+
+    private final StorageEngine store;
+    private final ConcurrentHashMap<ByteKey, Set<Integer>> tracked = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Integer, BlockingQueue<byte[]>> subscribers = new ConcurrentHashMap<>();
+    private final AtomicInteger nextSubscriberId = new AtomicInteger();
+
+    /**
+     * Tracking state of one client connection.
+     */
+    public static final class Session {
+        // Subscriber the GETs on this connection are tracked for, or -1 if tracking is off
+        int subscriberId = -1;
+    }
+
+    /**
+     * @param store The StorageEngine holding the data.
+     */
+    public TrackingStorageEngine(StorageEngine store) {
+        this.store = store;
+    }
+
+    @Override
+    public byte[] get(byte[] key) {
+        return store.get(key);
+    }
+
+    @Override
+    public byte[] put(byte[] key, byte[] value) {
+        byte[] previous = store.put(key, value);
+        invalidate(key);
+        return previous;
+    }
+
+    @Override
+    public byte[] remove(byte[] key) {
+        byte[] previous = store.remove(key);
+        if(previous != null) {
+            invalidate(key);
+        }
+        return previous;
+    }
+
+    @Override
+    public int size() {
+        return store.size();
+    }
+
+    @Override
+    public void forEach(BiConsumer<byte[], byte[]> action) {
+        store.forEach(action);
+    }
+
+    @Override
+    public void scan(byte[] from, byte[] to, BiPredicate<byte[], byte[]> action) {
+        store.scan(from, to, action);
+    }
+
+    @Override
+    public void awaitDurable() {
+        store.awaitDurable();
+    }
+
+    @Override
+    public CompletableFuture<Void> whenDurable() {
+        return store.whenDurable();
+    }
+
+    /**
+     * Registers a connection as a subscriber, answers the SUBSCRIBE request with its ID, and then writes its
+     * invalidations until the client disconnects.
+     * @param request The SUBSCRIBE request.
+     * @param out The DataOutputStream of the subscribing connection.
+     * @throws IOException Throws exception once the connection fails or the subscriber falls too far behind.
+     */
+    public void serveSubscriber(Protocol.Request request, DataOutputStream out) throws IOException {
+        int id = nextSubscriberId.incrementAndGet();
+        BlockingQueue<byte[]> queue = new ArrayBlockingQueue<>(SUBSCRIBER_QUEUE_SIZE);
+        subscribers.put(id, queue);
+        Server.logMessage("Near cache subscriber " + id + " connected");
+
+        try {
+            Protocol.writeResponse(out, new Protocol.Response(request.opcode, Protocol.STATUS_OK, request.requestId,
+                    ByteBuffer.allocate(4).putInt(id).array()));
+            while(true) {
+                byte[] key = queue.poll(HEARTBEAT_SECONDS, TimeUnit.SECONDS);
+                if(key == null) {
+                    key = new byte[0];
+                } else if(key == OVERFLOW) {
+                    throw new IOException("Near cache subscriber " + id + " fell too far behind");
+                }
+                Protocol.writeResponse(out, new Protocol.Response(Protocol.OP_INVALIDATE, Protocol.STATUS_OK, 0, key));
+            }
+        } catch (InterruptedException e) {
+            throw new IOException("Near cache subscriber " + id + " interrupted");
+        } finally {
+            subscribers.remove(id);
+            Server.logMessage("Near cache subscriber " + id + " disconnected");
+        }
+    }
+
+    /**
+     * Answers a TRACKING request, which names the subscriber that the GETs on a connection are tracked for.
+     * @param request The TRACKING request, with the subscriber ID as its value.
+     * @param session The tracking state of the connection the request arrived on.
+     * @return The response to send back to the client.
+     */
+    public Protocol.Response enableTracking(Protocol.Request request, Session session) {
+        int id = request.value.length == 4 ? ByteBuffer.wrap(request.value).getInt() : -1;
+        if(!subscribers.containsKey(id)) {
+            return new Protocol.Response(request.opcode, Protocol.STATUS_NOT_FOUND, request.requestId, new byte[0]);
+        }
+        session.subscriberId = id;
+        Server.logDebug("Tracking reads for near cache subscriber {}", id);
+        return new Protocol.Response(request.opcode, Protocol.STATUS_OK, request.requestId, new byte[0]);
+    }
+
+    /**
+     * Records that a connection is about to read a key, so its subscriber is told when the key next changes.
+     * Must be called before the value is read. Does nothing if tracking is off for the connection.
+     * @param key The key being read.
+     * @param session The tracking state of the connection reading the key.
+     */
+    public void track(byte[] key, Session session) {
+        int subscriberId = session.subscriberId;
+        if(subscriberId < 0) {
+            return;
+        }
+        if(!subscribers.containsKey(subscriberId)) {
+            // The subscriber's connection has closed, so nobody would receive its invalidations
+            session.subscriberId = -1;
+            return;
+        }
+        ByteKey k = new ByteKey(key);
+        // compute is atomic with the remove in invalidate, so a subscriber is never added to a set already taken
+        tracked.compute(k, (ignored, ids) -> {
+            if(ids == null) {
+                ids = ConcurrentHashMap.newKeySet();
+            }
+            ids.add(subscriberId);
+            return ids;
+        });
+
+        if(tracked.size() > MAX_TRACKED_KEYS) {
+            // The table keeps no order, so this drops whichever key iteration reaches first, not the oldest
+            Iterator<ByteKey> any = tracked.keySet().iterator();
+            if(any.hasNext()) {
+                invalidate(any.next().bytes());
+            }
+        }
+    }
+
+    /**
+     * Tells every subscriber tracking a key that it changed, and stops tracking it.
+     */
+    private void invalidate(byte[] key) {
+        if(tracked.isEmpty()) {
+            return; // Nobody is caching anything
+        }
+        Set<Integer> ids = tracked.remove(new ByteKey(key));
+        if(ids == null) {
+            return;
+        }
+        for(int id : ids) {
+            BlockingQueue<byte[]> queue = subscribers.get(id);
+            if(queue != null && !queue.offer(key)) {
+                // Too far behind to stay coherent; replace the backlog with a marker that disconnects it
+                queue.clear();
+                queue.offer(OVERFLOW);
+            }
+        }
+    }
+}
@@ -0,0 +1,171 @@
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compressed values, kept by the server and sent to clients exactly as stored, in a self-describing envelope:
+ *
+ *   envelope: MAGIC(2) CODEC(1) LENGTH(4) PAYLOAD
+ *
+ * LENGTH is the length of the original value. CODEC_DEFLATE payloads are raw Deflate streams at BEST_SPEED, which
+ * still shrinks repetitive text such as JSON several times over. CODEC_STORED payloads are the value itself; the
+ * server stores a value that happens to start with MAGIC that way, so any stored value starting with MAGIC is an
+ * envelope and every other value is raw.
+ *
+ * Deflaters and Inflaters hold native zlib state that is slow to create, so each thread keeps one of each.
+ * Envelopes received from clients are checked before they are stored, so a stored envelope always decodes.
+ */
+public class ValueCompression {
+
+    public static final byte MAGIC_0 = (byte) 0xB7;
+    public static final byte MAGIC_1 = 'Z';
+    public static final int HEADER_SIZE = 7; // MAGIC, CODEC, LENGTH
+
+    public static final byte CODEC_STORED = 0;
+    public static final byte CODEC_DEFLATE = 1;
+
+    private static final ThreadLocal<Deflater> DEFLATER = ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_SPEED, true));
+    private static final ThreadLocal<Inflater> INFLATER = ThreadLocal.withInitial(() -> new Inflater(true));
+
+    private ValueCompression() {
+    }
+
+    /**
+     * Compresses a value if it is at least a given size and compression makes it smaller.
+     * @param value The value.
+     * @param minSize The smallest value to compress.
+     * @return An envelope, or null if the value should stay as it is.
+     */
+    public static byte[] compress(byte[] value, int minSize) {
+        if(value.length < minSize || value.length <= HEADER_SIZE) {
+            return null;
+        }
+        // Output that does not fit in the value's own size is not worth keeping
+        byte[] out = new byte[value.length];
+        Deflater deflater = DEFLATER.get();
+        deflater.setInput(value);
+        deflater.finish();
+        int length = deflater.deflate(out, HEADER_SIZE, out.length - HEADER_SIZE);
+        boolean finished = deflater.finished();
+        deflater.reset();
+        if(!finished) {
+            return null;
+        }
+        ByteBuffer.wrap(out).put(MAGIC_0).put(MAGIC_1).put(CODEC_DEFLATE).putInt(value.length);
+        return Arrays.copyOf(out, HEADER_SIZE + length);
+    }
+
+    /**
+     * Encodes a value for the store: compressed if it is at least minSize and compresses, otherwise as it is, unless
+     * it starts with MAGIC and has to be wrapped in a CODEC_STORED envelope.
+     * @param value The value.
+     * @param minSize The smallest value to compress, or 0 to never compress.
+     * @return The value as it should be stored.
+     */
+    public static byte[] encode(byte[] value, int minSize) {
+        byte[] compressed = minSize > 0 ? compress(value, minSize) : null;
+        if(compressed != null) {
+            return compressed;
+        }
+        if(!isEnvelope(value)) {
+            return value;
+        }
+        return ByteBuffer.allocate(HEADER_SIZE + value.length)
+                .put(MAGIC_0).put(MAGIC_1).put(CODEC_STORED).putInt(value.length).put(value).array();
+    }
+
+    /**
+     * @param stored A stored value.
+     * @return Whether the value is an envelope rather than raw.
+     */
+    public static boolean isEnvelope(byte[] stored) {
+        return stored.length >= 2 && stored[0] == MAGIC_0 && stored[1] == MAGIC_1;
+    }
+
+    /**
+     * Checks an envelope received from a client before it is stored as it is, decompressing it into a small scratch
+     * buffer, so every stored envelope is known to decode.
+     * @param envelope The envelope.
+     * @throws ProtocolException Throws exception if the envelope is malformed or does not decompress to its length.
+     */
+    public static void check(byte[] envelope) throws ProtocolException {
+        checkHeader(envelope);
+        if(envelope[2] == CODEC_STORED) {
+            return;
+        }
+        int length = ByteBuffer.wrap(envelope).getInt(3);
+        byte[] scratch = new byte[Math.min(length, 64 * 1024) + 1]; // One spare byte reveals overlong payloads
+        Inflater inflater = INFLATER.get();
+        try {
+            inflater.setInput(envelope, HEADER_SIZE, envelope.length - HEADER_SIZE);
+            long total = 0;
+            int n;
+            while((n = inflater.inflate(scratch)) > 0) {
+                total += n;
+                // Stop at the declared length, so a small payload cannot make the server inflate without end
+                if(total > length) {
+                    throw new ProtocolException("Compressed value exceeds its length " + length);
+                }
+            }
+            if(total != length || !inflater.finished()) {
+                throw new ProtocolException("Compressed value does not match its length " + length);
+            }
+        } catch (DataFormatException e) {
+            throw new ProtocolException("Corrupt compressed value: " + e.getMessage());
+        } finally {
+            inflater.reset();
+        }
+    }
+
+    private static void checkHeader(byte[] envelope) throws ProtocolException {
+        if(envelope.length < HEADER_SIZE || !isEnvelope(envelope)) {
+            throw new ProtocolException("Malformed compressed value");
+        }
+        ByteBuffer buf = ByteBuffer.wrap(envelope);
+        byte codec = buf.get(2);
+        int length = buf.getInt(3);
+        if(codec != CODEC_STORED && codec != CODEC_DEFLATE) {
+            throw new ProtocolException("Unknown compression codec " + codec);
+        }
+        if(length < 0 || length > Protocol.MAX_VALUE_SIZE || (codec == CODEC_STORED && length != envelope.length - HEADER_SIZE)) {
+            throw new ProtocolException("Invalid compressed value length " + length);
+        }
+    }
+
+    /**
+     * Decodes a stored value into the original value.
+     * @param stored A stored value, raw or an envelope, or null.
+     * @return The original value, or null if stored is null.
+     * @throws ProtocolException Throws exception if the envelope is malformed or its payload does not decompress
+     * to its length.
+     */
+    public static byte[] decode(byte[] stored) throws ProtocolException {
+        if(stored == null || !isEnvelope(stored)) {
+            return stored;
+        }
+        checkHeader(stored);
+        int length = ByteBuffer.wrap(stored).getInt(3);
+        if(stored[2] == CODEC_STORED) {
+            return Arrays.copyOfRange(stored, HEADER_SIZE, stored.length);
+        }
+
+        byte[] value = new byte[length];
+        Inflater inflater = INFLATER.get();
+        try {
+            inflater.setInput(stored, HEADER_SIZE, stored.length - HEADER_SIZE);
+            int n = inflater.inflate(value);
+            // A payload that is complete fills the value exactly
+            if(n != length || !inflater.finished()) {
+                throw new ProtocolException("Compressed value does not match its length " + length);
+            }
+            return value;
+        } catch (DataFormatException e) {
+            throw new ProtocolException("Corrupt compressed value: " + e.getMessage());
+        } finally {
+            inflater.reset();
+        }
+    }
+}
@@ -0,0 +1,412 @@
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of every PUT and DELETE applied to the store, replayed on startup so data survives restarts.
+ * Each record is CRC(4) LENGTH(4) TYPE(1) KEY_LEN(4) KEY VALUE, where LENGTH covers everything after it.
+ *
+ * Writes use group commit: appenders only copy their record into a shared buffer, and a single flusher thread
+ * writes whatever has accumulated and fsyncs it in one go, so many concurrent writes share each disk flush.
+ * The flusher starts the next group as soon as the previous fsync finishes, or, with a sync interval, waits up to
+ * that long for more records unless the batch size is reached first.
+ *
+ * The log is split into numbered segment files, wal-&lt;number&gt;.log, and a new segment is started once the current
+ * one grows past the segment size, or when a snapshot starts; segments older than the latest snapshot are deleted.
+ * A torn record at the end of a segment, left by a crash mid-write, is cut off
+ * during replay.
+ */
+public class WriteAheadLog {
+
+    public static final byte RECORD_PUT = 1;
+    public static final byte RECORD_DELETE = 2;
+
+    private static final int RECORD_HEADER_SIZE = 8; // CRC, LENGTH
+    private static final String SEGMENT_PREFIX = "wal-";
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    private final Path dir;
+    private final long segmentSize;
+    private final int syncInterval;
+    private final int batchBytes;
+
+    // Guarded by this: records appended but not yet handed to the flusher
+    private byte[] pending = new byte[64 * 1024];
+    private int pendingSize;
+    private long appendedSeq;
+    private long durableSeq;
+    private IOException failure;
+    private boolean closed;
+    // Futures of whenDurable callers, each completed once durableSeq reaches its sequence number
+    private final List<Waiter> waiters = new ArrayList<>();
+
+    // Only touched by the flusher thread
+    private byte[] spare = new byte[64 * 1024];
+
+    // Guarded by channelLock, held while a group is written so the segment is never switched in the middle of one
+    private final Object channelLock = new Object();
+    private FileChannel channel;
+    private long segmentNumber;
+    private final Thread flusher;
+
+    /**
+     * Opens the log, replaying existing segments into the store, and starts a new segment for appends.
+     * @param dir The directory holding the segment files, created if missing.
+     * @param store The StorageEngine the logged operations are replayed into.
+     * @param firstSegment The oldest segment still needed; older segments are already covered by a snapshot and deleted.
+     * @param segmentSize The size in bytes after which a new segment file is started.
+     * @param syncInterval Milliseconds the flusher waits for more records before an fsync, 0 to sync immediately.
+     * @param batchBytes The number of pending bytes that triggers an fsync without waiting out the sync interval.
+     * @throws IOException Throws exception if the directory or a segment cannot be read or created.
+     */
+    public WriteAheadLog(Path dir, StorageEngine store, long firstSegment, long segmentSize, int syncInterval,
+                         int batchBytes) throws IOException {
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        this.syncInterval = syncInterval;
+        this.batchBytes = batchBytes;
+
+        Files.createDirectories(dir);
+        List<Path> segments = segments();
+        long replayed = 0;
+        for(Path segment : segments) {
+            segmentNumber = segmentNumber(segment);
+            if(segmentNumber < firstSegment) {
+                Files.delete(segment);
+            } else {
+                replayed += replay(segment, store);
+            }
+        }
+        segmentNumber = Math.max(segmentNumber, firstSegment - 1);
+        Server.logMessage("Write-ahead log replayed " + replayed + " records from " + segments.size() + " segments in " + dir);
+
+        openNextSegment();
+        flusher = new Thread(this::flushLoop, "wal-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /**
+     * Adds a record to the next group commit. The record is not durable until awaitDurable returns for its sequence number.
+     * @param type The record type - RECORD_PUT, RECORD_DELETE.
+     * @param key The key written or removed.
+     * @param value The value written, empty for RECORD_DELETE.
+     * @return The sequence number of the record.
+     * @throws UncheckedIOException Throws exception if the log has been closed.
+     */
+    public long append(byte type, byte[] key, byte[] value) {
+        byte[] record = encode(type, key, value);
+        synchronized(this) {
+            if(closed) {
+                throw new UncheckedIOException(new IOException("Write-ahead log is closed"));
+            }
+            if(pendingSize + record.length > pending.length) {
+                byte[] larger = new byte[Math.max(pending.length * 2, pendingSize + record.length)];
+                System.arraycopy(pending, 0, larger, 0, pendingSize);
+                pending = larger;
+            }
+            System.arraycopy(record, 0, pending, pendingSize, record.length);
+            boolean wasEmpty = pendingSize == 0;
+            pendingSize += record.length;
+
+            // Wake the flusher for the first record of a group, and again once the batch is full
+            if(wasEmpty || pendingSize >= batchBytes) {
+                notifyAll();
+            }
+            return ++appendedSeq;
+        }
+    }
+
+    /**
+     * Blocks until the record with the given sequence number, and every record before it, has been fsynced.
+     * @param seq The sequence number returned by append, or 0 to return immediately.
+     * @throws UncheckedIOException Throws exception if the log could not be written.
+     */
+    public synchronized void awaitDurable(long seq) {
+        boolean interrupted = false;
+        while(durableSeq < seq) {
+            if(failure != null) {
+                throw new UncheckedIOException("Write-ahead log failed", failure);
+            }
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if(interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Returns a future completed once the record with the given sequence number, and every record before it, has
+     * been fsynced, without blocking. Futures are completed on the flusher thread.
+     * @param seq The sequence number returned by append, or 0 for an already completed future.
+     * @return The future, failed with an UncheckedIOException if the log could not be written.
+     */
+    public synchronized CompletableFuture<Void> whenDurable(long seq) {
+        if(durableSeq >= seq) {
+            return CompletableFuture.completedFuture(null);
+        }
+        if(failure != null) {
+            return CompletableFuture.failedFuture(new UncheckedIOException("Write-ahead log failed", failure));
+        }
+        Waiter waiter = new Waiter(seq);
+        waiters.add(waiter);
+        return waiter.future;
+    }
+
+    /**
+     * Switches to a new segment. Every record appended after this call is written to the new segment or a later one.
+     * @return The number of the new segment.
+     * @throws IOException Throws exception if the new segment cannot be created.
+     */
+    public long rollSegment() throws IOException {
+        synchronized(channelLock) {
+            channel.close();
+            openNextSegment();
+            return segmentNumber;
+        }
+    }
+
+    /**
+     * Deletes the segments older than a given segment, once a snapshot holds everything they recorded.
+     * @param firstSegment The oldest segment still needed.
+     * @throws IOException Throws exception if a segment cannot be deleted.
+     */
+    public void deleteSegmentsBefore(long firstSegment) throws IOException {
+        for(Path segment : segments()) {
+            if(segmentNumber(segment) < firstSegment) {
+                Files.delete(segment);
+            }
+        }
+    }
+
+    /**
+     * Writes and fsyncs any pending records, then stops the flusher and closes the current segment.
+     */
+    public void close() {
+        synchronized(this) {
+            if(closed) {
+                return;
+            }
+            closed = true;
+            notifyAll();
+        }
+        try {
+            flusher.join();
+            synchronized(channelLock) {
+                channel.close();
+            }
+        } catch (InterruptedException | IOException e) {
+            Server.logMessage("Error closing write-ahead log: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Writes each group of pending records to the current segment and fsyncs it, until the log is closed.
+     */
+    private void flushLoop() {
+        while(true) {
+            byte[] group;
+            int groupSize;
+            long groupSeq;
+            synchronized(this) {
+                try {
+                    while(pendingSize == 0 && !closed) {
+                        wait();
+                    }
+                    // Let more records join the group, unless the batch is already full
+                    long deadline = System.currentTimeMillis() + syncInterval;
+                    long remaining = syncInterval;
+                    while(remaining > 0 && pendingSize < batchBytes && !closed) {
+                        wait(remaining);
+                        remaining = deadline - System.currentTimeMillis();
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if(pendingSize == 0 && closed) {
+                    return;
+                }
+
+                // Swap buffers so appenders keep filling the next group while this one is written
+                group = pending;
+                groupSize = pendingSize;
+                groupSeq = appendedSeq;
+                pending = spare;
+                pendingSize = 0;
+            }
+
+            IOException error = null;
+            try {
+                synchronized(channelLock) {
+                    ByteBuffer buf = ByteBuffer.wrap(group, 0, groupSize);
+                    while(buf.hasRemaining()) {
+                        channel.write(buf);
+                    }
+                    channel.force(false);
+                    if(channel.size() >= segmentSize) {
+                        channel.close();
+                        openNextSegment();
+                    }
+                }
+            } catch (IOException e) {
+                error = e;
+                Server.logMessage("Write-ahead log write failed: " + e.getMessage());
+            }
+
+            List<Waiter> done = new ArrayList<>();
+            synchronized(this) {
+                spare = group;
+                if(error != null) {
+                    failure = error;
+                } else {
+                    durableSeq = groupSeq;
+                }
+                notifyAll();
+                for(Iterator<Waiter> it = waiters.iterator(); it.hasNext(); ) {
+                    Waiter waiter = it.next();
+                    if(error != null || waiter.seq <= durableSeq) {
+                        done.add(waiter);
+                        it.remove();
+                    }
+                }
+            }
+            // Completed outside the lock, since completing runs whatever the waiter chained onto its future
+            for(Waiter waiter : done) {
+                if(error != null) {
+                    waiter.future.completeExceptionally(new UncheckedIOException("Write-ahead log failed", error));
+                } else {
+                    waiter.future.complete(null);
+                }
+            }
+        }
+    }
+
+    /**
+     * A whenDurable caller waiting for a sequence number.
+     */
+    private static final class Waiter {
+        final long seq;
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        Waiter(long seq) {
+            this.seq = seq;
+        }
+    }
+
+    private void openNextSegment() throws IOException {
+        segmentNumber++;
+        Path segment = dir.resolve(String.format("%s%020d%s", SEGMENT_PREFIX, segmentNumber, SEGMENT_SUFFIX));
+        channel = FileChannel.open(segment, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    /**
+     * @return The segment files in the log directory, oldest first.
+     */
+    private List<Path> segments() throws IOException {
+        List<Path> segments = new ArrayList<>();
+        try(DirectoryStream<Path> files = Files.newDirectoryStream(dir, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for(Path file : files) {
+                segments.add(file);
+            }
+        }
+        Collections.sort(segments); // Zero-padded numbers sort in order
+        return segments;
+    }
+
+    private static long segmentNumber(Path segment) {
+        String name = segment.getFileName().toString();
+        return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    /**
+     * Applies every intact record in a segment to the store, and truncates the segment at the first torn or
+     * corrupt record.
+     * @return The number of records replayed.
+     */
+    private static long replay(Path segment, StorageEngine store) throws IOException {
+        long records = 0;
+        long validLength = 0;
+        long fileSize = Files.size(segment);
+        try(DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(segment), 64 * 1024))) {
+            while(true) {
+                int crc;
+                int length;
+                byte[] body;
+                try {
+                    crc = in.readInt();
+                    length = in.readInt();
+                    // A torn header can hold any length, so never trust one longer than what is left of the file
+                    if(length < 5 || length > fileSize - validLength - RECORD_HEADER_SIZE) {
+                        break;
+                    }
+                    body = new byte[length];
+                    in.readFully(body);
+                } catch (EOFException e) {
+                    break;
+                }
+
+                CRC32 check = new CRC32();
+                check.update(body);
+                int keyLength = ByteBuffer.wrap(body, 1, 4).getInt();
+                if((int) check.getValue() != crc || keyLength < 0 || keyLength > length - 5) {
+                    break;
+                }
+
+                byte[] key = new byte[keyLength];
+                System.arraycopy(body, 5, key, 0, keyLength);
+                if(body[0] == RECORD_PUT) {
+                    byte[] value = new byte[length - 5 - keyLength];
+                    System.arraycopy(body, 5 + keyLength, value, 0, value.length);
+                    store.put(key, value);
+                } else if(body[0] == RECORD_DELETE) {
+                    store.remove(key);
+                } else {
+                    break;
+                }
+                records++;
+                validLength += RECORD_HEADER_SIZE + length;
+            }
+        }
+
+        if(validLength == 0) {
+            Files.delete(segment); // Nothing worth keeping, e.g. a segment opened just before a restart
+        } else if(fileSize > validLength) {
+            Server.logMessage("Truncating torn write-ahead log record at byte " + validLength + " of " + segment.getFileName());
+            try(FileChannel truncate = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+                truncate.truncate(validLength);
+            }
+        }
+        return records;
+    }
+
+    private static byte[] encode(byte type, byte[] key, byte[] value) {
+        int length = 1 + 4 + key.length + value.length;
+        ByteBuffer buf = ByteBuffer.allocate(RECORD_HEADER_SIZE + length);
+        buf.position(RECORD_HEADER_SIZE);
+        buf.put(type).putInt(key.length).put(key).put(value);
+
+        CRC32 crc = new CRC32();
+        crc.update(buf.array(), RECORD_HEADER_SIZE, length);
+        buf.putInt(0, (int) crc.getValue());
+        buf.putInt(4, length);
+        return buf.array();
+    }
+}
@@ -0,0 +1,82 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Checks that keys without a TTL are stored exactly as written, so short values and data written before expiration
+ * existed read back unchanged, that values which look like a deadline envelope survive the escape, and that keys
+ * with a TTL expire and can have their TTL cleared.
+ */
+public class ExpiringStorageEngineTest {
+
+    private static final long TICK_MILLIS = 1;
+
+    public static void main(String[] args) throws InterruptedException {
+        StorageEngine store = new OrderedIndexStorageEngine(new HashMapStorageEngine());
+        // Written before the expiring layer existed, including values shorter than a deadline
+        store.put(bytes("legacy-empty"), new byte[0]);
+        store.put(bytes("legacy-short"), bytes("abc"));
+        store.put(bytes("legacy-long"), bytes("a value longer than a deadline"));
+
+        ExpiringStorageEngine engine = new ExpiringStorageEngine(store, TICK_MILLIS);
+        checkValue(engine.get(bytes("legacy-empty")), new byte[0], "legacy-empty");
+        checkValue(engine.get(bytes("legacy-short")), bytes("abc"), "legacy-short");
+        checkValue(engine.get(bytes("legacy-long")), bytes("a value longer than a deadline"), "legacy-long");
+        check(engine.ttl(bytes("legacy-short")) == -1, "a legacy key should never expire");
+        int[] seen = new int[1];
+        engine.forEach((key, value) -> {
+            checkValue(value, store.get(key), new String(key, StandardCharsets.UTF_8));
+            seen[0]++;
+        });
+        check(seen[0] == 3, "forEach should see 3 legacy keys, saw " + seen[0]);
+        engine.scan(bytes("legacy-a"), bytes("legacy-z"), (key, value) -> {
+            checkValue(value, store.get(key), new String(key, StandardCharsets.UTF_8));
+            seen[0]--;
+            return true;
+        });
+        check(seen[0] == 0, "scan should see the 3 legacy keys");
+
+        // Keys without a TTL are stored as they are, not copied
+        byte[] plain = bytes("plain value");
+        engine.put(bytes("plain"), plain);
+        check(store.get(bytes("plain")) == plain, "a value without a TTL should be stored as it is");
+        check(engine.get(bytes("plain")) == plain, "a value without a TTL should be read without a copy");
+
+        // Values that start like an envelope are escaped, with and without a TTL
+        byte[] lookalike = ByteBuffer.allocate(16).put((byte) 0xB7).put((byte) 'T').putLong(1).array();
+        engine.put(bytes("lookalike"), lookalike);
+        checkValue(engine.get(bytes("lookalike")), lookalike, "lookalike");
+        check(engine.ttl(bytes("lookalike")) == -1, "a lookalike value should never expire");
+        engine.put(bytes("lookalike-ttl"), lookalike, 60000);
+        checkValue(engine.get(bytes("lookalike-ttl")), lookalike, "lookalike-ttl");
+
+        // A TTL expires the key, and expire with 0 clears it again, storing the value as it is
+        engine.put(bytes("short-lived"), bytes("x"), 50);
+        engine.put(bytes("kept"), bytes("y"), 50);
+        check(engine.ttl(bytes("kept")) > 0, "a key with a TTL should report it");
+        check(engine.expire(bytes("kept"), 0), "expire should find the key");
+        checkValue(store.get(bytes("kept")), bytes("y"), "kept as stored");
+        Thread.sleep(200);
+        check(engine.get(bytes("short-lived")) == null, "a key past its TTL should expire");
+        check(store.get(bytes("short-lived")) == null, "the timing wheel should remove an expired key");
+        checkValue(engine.get(bytes("kept")), bytes("y"), "kept");
+        check(engine.ttl(bytes("kept")) == -1, "a cleared TTL should never expire");
+        System.out.println("ExpiringStorageEngineTest passed");
+    }
+
+    private static void checkValue(byte[] value, byte[] expected, String key) {
+        check(value != null, key + " should be found");
+        check(Arrays.equals(value, expected), key + " read back as " + Arrays.toString(value) + ", expected " +
+                Arrays.toString(expected));
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void check(boolean condition, String message) {
+        if(!condition) {
+            throw new AssertionError(message);
+        }
+    }
+}
@@ -0,0 +1,119 @@
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Checks the off-heap engine against a HashMap under random puts, gets and removes, with slabs small enough that
+ * segments rehash, reuse tombstones, compact and give oversized entries slabs of their own, then checks size and
+ * forEach, including with several writers at once.
+ */
+public class OffHeapStorageEngineTest {
+
+    private static final int SLAB_SIZE = 4 * 1024;
+
+    public static void main(String[] args) throws InterruptedException {
+        // Compaction logs every time it runs, which with tiny slabs is constantly
+        AsyncLogger.setLevel(AsyncLogger.Level.OFF);
+        matchesHashMap();
+        emptyKeysAndValues();
+        concurrentWriters();
+        System.out.println("OffHeapStorageEngineTest passed");
+    }
+
+    private static void matchesHashMap() {
+        OffHeapStorageEngine store = new OffHeapStorageEngine(SLAB_SIZE);
+        Map<ByteKey, byte[]> expected = new HashMap<>();
+        Random random = new Random(42);
+        for(int i = 0; i < 400_000; i++) {
+            ByteKey key = new ByteKey(bytes("key" + random.nextInt(5000)));
+            int op = random.nextInt(10);
+            if(op < 5) {
+                // Mostly small values, and now and then one larger than a slab
+                byte[] value = new byte[random.nextInt(20) == 0 ? SLAB_SIZE + random.nextInt(SLAB_SIZE) : random.nextInt(200)];
+                random.nextBytes(value);
+                check(Arrays.equals(store.put(key.bytes(), value), expected.put(key, value)), "put should return the previous value");
+            } else if(op < 8) {
+                check(Arrays.equals(store.get(key.bytes()), expected.get(key)), "get should return the stored value");
+            } else {
+                check(Arrays.equals(store.remove(key.bytes()), expected.remove(key)), "remove should return the removed value");
+            }
+        }
+        checkContents(store, expected);
+
+        // Emptying the store leaves nothing behind, and it is usable again afterwards
+        for(ByteKey key : expected.keySet()) {
+            store.remove(key.bytes());
+        }
+        expected.clear();
+        checkContents(store, expected);
+        store.put(bytes("again"), bytes("value"));
+        expected.put(new ByteKey(bytes("again")), bytes("value"));
+        checkContents(store, expected);
+    }
+
+    private static void emptyKeysAndValues() {
+        OffHeapStorageEngine store = new OffHeapStorageEngine(SLAB_SIZE);
+        store.put(new byte[0], bytes("value of the empty key"));
+        store.put(bytes("empty"), new byte[0]);
+        check(Arrays.equals(store.get(new byte[0]), bytes("value of the empty key")), "the empty key should be stored");
+        check(Arrays.equals(store.get(bytes("empty")), new byte[0]), "an empty value should be stored, not missing");
+        check(store.size() == 2, "both entries should be counted");
+    }
+
+    private static void concurrentWriters() throws InterruptedException {
+        OffHeapStorageEngine store = new OffHeapStorageEngine(SLAB_SIZE);
+        Thread[] writers = new Thread[4];
+        for(int t = 0; t < writers.length; t++) {
+            int writer = t;
+            writers[t] = new Thread(() -> {
+                // Each writer rewrites its own keys, leaving every key at its last value
+                for(int round = 0; round < 20; round++) {
+                    for(int i = 0; i < 2000; i++) {
+                        store.put(bytes(writer + ":" + i), bytes(i + "@" + round));
+                    }
+                    for(int i = 0; i < 2000; i += 2) {
+                        store.remove(bytes(writer + ":" + i));
+                    }
+                }
+            });
+            writers[t].start();
+        }
+        for(Thread writer : writers) {
+            writer.join();
+        }
+
+        Map<ByteKey, byte[]> expected = new HashMap<>();
+        for(int writer = 0; writer < writers.length; writer++) {
+            for(int i = 1; i < 2000; i += 2) {
+                expected.put(new ByteKey(bytes(writer + ":" + i)), bytes(i + "@19"));
+            }
+        }
+        checkContents(store, expected);
+    }
+
+    /**
+     * Checks size, get, and that forEach visits every expected entry exactly once.
+     */
+    private static void checkContents(OffHeapStorageEngine store, Map<ByteKey, byte[]> expected) {
+        check(store.size() == expected.size(), "size should be " + expected.size() + ", was " + store.size());
+        Map<ByteKey, byte[]> seen = new HashMap<>();
+        store.forEach((key, value) -> check(seen.put(new ByteKey(key), value) == null, "forEach should visit each key once"));
+        check(seen.size() == expected.size(), "forEach should visit " + expected.size() + " keys, visited " + seen.size());
+        for(Map.Entry<ByteKey, byte[]> entry : expected.entrySet()) {
+            check(Arrays.equals(seen.get(entry.getKey()), entry.getValue()), "forEach should pass each key's value");
+            check(Arrays.equals(store.get(entry.getKey().bytes()), entry.getValue()), "get should return each key's value");
+        }
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void check(boolean condition, String message) {
+        if(!condition) {
+            throw new AssertionError(message);
+        }
+    }
+}
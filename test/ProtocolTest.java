@@ -0,0 +1,259 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Checks that inline, chunked and compressed values survive encoding and decoding both as whole frames and over
+ * streams, and that malformed lengths are rejected with a ProtocolException before anything is allocated from them.
+ */
+public class ProtocolTest {
+
+    private static final byte[] KEY = "key".getBytes(StandardCharsets.UTF_8);
+
+    public static void main(String[] args) throws IOException {
+        inlineValuesRoundTrip();
+        chunkedValuesRoundTrip();
+        compressedValuesRoundTrip();
+        frameLengthCountsChunks();
+        malformedLengthsAreRejected();
+        malformedChunksAreRejected();
+        malformedEnvelopesAreRejected();
+        System.out.println("ProtocolTest passed");
+    }
+
+    private static void inlineValuesRoundTrip() throws IOException {
+        for(int size : new int[] {0, 1, Protocol.CHUNK_SIZE}) {
+            checkRoundTrip(randomValue(size));
+        }
+    }
+
+    private static void chunkedValuesRoundTrip() throws IOException {
+        for(int size : new int[] {Protocol.CHUNK_SIZE + 1, 3 * Protocol.CHUNK_SIZE, 5 * Protocol.CHUNK_SIZE + 7}) {
+            checkRoundTrip(randomValue(size));
+        }
+    }
+
+    private static void compressedValuesRoundTrip() throws IOException {
+        byte[] value = new byte[4 * Protocol.CHUNK_SIZE];
+        Arrays.fill(value, (byte) 'a');
+        byte[] envelope = ValueCompression.compress(value, 1);
+        check(envelope != null && envelope.length < value.length, "a repetitive value should compress");
+        ValueCompression.check(envelope);
+
+        // A compressed response is decompressed as it is decoded
+        byte[] frame = Protocol.encodeResponse(new Protocol.Response(Protocol.OP_GET, Protocol.FLAG_COMPRESSED,
+                Protocol.STATUS_OK, 7, envelope));
+        Protocol.Response response = Protocol.decodeResponse(frame, 0, frame.length);
+        check(Arrays.equals(response.value, value), "compressed response should decode to the original value");
+
+        // A compressed request keeps its envelope and flag for the server to store as it is
+        frame = Protocol.encodeRequest(new Protocol.Request(Protocol.OP_PUT, Protocol.FLAG_COMPRESSED, 8, KEY, envelope));
+        Protocol.Request request = Protocol.decodeRequest(frame, 0, frame.length);
+        check(request.opcode == Protocol.OP_PUT && request.flags == Protocol.FLAG_COMPRESSED &&
+                Arrays.equals(request.value, envelope), "compressed request should keep its envelope");
+
+        // An MGET that accepts compressed values gets them as stored, and its results decode to the values
+        StorageEngine store = new CompressingStorageEngine(new ConcurrentStorageEngine(), 1);
+        store.put(KEY, value);
+        byte[] small = "small".getBytes(StandardCharsets.UTF_8);
+        store.put(bytes("small"), small);
+        Protocol.Request mget = new Protocol.Request(Protocol.OP_MGET, Protocol.FLAG_COMPRESSED, 9,
+                Protocol.encodeList(Arrays.asList(KEY, bytes("small"), bytes("missing"))), new byte[0]);
+        frame = Protocol.encodeResponse(Server.processMultiKeyRequest(mget, store));
+        check(frame.length < value.length, "MGET results should carry the value compressed, took " + frame.length + " bytes");
+        response = Protocol.decodeResponse(frame, 0, frame.length);
+        check(response.flags == Protocol.FLAG_COMPRESSED, "MGET response should be flagged as carrying stored values");
+        List<Protocol.Response> results = Protocol.decodeResults(response);
+        check(results.size() == 3 && Arrays.equals(results.get(0).value, value) && Arrays.equals(results.get(1).value, small) &&
+                results.get(2).status == Protocol.STATUS_NOT_FOUND, "MGET results should decode to the original values");
+    }
+
+    private static void frameLengthCountsChunks() throws IOException {
+        byte[] frame = Protocol.encodeRequest(new Protocol.Request(Protocol.OP_PUT, 1, KEY, randomValue(3 * Protocol.CHUNK_SIZE)));
+        check(Protocol.frameLength(frame, 0, Protocol.HEADER_SIZE - 1) == -1, "an incomplete header has no length yet");
+        // Exactly the header, as a non-blocking read may deliver it
+        check(Protocol.frameLength(frame, 0, Protocol.HEADER_SIZE) > Protocol.HEADER_SIZE, "a bare header should give its body length");
+        int previous = 0;
+        for(int received = Protocol.HEADER_SIZE; received <= frame.length; received += 1000) {
+            int length = Protocol.frameLength(frame, 0, received);
+            check(length >= previous && length <= frame.length, "frame length should only grow towards the real length");
+            previous = length;
+        }
+        check(Protocol.frameLength(frame, 0, frame.length) == frame.length, "a complete frame should give its exact length");
+    }
+
+    private static void malformedLengthsAreRejected() {
+        byte[] frame = Protocol.encodeRequest(new Protocol.Request(Protocol.OP_GET, 1, KEY, new byte[0]));
+        // KEY_LEN follows MAGIC, VERSION, LENGTH, OPCODE and REQUEST_ID
+        int keyLengthAt = Protocol.HEADER_SIZE + 1 + 4;
+        expectRejected("key length beyond the frame", withInt(frame, keyLengthAt, Integer.MAX_VALUE));
+        expectRejected("negative key length", withInt(frame, keyLengthAt, -1));
+        expectRejected("frame length beyond the maximum", withInt(frame, 2, Protocol.MAX_FRAME_SIZE + 1));
+        expectRejected("frame length beyond the bytes received", withInt(frame, 2, frame.length));
+
+        byte[] badMagic = frame.clone();
+        badMagic[0] = 0;
+        expectRejected("wrong magic byte", badMagic);
+        byte[] badVersion = frame.clone();
+        badVersion[1] = Protocol.VERSION + 1;
+        expectRejected("unsupported version", badVersion);
+
+        // An opcode of -1 has FLAG_CHUNKED set, so a frame carrying its value inline cannot be decoded
+        byte[] response = Protocol.encodeResponse(new Protocol.Response((byte) -1, Protocol.STATUS_ERROR, 1,
+                "error".getBytes(StandardCharsets.UTF_8)));
+        try {
+            Protocol.decodeResponse(response, 0, response.length);
+            throw new AssertionError("a response with opcode -1 and an inline value should be rejected");
+        } catch (ProtocolException e) {
+            // Expected
+        }
+    }
+
+    private static void malformedChunksAreRejected() throws IOException {
+        byte[] frame = Protocol.encodeRequest(new Protocol.Request(Protocol.OP_PUT, 1, KEY, randomValue(2 * Protocol.CHUNK_SIZE)));
+        int valueLengthAt = Protocol.HEADER_SIZE + 1 + 4 + 4 + KEY.length;
+        int firstChunkAt = valueLengthAt + 4;
+        expectRejected("chunked value length beyond the bytes received", withInt(frame, valueLengthAt, Protocol.MAX_VALUE_SIZE));
+        expectRejected("chunked value length small enough to be inline", withInt(frame, valueLengthAt, Protocol.CHUNK_SIZE));
+        expectRejected("chunked value length beyond the maximum", withInt(frame, valueLengthAt, Integer.MAX_VALUE));
+        expectRejected("empty chunk", withInt(frame, firstChunkAt, 0));
+        expectRejected("chunk longer than CHUNK_SIZE", withInt(frame, firstChunkAt, Protocol.CHUNK_SIZE + 1));
+
+        // Over a stream, a header claiming a huge value followed by one chunk must fail on the missing chunks
+        // instead of allocating the value up front
+        byte[] header = Arrays.copyOf(frame, firstChunkAt);
+        ByteBuffer.wrap(header).putInt(valueLengthAt, Protocol.MAX_VALUE_SIZE);
+        byte[] truncated = Arrays.copyOf(frame, firstChunkAt + 4 + Protocol.CHUNK_SIZE);
+        System.arraycopy(header, 0, truncated, 0, header.length);
+        try {
+            Protocol.readRequest(new DataInputStream(new ByteArrayInputStream(truncated)));
+            throw new AssertionError("a stream ending before its chunks should be rejected");
+        } catch (EOFException e) {
+            // Expected
+        }
+        try {
+            Protocol.frameLength(withInt(frame, firstChunkAt, Protocol.CHUNK_SIZE + 1), 0, frame.length);
+            throw new AssertionError("frameLength should reject a chunk longer than CHUNK_SIZE");
+        } catch (ProtocolException e) {
+            // Expected
+        }
+    }
+
+    private static void malformedEnvelopesAreRejected() {
+        // A small payload that inflates far beyond the length it declares
+        byte[] bomb = ValueCompression.compress(new byte[16 * 1024 * 1024], 1);
+        ByteBuffer.wrap(bomb).putInt(3, 10);
+        expectBadEnvelope("payload larger than its declared length", bomb);
+
+        byte[] envelope = ValueCompression.compress(new byte[1000], 1);
+        expectBadEnvelope("truncated payload", Arrays.copyOf(envelope, envelope.length - 2));
+        expectBadEnvelope("declared length beyond the maximum",
+                withInt(envelope, 3, Protocol.MAX_VALUE_SIZE + 1));
+        byte[] unknownCodec = envelope.clone();
+        unknownCodec[2] = 9;
+        expectBadEnvelope("unknown codec", unknownCodec);
+        expectBadEnvelope("truncated header", Arrays.copyOf(envelope, ValueCompression.HEADER_SIZE - 1));
+    }
+
+    /**
+     * Sends a request and a response with a value through every encoder and decoder, checking it comes back intact.
+     */
+    private static void checkRoundTrip(byte[] value) throws IOException {
+        Protocol.Request request = new Protocol.Request(Protocol.OP_PUT, 42, KEY, value);
+        byte[] frame = Protocol.encodeRequest(request);
+        check(frame.length == Protocol.frameSize(request), "frameSize should match the encoded request");
+        checkRequest(Protocol.decodeRequest(frame, 0, frame.length), value);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        Protocol.writeRequest(new DataOutputStream(bytes), request);
+        check(Arrays.equals(bytes.toByteArray(), frame), "writeRequest should write the encoded request");
+        checkRequest(Protocol.readRequest(new DataInputStream(new ByteArrayInputStream(frame))), value);
+
+        Protocol.Response response = new Protocol.Response(Protocol.OP_GET, Protocol.STATUS_OK, 43, value);
+        frame = Protocol.encodeResponse(response);
+        check(frame.length == Protocol.frameSize(response), "frameSize should match the encoded response");
+        checkResponse(Protocol.decodeResponse(frame, 0, frame.length), value);
+        bytes.reset();
+        Protocol.writeResponse(new DataOutputStream(bytes), response);
+        check(Arrays.equals(bytes.toByteArray(), frame), "writeResponse should write the encoded response");
+        checkResponse(Protocol.readResponse(new DataInputStream(new ByteArrayInputStream(frame))), value);
+    }
+
+    private static void checkRequest(Protocol.Request request, byte[] value) {
+        check(request.opcode == Protocol.OP_PUT && request.flags == 0 && request.requestId == 42 &&
+                Arrays.equals(request.key, KEY) && Arrays.equals(request.value, value),
+                "request with a " + value.length + " byte value should round trip");
+    }
+
+    private static void checkResponse(Protocol.Response response, byte[] value) {
+        check(response.opcode == Protocol.OP_GET && response.status == Protocol.STATUS_OK &&
+                response.requestId == 43 && Arrays.equals(response.value, value),
+                "response with a " + value.length + " byte value should round trip");
+    }
+
+    /**
+     * Checks that a request frame is rejected by both the frame decoder and the stream reader.
+     */
+    private static void expectRejected(String what, byte[] frame) {
+        try {
+            Protocol.decodeRequest(frame, 0, frame.length);
+            throw new AssertionError("decodeRequest should reject a " + what);
+        } catch (ProtocolException e) {
+            // Expected
+        }
+        try {
+            Protocol.readRequest(new DataInputStream(new ByteArrayInputStream(frame)));
+            throw new AssertionError("readRequest should reject a " + what);
+        } catch (ProtocolException e) {
+            // Expected
+        } catch (IOException e) {
+            // A length beyond the frame may also run the stream dry, which is as good as a rejection
+            check(e instanceof EOFException, "readRequest should reject a " + what + ", got " + e);
+        }
+    }
+
+    private static void expectBadEnvelope(String what, byte[] envelope) {
+        try {
+            ValueCompression.check(envelope);
+            throw new AssertionError("check should reject an envelope with a " + what);
+        } catch (ProtocolException e) {
+            // Expected
+        }
+        try {
+            ValueCompression.decode(envelope);
+            throw new AssertionError("decode should reject an envelope with a " + what);
+        } catch (ProtocolException e) {
+            // Expected
+        }
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] withInt(byte[] bytes, int offset, int value) {
+        byte[] copy = bytes.clone();
+        ByteBuffer.wrap(copy).putInt(offset, value);
+        return copy;
+    }
+
+    private static byte[] randomValue(int size) {
+        byte[] value = new byte[size];
+        new Random(size).nextBytes(value);
+        return value;
+    }
+
+    private static void check(boolean condition, String message) {
+        if(!condition) {
+            throw new AssertionError(message);
+        }
+    }
+}
@@ -0,0 +1,136 @@
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Checks that a replica copies its primary's store, removing keys the primary does not hold, follows later writes,
+ * and after losing its connection copies the store again, catching up with the writes it missed.
+ */
+public class ReplicationTest {
+
+    private static final long TIMEOUT_MILLIS = 10_000;
+
+    private static final ReplicatingStorageEngine primary = new ReplicatingStorageEngine(new ConcurrentStorageEngine());
+    private static final ReplicatingStorageEngine replica = new ReplicatingStorageEngine(new ConcurrentStorageEngine());
+    private static volatile Socket replicaConnection;
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        for(int i = 0; i < 1000; i++) {
+            primary.put(bytes("key" + i), bytes("value" + i));
+        }
+        // A value larger than CHUNK_SIZE, sent in chunks
+        byte[] large = new byte[3 * Protocol.CHUNK_SIZE];
+        new Random(1).nextBytes(large);
+        primary.put(bytes("large"), large);
+        // Left over from before, so the copy has to replace or remove them
+        replica.put(bytes("key0"), bytes("outdated"));
+        replica.put(bytes("stale"), bytes("gone from the primary"));
+
+        ServerSocket listener = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        Thread acceptor = new Thread(() -> servePrimary(listener), "primary");
+        acceptor.setDaemon(true);
+        acceptor.start();
+
+        replica.replicateFrom("127.0.0.1:" + listener.getLocalPort());
+        waitFor(ReplicationTest::linked, "the replica should finish its copy");
+        checkSameData("after the first copy");
+
+        primary.put(bytes("key1"), bytes("rewritten"));
+        primary.remove(bytes("key2"));
+        primary.put(bytes("new"), bytes("value"));
+        waitFor(ReplicationTest::sameData, "the replica should apply later writes");
+
+        // Lose the connection, and write while the replica is away
+        replicaConnection.close();
+        waitFor(() -> !linked(), "the replica should notice the lost connection");
+        primary.remove(bytes("key3"));
+        primary.put(bytes("key4"), bytes("written while away"));
+        primary.put(bytes("missed"), bytes("value"));
+        waitFor(ReplicationTest::linked, "the replica should reconnect");
+        waitFor(ReplicationTest::sameData, "the replica should catch up after reconnecting");
+        checkSameData("after reconnecting");
+
+        listener.close();
+        System.out.println("ReplicationTest passed");
+    }
+
+    /**
+     * Accepts replica connections and serves each one, as the Server does for a REPLICATE request.
+     */
+    private static void servePrimary(ServerSocket listener) {
+        while(true) {
+            try {
+                Socket s = listener.accept();
+                replicaConnection = s;
+                Thread serve = new Thread(() -> {
+                    try(s) {
+                        DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+                        Protocol.Request request = Protocol.readRequest(in);
+                        check(request.opcode == Protocol.OP_REPLICATE, "a replica should start with REPLICATE");
+                        primary.serveReplica(new DataOutputStream(s.getOutputStream()));
+                    } catch (IOException e) {
+                        // The replica is gone
+                    }
+                }, "replica-feed");
+                serve.setDaemon(true);
+                serve.start();
+            } catch (IOException e) {
+                return; // Closed once the test is done
+            }
+        }
+    }
+
+    private static boolean linked() {
+        String[] link = new String[1];
+        replica.report((name, value) -> {
+            if(name.equals("replication_link")) {
+                link[0] = String.valueOf(value);
+            }
+        });
+        return "up".equals(link[0]);
+    }
+
+    private static boolean sameData() {
+        return contents(primary).equals(contents(replica));
+    }
+
+    private static void checkSameData(String when) {
+        Map<ByteKey, ByteKey> expected = contents(primary);
+        Map<ByteKey, ByteKey> actual = contents(replica);
+        check(expected.equals(actual), "replica should hold " + expected.size() + " keys like its primary " + when +
+                ", holds " + actual.size());
+    }
+
+    private static Map<ByteKey, ByteKey> contents(StorageEngine store) {
+        Map<ByteKey, ByteKey> contents = new HashMap<>();
+        store.forEach((key, value) -> contents.put(new ByteKey(key), new ByteKey(value)));
+        return contents;
+    }
+
+    private static void waitFor(BooleanSupplier condition, String message) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while(!condition.getAsBoolean()) {
+            check(System.currentTimeMillis() < deadline, message + " within " + TIMEOUT_MILLIS + "ms");
+            Thread.sleep(10);
+        }
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void check(boolean condition, String message) {
+        if(!condition) {
+            throw new AssertionError(message);
+        }
+    }
+}
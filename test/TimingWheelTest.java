@@ -0,0 +1,72 @@
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Checks that the timing wheel fires keys no earlier than their deadlines, including deadlines that start on the
+ * second wheel and cascade down to the first, and that scheduling a key again moves its one timer.
+ */
+public class TimingWheelTest {
+
+    // With a 1ms tick the first wheel covers 256ms, so longer deadlines start on the second wheel
+    private static final long TICK_MILLIS = 1;
+    private static final long LATE_MILLIS = 200;
+
+    private static final Map<String, Long> fired = new ConcurrentHashMap<>();
+    private static final Map<String, AtomicInteger> fireCounts = new ConcurrentHashMap<>();
+
+    public static void main(String[] args) throws InterruptedException {
+        TimingWheel wheel = new TimingWheel(TICK_MILLIS, key -> {
+            String name = new String(key, StandardCharsets.UTF_8);
+            fired.putIfAbsent(name, System.currentTimeMillis());
+            fireCounts.computeIfAbsent(name, k -> new AtomicInteger()).incrementAndGet();
+        });
+        wheel.start();
+
+        long now = System.currentTimeMillis();
+        Map<String, Long> deadlines = Map.of("first-wheel", now + 100, "second-wheel", now + 400,
+                "second-wheel-far", now + 1300);
+        for(Map.Entry<String, Long> entry : deadlines.entrySet()) {
+            wheel.schedule(bytes(entry.getKey()), entry.getValue());
+        }
+        // Moved out onto the second wheel, and moved again many times, before its first deadline passes
+        for(int i = 0; i < 1000; i++) {
+            wheel.schedule(bytes("moved"), now + 50 + i);
+        }
+        wheel.schedule(bytes("moved"), now + 700);
+        check(wheel.size() == deadlines.size() + 1, "each key should keep one timer, found " + wheel.size());
+        // Already due, so it fires on the next tick
+        wheel.schedule(bytes("past"), now - 1000);
+        // Beyond every wheel's range, so it must stay parked rather than fire
+        wheel.schedule(bytes("never"), Long.MAX_VALUE);
+
+        Thread.sleep(1300 + LATE_MILLIS + 200);
+        for(Map.Entry<String, Long> entry : deadlines.entrySet()) {
+            checkFired(entry.getKey(), entry.getValue());
+        }
+        checkFired("moved", now + 700);
+        checkFired("past", now);
+        check(!fired.containsKey("never"), "a key due in the far future should not fire");
+        check(wheel.size() == 1, "only the parked timer should be left, found " + wheel.size());
+        System.out.println("TimingWheelTest passed");
+    }
+
+    private static void checkFired(String key, long deadline) {
+        Long at = fired.get(key);
+        check(at != null, key + " should have fired");
+        check(at >= deadline, key + " fired " + (deadline - at) + "ms before its deadline");
+        check(at <= deadline + LATE_MILLIS, key + " fired " + (at - deadline) + "ms late");
+        check(fireCounts.get(key).get() == 1, key + " fired " + fireCounts.get(key).get() + " times");
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void check(boolean condition, String message) {
+        if(!condition) {
+            throw new AssertionError(message);
+        }
+    }
+}
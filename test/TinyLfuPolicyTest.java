@@ -0,0 +1,159 @@
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+/**
+ * Checks that W-TinyLFU keeps frequently read keys through a scan of one-off keys, admits a new key once it is
+ * read more often than the key it would replace, keeps its weights right, and that the frequency sketch saturates
+ * and ages.
+ */
+public class TinyLfuPolicyTest {
+
+    private static final int CAPACITY = 100;
+
+    public static void main(String[] args) throws InterruptedException {
+        hotKeysSurviveScan();
+        frequentNewKeyIsAdmitted();
+        weightsFollowWritesAndRemoves();
+        sketchSaturatesAndAges();
+        engineEvictsToLimit();
+        engineKeepsPolicyInStepUnderRacingWrites();
+        System.out.println("TinyLfuPolicyTest passed");
+    }
+
+    private static void hotKeysSurviveScan() {
+        TinyLfuPolicy policy = new TinyLfuPolicy(CAPACITY, CAPACITY);
+        for(int i = 0; i < CAPACITY; i++) {
+            write(policy, key("hot" + i));
+        }
+        for(int round = 0; round < 5; round++) {
+            for(int i = 0; i < CAPACITY / 2; i++) {
+                policy.recordAccess(key("hot" + i));
+            }
+        }
+        for(int i = 0; i < 10_000; i++) {
+            write(policy, key("scan" + i));
+        }
+
+        int evictedHot = 0;
+        for(int i = 0; i < CAPACITY / 2; i++) {
+            policy.recordRemove(key("hot" + i));
+            if(policy.entries() == CAPACITY) {
+                evictedHot++; // Nothing was removed, so the key had been evicted
+            } else {
+                write(policy, key("hot" + i));
+            }
+        }
+        check(evictedHot == 0, evictedHot + " hot keys were evicted by a scan of one-off keys");
+    }
+
+    private static void frequentNewKeyIsAdmitted() {
+        TinyLfuPolicy policy = new TinyLfuPolicy(CAPACITY, CAPACITY);
+        for(int i = 0; i < CAPACITY; i++) {
+            write(policy, key("old" + i));
+        }
+        ByteKey riser = key("riser");
+        write(policy, riser);
+        for(int i = 0; i < 10; i++) {
+            policy.recordAccess(riser);
+        }
+        // Push it out of the window, where it has to win against the least recently used probation key
+        for(int i = 0; i < 10; i++) {
+            write(policy, key("new" + i));
+        }
+
+        int before = policy.entries();
+        policy.recordRemove(riser);
+        check(policy.entries() == before - 1, "a key read more often than the others should be admitted");
+    }
+
+    private static void weightsFollowWritesAndRemoves() {
+        TinyLfuPolicy policy = new TinyLfuPolicy(1000, 10);
+        check(policy.evict() == null, "an empty policy should have nothing to evict");
+        policy.recordWrite(key("a"), 100);
+        policy.recordWrite(key("b"), 200);
+        policy.recordWrite(key("a"), 300);
+        check(policy.weight() == 500 && policy.entries() == 2, "rewriting a key should replace its weight");
+        policy.recordRemove(key("b"));
+        policy.recordRemove(key("missing"));
+        check(policy.weight() == 300 && policy.entries() == 1, "removing a key should drop its weight");
+        check(policy.evict().equals(key("a")) && policy.weight() == 0 && policy.entries() == 0,
+                "evicting the last key should leave nothing tracked");
+    }
+
+    private static void sketchSaturatesAndAges() {
+        TinyLfuPolicy.FrequencySketch sketch = new TinyLfuPolicy.FrequencySketch(1024);
+        int hash = key("counted").hashCode();
+        for(int i = 0; i < 100; i++) {
+            sketch.increment(hash);
+        }
+        check(sketch.frequency(hash) == 15, "counters should saturate at 15, got " + sketch.frequency(hash));
+        // Enough other increments to pass the sample size and halve every counter
+        for(int i = 0; i < 1024 * 10; i++) {
+            sketch.increment(i * 0x9e3779b9);
+        }
+        check(sketch.frequency(hash) <= 7, "aging should halve old counts, got " + sketch.frequency(hash));
+    }
+
+    private static void engineEvictsToLimit() throws InterruptedException {
+        EvictingStorageEngine store = new EvictingStorageEngine(new ConcurrentStorageEngine(),
+                EvictingStorageEngine.createPolicy("tinylfu", 0, CAPACITY), 0, CAPACITY);
+        for(int i = 0; i < 10 * CAPACITY; i++) {
+            store.put(("k" + i).getBytes(StandardCharsets.UTF_8), new byte[] {1});
+        }
+        long deadline = System.currentTimeMillis() + 5000;
+        while(store.size() > CAPACITY && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        check(store.size() == CAPACITY, "the store should be evicted down to " + CAPACITY + " keys, has " + store.size());
+        check(store.evictionCount() == 9 * CAPACITY, "expected " + 9 * CAPACITY + " evictions, got " + store.evictionCount());
+    }
+
+    private static void engineKeepsPolicyInStepUnderRacingWrites() throws InterruptedException {
+        EvictionPolicy policy = EvictingStorageEngine.createPolicy("tinylfu", 0, CAPACITY);
+        EvictingStorageEngine store = new EvictingStorageEngine(new ConcurrentStorageEngine(), policy, 0, CAPACITY);
+        // Few keys rewritten constantly, so writes keep landing on keys the policy has just chosen to evict
+        Thread[] writers = new Thread[4];
+        for(int t = 0; t < writers.length; t++) {
+            int seed = t;
+            writers[t] = new Thread(() -> {
+                Random random = new Random(seed);
+                for(int i = 0; i < 200_000; i++) {
+                    store.put(("k" + random.nextInt(2 * CAPACITY)).getBytes(StandardCharsets.UTF_8), new byte[] {1});
+                }
+            });
+            writers[t].start();
+        }
+        for(Thread writer : writers) {
+            writer.join();
+        }
+        long deadline = System.currentTimeMillis() + 5000;
+        while(store.size() > CAPACITY && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Thread.sleep(50);
+        // Every acknowledged write is either still stored or was evicted with the policy's knowledge
+        check(store.size() == CAPACITY, "the store should be evicted down to " + CAPACITY + " keys, has " + store.size());
+        check(policy.entries() == store.size(), "the policy tracks " + policy.entries() + " keys but the store holds " +
+                store.size());
+    }
+
+    /**
+     * Writes a key with weight 1 and evicts while the policy is over capacity, as the engine's maintenance does.
+     */
+    private static void write(TinyLfuPolicy policy, ByteKey key) {
+        policy.recordWrite(key, 1);
+        while(policy.entries() > CAPACITY) {
+            policy.evict();
+        }
+    }
+
+    private static ByteKey key(String s) {
+        return new ByteKey(s.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void check(boolean condition, String message) {
+        if(!condition) {
+            throw new AssertionError(message);
+        }
+    }
+}
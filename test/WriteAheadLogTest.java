@@ -0,0 +1,139 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Checks that replaying the write-ahead log after a crash keeps every intact record and cuts off a torn or
+ * corrupt one at the end of a segment.
+ */
+public class WriteAheadLogTest {
+
+    public static void main(String[] args) throws IOException {
+        tornRecordIsCutOff();
+        corruptRecordIsCutOff();
+        hugeTornLengthIsCutOff();
+        System.out.println("WriteAheadLogTest passed");
+    }
+
+    private static void tornRecordIsCutOff() throws IOException {
+        Path dir = Files.createTempDirectory("wal-test");
+        long intact = writeLog(dir);
+        // A record whose header made it to disk but whose body was cut short by the crash
+        append(dir, ByteBuffer.allocate(18).putInt(0).putInt(100).put(WriteAheadLog.RECORD_PUT).array());
+
+        StorageEngine store = reopen(dir);
+        checkReplayed(store, true);
+        check(Files.size(segment(dir)) == intact, "torn record should be truncated to " + intact + " bytes");
+        delete(dir);
+    }
+
+    private static void corruptRecordIsCutOff() throws IOException {
+        Path dir = Files.createTempDirectory("wal-test");
+        long intact = writeLog(dir);
+        // Flip the last byte of the last record's value, so its CRC no longer matches
+        try(FileChannel channel = FileChannel.open(segment(dir), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer last = ByteBuffer.allocate(1);
+            channel.read(last, intact - 1);
+            last.put(0, (byte) (last.get(0) ^ 0xff)).rewind();
+            channel.write(last, intact - 1);
+        }
+
+        StorageEngine store = reopen(dir);
+        checkReplayed(store, false);
+        check(Files.size(segment(dir)) < intact, "corrupt record should be truncated");
+        delete(dir);
+    }
+
+    private static void hugeTornLengthIsCutOff() throws IOException {
+        Path dir = Files.createTempDirectory("wal-test");
+        long intact = writeLog(dir);
+        // A garbage header must not make replay allocate a body of its claimed length
+        append(dir, ByteBuffer.allocate(8).putInt(0).putInt(Integer.MAX_VALUE).array());
+
+        StorageEngine store = reopen(dir);
+        checkReplayed(store, true);
+        check(Files.size(segment(dir)) == intact, "torn header should be truncated to " + intact + " bytes");
+        delete(dir);
+    }
+
+    /**
+     * Writes a=1, b=2, c=3, deletes b, then writes d=4, as the last record.
+     * @return The size of the segment once every record is durable.
+     */
+    private static long writeLog(Path dir) throws IOException {
+        WriteAheadLog wal = new WriteAheadLog(dir, new HashMapStorageEngine(), 0, 64 * 1024 * 1024, 0, 1024 * 1024);
+        wal.append(WriteAheadLog.RECORD_PUT, bytes("a"), bytes("1"));
+        wal.append(WriteAheadLog.RECORD_PUT, bytes("b"), bytes("2"));
+        wal.append(WriteAheadLog.RECORD_PUT, bytes("c"), bytes("3"));
+        wal.append(WriteAheadLog.RECORD_DELETE, bytes("b"), new byte[0]);
+        wal.awaitDurable(wal.append(WriteAheadLog.RECORD_PUT, bytes("d"), bytes("4")));
+        wal.close();
+        return Files.size(segment(dir));
+    }
+
+    private static StorageEngine reopen(Path dir) throws IOException {
+        StorageEngine store = new HashMapStorageEngine();
+        new WriteAheadLog(dir, store, 0, 64 * 1024 * 1024, 0, 1024 * 1024).close();
+        return store;
+    }
+
+    private static void checkReplayed(StorageEngine store, boolean lastRecordIntact) {
+        check(value(store, "a").equals("1") && value(store, "c").equals("3"), "records before the tail should be replayed");
+        check(store.get(bytes("b")) == null, "deleted key should stay deleted");
+        if(lastRecordIntact) {
+            check(value(store, "d").equals("4"), "last intact record should be replayed");
+        } else {
+            check(store.get(bytes("d")) == null, "corrupt record should not be replayed");
+        }
+    }
+
+    private static void append(Path dir, byte[] bytes) throws IOException {
+        Files.write(segment(dir), bytes, StandardOpenOption.APPEND);
+    }
+
+    /**
+     * @return The oldest segment, the one the records were written to; reopening only adds empty ones after it.
+     */
+    private static Path segment(Path dir) throws IOException {
+        List<Path> segments = new ArrayList<>();
+        try(DirectoryStream<Path> files = Files.newDirectoryStream(dir, "wal-*.log")) {
+            for(Path file : files) {
+                segments.add(file);
+            }
+        }
+        Collections.sort(segments);
+        return segments.get(0);
+    }
+
+    private static void delete(Path dir) throws IOException {
+        try(DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+            for(Path file : files) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(dir);
+    }
+
+    private static String value(StorageEngine store, String key) {
+        byte[] value = store.get(bytes(key));
+        return value == null ? "" : new String(value, StandardCharsets.UTF_8);
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void check(boolean condition, String message) {
+        if(!condition) {
+            throw new AssertionError(message);
+        }
+    }
+}